@@ -0,0 +1,130 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git :: Benchmarks
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameCommand.BlameInput;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.scan.filesystem.PathResolver;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BlameBenchmark {
+
+  @Param("500")
+  public int files;
+
+  @Param("200")
+  public int commits;
+
+  @Param("200")
+  public int linesPerFile;
+
+  private Path workTree;
+  private BlameInput input;
+  private JGitBlameCommand blameCommand;
+
+  @Setup
+  public void setUp() throws IOException, GitAPIException {
+    workTree = Files.createTempDirectory("blame-benchmark");
+    SyntheticRepository repository = new RepositoryGenerator()
+      .files(files)
+      .commits(commits)
+      .linesPerFile(linesPerFile)
+      .generate(workTree);
+
+    DefaultFileSystem fs = new DefaultFileSystem(workTree);
+    List<InputFile> inputFiles = new ArrayList<>();
+    for (String file : repository.files()) {
+      inputFiles.add(new TestInputFileBuilder("benchmark", file)
+        .setModuleBaseDir(workTree)
+        .setCharset(StandardCharsets.UTF_8)
+        .initMetadata(new String(Files.readAllBytes(workTree.resolve(file)), StandardCharsets.UTF_8))
+        .build());
+    }
+    input = new BlameInput() {
+      @Override
+      public FileSystem fileSystem() {
+        return fs;
+      }
+
+      @Override
+      public Iterable<InputFile> filesToBlame() {
+        return inputFiles;
+      }
+    };
+  }
+
+  /**
+   * Each iteration blames with a new command, so that it opens its session like the first blame of an analysis.
+   */
+  @Setup(Level.Iteration)
+  public void newCommand() {
+    GitSettings settings = new GitSettings(new MapSettings().asConfig());
+    blameCommand = new JGitBlameCommand(new PathResolver(), warning -> {
+    }, settings, new GitMetrics(settings));
+  }
+
+  @TearDown(Level.Iteration)
+  public void stopCommand() {
+    blameCommand.stop();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    SyntheticRepository.delete(workTree);
+  }
+
+  @Benchmark
+  public void blame(Blackhole blackhole) {
+    BlameOutput output = (file, lines) -> blackhole.consume(lines);
+    blameCommand.blame(input, output);
+  }
+}
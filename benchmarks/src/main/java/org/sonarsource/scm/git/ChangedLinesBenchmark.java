@@ -0,0 +1,131 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git :: Benchmarks
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.notifications.AnalysisWarnings;
+import org.sonar.api.scan.filesystem.PathResolver;
+import org.sonar.api.utils.System2;
+
+/**
+ * Changed files and lines of a branch forked from master, with a part of the files modified in commits of the
+ * branch and in the work tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChangedLinesBenchmark {
+
+  @Param("2000")
+  public int files;
+
+  @Param("100")
+  public int commits;
+
+  @Param("200")
+  public int linesPerFile;
+
+  @Param("10")
+  public int changedFilesPercent;
+
+  private Path workTree;
+  private GitScmProvider provider;
+  private Set<Path> changedFiles;
+
+  @Setup
+  public void setUp() throws IOException, GitAPIException {
+    workTree = Files.createTempDirectory("changed-lines-benchmark");
+    SyntheticRepository repository = new RepositoryGenerator()
+      .files(files)
+      .commits(commits)
+      .linesPerFile(linesPerFile)
+      .generate(workTree);
+
+    Random random = new Random(files);
+    changedFiles = new HashSet<>();
+    try (Git git = Git.open(workTree.toFile())) {
+      git.checkout().setCreateBranch(true).setName("feature").call();
+      int count = Math.max(1, files * changedFilesPercent / 100);
+      for (int i = 0; i < count; i++) {
+        Path file = workTree.resolve(repository.files().get(random.nextInt(files)));
+        List<String> lines = new ArrayList<>(Files.readAllLines(file, StandardCharsets.UTF_8));
+        lines.set(random.nextInt(lines.size()), "    // changed in feature branch");
+        lines.add(random.nextInt(lines.size()), "    // added in feature branch");
+        SyntheticRepository.write(file, lines);
+        changedFiles.add(file);
+        // half of the changes are committed, the other half stays in the work tree
+        if (i % 2 == 0) {
+          git.add().addFilepattern(workTree.relativize(file).toString().replace('\\', '/')).call();
+          git.commit().setMessage("Change " + i).call();
+        }
+      }
+    }
+
+    GitSettings settings = new GitSettings(new MapSettings().asConfig());
+    GitMetrics metrics = new GitMetrics(settings);
+    AnalysisWarnings analysisWarnings = warning -> {
+    };
+    JGitBlameCommand jgitBlameCommand = new JGitBlameCommand(new PathResolver(), analysisWarnings, settings, metrics);
+    provider = new GitScmProvider(jgitBlameCommand, new NativeGitBlameCommand(jgitBlameCommand, analysisWarnings, settings, metrics), analysisWarnings,
+      new GitIgnoreCommand(metrics), System2.INSTANCE, settings, metrics);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    SyntheticRepository.delete(workTree);
+  }
+
+  @Benchmark
+  public Set<Path> branchChangedFiles() {
+    return provider.branchChangedFiles("master", workTree);
+  }
+
+  @Benchmark
+  public Object branchChangedLines() {
+    return provider.branchChangedLines("master", workTree, changedFiles);
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git :: Benchmarks
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the unified diff of a single file, as emitted by JGit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangedLinesComputerBenchmark {
+
+  @Param({"100", "10000"})
+  public int hunks;
+
+  private byte[] diff;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(hunks);
+    StringBuilder sb = new StringBuilder()
+      .append("diff --git a/File.java b/File.java\n")
+      .append("index 635ef2c..7f050f2 100644\n")
+      .append("--- a/File.java\n")
+      .append("+++ b/File.java\n");
+    int line = 1;
+    for (int i = 0; i < hunks; i++) {
+      int removed = random.nextInt(4);
+      int added = random.nextInt(4);
+      sb.append("@@ -").append(line).append(',').append(6 + removed).append(" +").append(line).append(',').append(6 + added).append(" @@\n");
+      appendLines(sb, ' ', 3);
+      appendLines(sb, '-', removed);
+      appendLines(sb, '+', added);
+      appendLines(sb, ' ', 3);
+      line += 20;
+    }
+    diff = sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void appendLines(StringBuilder sb, char prefix, int count) {
+    for (int i = 0; i < count; i++) {
+      sb.append(prefix).append("    int value = ").append(i).append(";\n");
+    }
+  }
+
+  @Benchmark
+  public Set<Integer> parse() throws IOException {
+    ChangedLinesComputer computer = new ChangedLinesComputer();
+    try (OutputStream receiver = computer.receiver()) {
+      receiver.write(diff);
+    }
+    return computer.changedLines();
+  }
+}
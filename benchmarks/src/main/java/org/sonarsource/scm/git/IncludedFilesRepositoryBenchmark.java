@@ -0,0 +1,81 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git :: Benchmarks
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.internal.MapSettings;
+
+/**
+ * Indexing of the files of the work tree which are not ignored, with a part of the directories ignored.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IncludedFilesRepositoryBenchmark {
+
+  @Param("5000")
+  public int files;
+
+  @Param("1000")
+  public int ignoredFiles;
+
+  private Path workTree;
+  private final GitMetrics metrics = new GitMetrics(new GitSettings(new MapSettings().asConfig()));
+
+  @Setup
+  public void setUp() throws IOException, GitAPIException {
+    workTree = Files.createTempDirectory("ignore-benchmark");
+    new RepositoryGenerator()
+      .files(files)
+      .commits(0)
+      .linesPerFile(10)
+      .ignoredFiles(ignoredFiles)
+      .generate(workTree);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    SyntheticRepository.delete(workTree);
+  }
+
+  @Benchmark
+  public IncludedFilesRepository index() throws IOException {
+    return new IncludedFilesRepository(workTree, metrics);
+  }
+}
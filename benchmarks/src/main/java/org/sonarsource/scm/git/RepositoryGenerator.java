@@ -0,0 +1,453 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git :: Benchmarks
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+
+/**
+ * Generates a git repository with a realistic shape, to reproduce scaling problems without sharing proprietary code.
+ * The history has the given number of commits, each modifying a few files, the most recently created files being
+ * modified more often. Some commits rename files, some modify binary files, and every few commits the last ones
+ * are merged from a side branch. The work tree also contains ignored files.
+ * <p>
+ * Generation only depends on the parameters: the same parameters, including the seed, always produce the same
+ * commit ids. Objects are written directly into packs and trees are only rewritten for modified directories, so
+ * that repositories of hundreds of thousands of files and commits can be generated in minutes.
+ * <p>
+ * Can also be run from the command line: {@code RepositoryGenerator <directory> [files] [commits] [seed]}
+ */
+class RepositoryGenerator {
+
+  private static final int FILES_PER_DIRECTORY = 100;
+  private static final int COMMITS_PER_PACK = 5_000;
+  private static final long START_TIME = 1_577_836_800_000L;
+  private static final String[] AUTHORS = {"alice", "bob", "carol", "dave", "eve", "frank", "grace", "heidi"};
+  private static final String[] WORDS = {"value", "count", "index", "result", "name", "item", "list", "map", "size", "total"};
+
+  private long seed = 42;
+  private int fileCount = 1_000;
+  private int commitCount = 100;
+  private int linesPerFile = 100;
+  private int maxFilesPerCommit = 5;
+  private double renameRate = 0.05;
+  private int mergeEvery = 10;
+  private int binaryFileCount = 10;
+  private int ignoredFileCount = 100;
+
+  RepositoryGenerator seed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  RepositoryGenerator files(int fileCount) {
+    this.fileCount = fileCount;
+    return this;
+  }
+
+  /**
+   * Number of commits after the initial one, not counting merge commits.
+   */
+  RepositoryGenerator commits(int commitCount) {
+    this.commitCount = commitCount;
+    return this;
+  }
+
+  /**
+   * Initial number of lines of each text file. Modifications then add and remove lines.
+   */
+  RepositoryGenerator linesPerFile(int linesPerFile) {
+    this.linesPerFile = linesPerFile;
+    return this;
+  }
+
+  RepositoryGenerator maxFilesPerCommit(int maxFilesPerCommit) {
+    this.maxFilesPerCommit = maxFilesPerCommit;
+    return this;
+  }
+
+  /**
+   * Probability for a commit to also rename a file.
+   */
+  RepositoryGenerator renameRate(double renameRate) {
+    this.renameRate = renameRate;
+    return this;
+  }
+
+  /**
+   * Number of commits of each side branch merged into master. 0 for a linear history.
+   */
+  RepositoryGenerator mergeEvery(int mergeEvery) {
+    this.mergeEvery = mergeEvery;
+    return this;
+  }
+
+  RepositoryGenerator binaryFiles(int binaryFileCount) {
+    this.binaryFileCount = binaryFileCount;
+    return this;
+  }
+
+  /**
+   * Number of untracked files written in ignored directories of the work tree.
+   */
+  RepositoryGenerator ignoredFiles(int ignoredFileCount) {
+    this.ignoredFileCount = ignoredFileCount;
+    return this;
+  }
+
+  SyntheticRepository generate(Path workTree) throws IOException, GitAPIException {
+    List<String> textFiles;
+    try (Git git = Git.init().setDirectory(workTree.toFile()).call()) {
+      Repository repo = git.getRepository();
+      ObjectId head;
+      try (Generation generation = new Generation(repo)) {
+        head = generation.run();
+        textFiles = generation.textFiles;
+      }
+      RefUpdate update = repo.updateRef(Constants.R_HEADS + Constants.MASTER);
+      update.setNewObjectId(head);
+      update.forceUpdate();
+      git.reset().setMode(ResetCommand.ResetType.HARD).call();
+    }
+
+    List<String> ignoredFiles = new ArrayList<>();
+    for (int i = 0; i < ignoredFileCount; i++) {
+      String path;
+      switch (i % 3) {
+        case 0:
+          path = String.format("build/classes/module%d/File%d.class", i / FILES_PER_DIRECTORY, i);
+          break;
+        case 1:
+          path = String.format("node_modules/lib%d/index.js", i);
+          break;
+        default:
+          path = String.format("logs/run%d.log", i);
+          break;
+      }
+      SyntheticRepository.write(workTree.resolve(path), Arrays.asList("ignored " + i));
+      ignoredFiles.add(path);
+    }
+
+    return new SyntheticRepository(workTree, textFiles, ignoredFiles);
+  }
+
+  /**
+   * State of the generation of one repository
+   */
+  private class Generation implements AutoCloseable {
+    private final Random random = new Random(seed);
+    private final ObjectDatabase odb;
+    private ObjectInserter inserter;
+    private ObjectReader reader;
+    private final Tree tree = new Tree();
+    private final List<String> textFiles = new ArrayList<>();
+    private final List<String> binaryFiles = new ArrayList<>();
+    private int renamed = 0;
+    private int time = 0;
+
+    Generation(Repository repo) {
+      this.odb = repo.getObjectDatabase();
+      newInserter();
+    }
+
+    ObjectId run() throws IOException {
+      for (int i = 0; i < fileCount; i++) {
+        String path = String.format("src/module%d/pkg%d/File%d.java", i / (FILES_PER_DIRECTORY * 10), (i / FILES_PER_DIRECTORY) % 10, i);
+        List<String> lines = new ArrayList<>();
+        for (int l = 0; l < linesPerFile; l++) {
+          lines.add(line());
+        }
+        tree.put(path, insertText(lines));
+        textFiles.add(path);
+      }
+      for (int i = 0; i < binaryFileCount; i++) {
+        String path = String.format("assets/images/image%d.png", i);
+        tree.put(path, inserter.insert(Constants.OBJ_BLOB, binaryContent()));
+        binaryFiles.add(path);
+      }
+      tree.put(Constants.DOT_GIT_IGNORE, inserter.insert(Constants.OBJ_BLOB, "build/\nnode_modules/\n*.log\n".getBytes(StandardCharsets.UTF_8)));
+      ObjectId head = commit("Initial commit");
+
+      ObjectId forkPoint = head;
+      for (int c = 1; c <= commitCount; c++) {
+        change();
+        head = commit("Commit " + c, head);
+        if (mergeEvery > 0 && c % mergeEvery == 0) {
+          // the last commits were made on a side branch, merged without fast forward
+          head = commit("Merge branch feature-" + (c / mergeEvery), forkPoint, head);
+          forkPoint = head;
+        }
+        if (c % COMMITS_PER_PACK == 0) {
+          newInserter();
+        }
+      }
+      inserter.flush();
+      return head;
+    }
+
+    private void newInserter() {
+      if (inserter != null) {
+        try {
+          inserter.flush();
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+        close();
+      }
+      // writing packs rather than loose objects keeps the generation of large repositories fast
+      inserter = odb instanceof ObjectDirectory ? ((ObjectDirectory) odb).newPackInserter() : odb.newInserter();
+      reader = inserter.newReader();
+    }
+
+    private void change() throws IOException {
+      int files = 1 + random.nextInt(maxFilesPerCommit);
+      for (int i = 0; i < files; i++) {
+        String path = textFiles.get(pickRecent(textFiles.size()));
+        List<String> lines = new ArrayList<>(Arrays.asList(new String(reader.open(tree.get(path)).getCachedBytes(), StandardCharsets.UTF_8).split("\n", -1)));
+        // drop what follows the last line feed
+        lines.remove(lines.size() - 1);
+        edit(lines);
+        tree.put(path, insertText(lines));
+      }
+      if (random.nextDouble() < renameRate) {
+        rename();
+      }
+      if (!binaryFiles.isEmpty() && random.nextInt(20) == 0) {
+        tree.put(binaryFiles.get(random.nextInt(binaryFiles.size())), inserter.insert(Constants.OBJ_BLOB, binaryContent()));
+      }
+    }
+
+    private void edit(List<String> lines) {
+      int edits = 1 + random.nextInt(3);
+      for (int e = 0; e < edits; e++) {
+        int operation = random.nextInt(3);
+        if (operation == 0 && lines.size() > 1) {
+          lines.remove(random.nextInt(lines.size()));
+        } else if (operation == 1 || lines.isEmpty()) {
+          lines.add(random.nextInt(lines.size() + 1), line());
+        } else {
+          lines.set(random.nextInt(lines.size()), line());
+        }
+      }
+    }
+
+    private void rename() {
+      int index = random.nextInt(textFiles.size());
+      String from = textFiles.get(index);
+      String to = String.format("src/module%d/pkg%d/Renamed%d.java", random.nextInt(Math.max(1, fileCount / (FILES_PER_DIRECTORY * 10))),
+        random.nextInt(10), renamed++);
+      tree.put(to, tree.remove(from));
+      textFiles.set(index, to);
+    }
+
+    /**
+     * Most changes are made on the most recently added files
+     */
+    private int pickRecent(int size) {
+      return size - 1 - (int) (size * Math.pow(random.nextDouble(), 3));
+    }
+
+    private ObjectId insertText(List<String> lines) throws IOException {
+      StringBuilder sb = new StringBuilder();
+      for (String line : lines) {
+        sb.append(line).append('\n');
+      }
+      return inserter.insert(Constants.OBJ_BLOB, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private byte[] binaryContent() {
+      byte[] content = new byte[1024 + random.nextInt(8 * 1024)];
+      random.nextBytes(content);
+      content[0] = 0;
+      return content;
+    }
+
+    private String line() {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      switch (random.nextInt(4)) {
+        case 0:
+          return "    int " + word + random.nextInt(1000) + " = " + random.nextInt(100_000) + ";";
+        case 1:
+          return "    " + word + ".update(" + WORDS[random.nextInt(WORDS.length)] + ");";
+        case 2:
+          return "    // " + word + " " + WORDS[random.nextInt(WORDS.length)] + " " + random.nextInt(1000);
+        default:
+          return "";
+      }
+    }
+
+    private ObjectId commit(String message, ObjectId... parents) throws IOException {
+      String author = AUTHORS[random.nextInt(AUTHORS.length)];
+      // one commit per hour
+      PersonIdent ident = new PersonIdent(author, author + "@example.com", START_TIME + (time++) * 3_600_000L, 0);
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(tree.write(inserter));
+      commit.setParentIds(parents);
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage(message);
+      return inserter.insert(commit);
+    }
+
+    @Override
+    public void close() {
+      reader.close();
+      inserter.close();
+    }
+  }
+
+  /**
+   * Tree of the next commit. Only the trees of the directories modified since the previous commit are written again.
+   */
+  private static class Tree {
+    /**
+     * Entries of each directory, by name suffixed with '/' for sub-directories, so that they are in git order
+     */
+    private final Map<String, TreeMap<String, ObjectId>> directories = new HashMap<>();
+    private final Map<String, ObjectId> writtenTrees = new HashMap<>();
+    private final Set<String> modified = new HashSet<>();
+
+    Tree() {
+      directories.put("", new TreeMap<>());
+    }
+
+    ObjectId get(String path) {
+      return directories.get(parent(path)).get(name(path));
+    }
+
+    void put(String path, ObjectId blob) {
+      String dir = parent(path);
+      directory(dir).put(name(path), blob);
+      markModified(dir);
+    }
+
+    private TreeMap<String, ObjectId> directory(String dir) {
+      TreeMap<String, ObjectId> entries = directories.get(dir);
+      if (entries == null) {
+        entries = new TreeMap<>();
+        directories.put(dir, entries);
+        directory(parent(dir)).put(name(dir) + "/", ObjectId.zeroId());
+      }
+      return entries;
+    }
+
+    ObjectId remove(String path) {
+      String dir = parent(path);
+      TreeMap<String, ObjectId> entries = directories.get(dir);
+      ObjectId removed = entries.remove(name(path));
+      if (entries.isEmpty() && !dir.isEmpty()) {
+        directories.remove(dir);
+        writtenTrees.remove(dir);
+        remove(dir + "/");
+      }
+      markModified(dir);
+      return removed;
+    }
+
+    private void markModified(String dir) {
+      String d = dir;
+      while (modified.add(d) && !d.isEmpty()) {
+        d = parent(d);
+      }
+    }
+
+    ObjectId write(ObjectInserter inserter) throws IOException {
+      ObjectId id = write("", inserter);
+      modified.clear();
+      return id;
+    }
+
+    private ObjectId write(String dir, ObjectInserter inserter) throws IOException {
+      if (!modified.contains(dir)) {
+        return writtenTrees.get(dir);
+      }
+      TreeFormatter formatter = new TreeFormatter();
+      for (Map.Entry<String, ObjectId> entry : directories.get(dir).entrySet()) {
+        String name = entry.getKey();
+        if (name.endsWith("/")) {
+          String subDir = name.substring(0, name.length() - 1);
+          formatter.append(subDir, FileMode.TREE, write(dir.isEmpty() ? subDir : (dir + "/" + subDir), inserter));
+        } else {
+          formatter.append(name, FileMode.REGULAR_FILE, entry.getValue());
+        }
+      }
+      ObjectId id = inserter.insert(formatter);
+      writtenTrees.put(dir, id);
+      return id;
+    }
+
+    private static String parent(String path) {
+      String p = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+      int slash = p.lastIndexOf('/');
+      return slash < 0 ? "" : p.substring(0, slash);
+    }
+
+    private static String name(String path) {
+      String p = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+      return path.substring(p.lastIndexOf('/') + 1);
+    }
+  }
+
+  public static void main(String[] args) throws IOException, GitAPIException {
+    if (args.length == 0) {
+      System.err.println("Usage: RepositoryGenerator <directory> [files] [commits] [seed]");
+      System.exit(1);
+    }
+    RepositoryGenerator generator = new RepositoryGenerator();
+    if (args.length > 1) {
+      generator.files(Integer.parseInt(args[1]));
+    }
+    if (args.length > 2) {
+      generator.commits(Integer.parseInt(args[2]));
+    }
+    if (args.length > 3) {
+      generator.seed(Long.parseLong(args[3]));
+    }
+    long start = System.currentTimeMillis();
+    SyntheticRepository repository = generator.generate(Paths.get(args[0]));
+    System.out.println("Generated " + repository.files().size() + " text files in " + repository.workTree() + " in " + (System.currentTimeMillis() - start) + "ms");
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git :: Benchmarks
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Repository created by {@link RepositoryGenerator}.
+ */
+class SyntheticRepository {
+
+  private final Path workTree;
+  private final List<String> files;
+  private final List<String> ignoredFiles;
+
+  SyntheticRepository(Path workTree, List<String> files, List<String> ignoredFiles) {
+    this.workTree = workTree;
+    this.files = files;
+    this.ignoredFiles = ignoredFiles;
+  }
+
+  Path workTree() {
+    return workTree;
+  }
+
+  /**
+   * Paths of the text files of HEAD, relative to the work tree
+   */
+  List<String> files() {
+    return files;
+  }
+
+  /**
+   * Paths of the untracked files of ignored directories, relative to the work tree
+   */
+  List<String> ignoredFiles() {
+    return ignoredFiles;
+  }
+
+  static void write(Path file, List<String> lines) throws IOException {
+    Files.createDirectories(file.getParent());
+    Files.write(file, lines, StandardCharsets.UTF_8);
+  }
+
+  static void delete(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+        Files.delete(path);
+      }
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git :: Benchmarks
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RepositoryGeneratorTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void same_parameters_generate_same_history() throws IOException, GitAPIException {
+    assertThat(head(newGenerator().generate(temp.newFolder().toPath())))
+      .isEqualTo(head(newGenerator().generate(temp.newFolder().toPath())));
+  }
+
+  @Test
+  public void different_seeds_generate_different_histories() throws IOException, GitAPIException {
+    assertThat(head(newGenerator().generate(temp.newFolder().toPath())))
+      .isNotEqualTo(head(newGenerator().seed(1).generate(temp.newFolder().toPath())));
+  }
+
+  @Test
+  public void generate_history_with_merges_renames_and_binary_files() throws IOException, GitAPIException {
+    SyntheticRepository repository = newGenerator().generate(temp.newFolder().toPath());
+
+    try (Git git = Git.open(repository.workTree().toFile())) {
+      List<RevCommit> commits = new ArrayList<>();
+      git.log().call().forEach(commits::add);
+      // initial commit, 40 commits and 4 merges
+      assertThat(commits).hasSize(45);
+      assertThat(commits).filteredOn(c -> c.getParentCount() == 2).hasSize(4);
+
+      assertThat(repository.files()).hasSize(200).anyMatch(f -> f.contains("Renamed"));
+      assertThat(repository.files()).allMatch(f -> Files.isRegularFile(repository.workTree().resolve(f)));
+      assertThat(Files.list(repository.workTree().resolve("assets/images"))).hasSize(3);
+      assertThat(git.status().call().isClean()).isTrue();
+      assertThat(repository.ignoredFiles()).hasSize(30).allMatch(f -> Files.isRegularFile(repository.workTree().resolve(f)));
+    }
+  }
+
+  @Test
+  public void trees_are_the_same_as_when_committed_with_git() throws IOException, GitAPIException {
+    SyntheticRepository repository = newGenerator().generate(temp.newFolder().toPath());
+
+    try (Git git = Git.open(repository.workTree().toFile())) {
+      // renames and deletions of directories are reflected in the tree: HEAD tree has the same content as the work tree
+      git.add().addFilepattern(".").call();
+      git.add().setUpdate(true).addFilepattern(".").call();
+      RevCommit commit = git.commit().setMessage("Commit work tree").call();
+      try (RevWalk walk = new RevWalk(git.getRepository()); TreeWalk treeWalk = new TreeWalk(git.getRepository())) {
+        treeWalk.addTree(walk.parseCommit(commit.getParent(0)).getTree());
+        treeWalk.addTree(commit.getTree());
+        treeWalk.setRecursive(true);
+        assertThat(DiffEntry.scan(treeWalk)).isEmpty();
+      }
+    }
+  }
+
+  private static RepositoryGenerator newGenerator() {
+    return new RepositoryGenerator()
+      .files(200)
+      .commits(40)
+      .linesPerFile(20)
+      .renameRate(0.5)
+      .mergeEvery(10)
+      .binaryFiles(3)
+      .ignoredFiles(30);
+  }
+
+  private static ObjectId head(SyntheticRepository repository) throws IOException {
+    try (Git git = Git.open(repository.workTree().toFile())) {
+      return git.getRepository().resolve(Constants.HEAD);
+    }
+  }
+}
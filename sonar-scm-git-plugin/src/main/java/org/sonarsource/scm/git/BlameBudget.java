@@ -0,0 +1,136 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import org.sonar.api.notifications.AnalysisWarnings;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Overall and per-file time budget of a blame. It is checked by the blame of each file between two steps of the
+ * history walk, so that a pathological file is abandoned soon after going over budget instead of delaying the
+ * whole analysis. Files over budget are collected to be reported at the end of the blame.
+ * The same checks stop all blames when the analysis is cancelled.
+ */
+class BlameBudget {
+
+  private static final Logger LOG = Loggers.get(BlameBudget.class);
+  private static final int MAX_REPORTED_FILES = 10;
+
+  private final long start = System.nanoTime();
+  private final long timeoutNanos;
+  private final long fileTimeoutNanos;
+  private final Set<String> overBudgetFiles = ConcurrentHashMap.newKeySet();
+  private volatile boolean cancelled = false;
+
+  BlameBudget(Duration timeout, Duration fileTimeout) {
+    this(toNanos(timeout), toNanos(fileTimeout));
+  }
+
+  private BlameBudget(long timeoutNanos, long fileTimeoutNanos) {
+    this.timeoutNanos = timeoutNanos;
+    this.fileTimeoutNanos = fileTimeoutNanos;
+  }
+
+  private static long toNanos(Duration timeout) {
+    return timeout.isZero() || timeout.isNegative() ? Long.MAX_VALUE : timeout.toNanos();
+  }
+
+  static class StoppedException extends Exception {
+    StoppedException() {
+      super("Blame stopped", null, false, false);
+    }
+  }
+
+  /**
+   * @param fileStart value of {@link System#nanoTime()} when the blame of the file started
+   * @throws StoppedException if the file is over budget, the overall budget is exhausted or the blame is cancelled
+   */
+  void check(long fileStart) throws StoppedException {
+    if (isCancelled() || System.nanoTime() - fileStart > fileTimeoutNanos || isExhausted()) {
+      throw new StoppedException();
+    }
+  }
+
+  /**
+   * Stops all blames at their next check. Files stopped this way are not reported as over budget.
+   */
+  void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * True once {@link #cancel()} was called, or if the current thread is interrupted.
+   */
+  boolean isCancelled() {
+    return cancelled || Thread.currentThread().isInterrupted();
+  }
+
+  boolean isExhausted() {
+    return System.nanoTime() - start > timeoutNanos;
+  }
+
+  /**
+   * Time left before the overall budget is exhausted, {@link Long#MAX_VALUE} if there is no overall budget.
+   */
+  long remainingNanos() {
+    if (timeoutNanos == Long.MAX_VALUE) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, timeoutNanos - (System.nanoTime() - start));
+  }
+
+  /**
+   * Budget of a blame continuing this one, like the JGit fallback of the native blame, limited to the time left.
+   */
+  BlameBudget remaining() {
+    return new BlameBudget(remainingNanos(), fileTimeoutNanos);
+  }
+
+  void overBudget(String file) {
+    if (isCancelled()) {
+      return;
+    }
+    overBudgetFiles.add(file);
+  }
+
+  List<String> overBudgetFiles() {
+    return overBudgetFiles.stream().sorted().collect(Collectors.toList());
+  }
+
+  void report(GitMetrics.Phase phase, AnalysisWarnings analysisWarnings) {
+    List<String> files = overBudgetFiles();
+    if (files.isEmpty()) {
+      return;
+    }
+    phase.add("files over budget", files.size());
+    String examples = files.stream().limit(MAX_REPORTED_FILES).collect(Collectors.joining(", "));
+    LOG.warn("Blame was stopped for {} file(s) because it exceeded its time budget ({}{}). Their SCM information is approximated or missing. "
+      + "Budgets can be changed with {} and {}.",
+      files.size(), examples, files.size() > MAX_REPORTED_FILES ? ", ..." : "", GitSettings.BLAME_FILE_TIMEOUT_PROPERTY, GitSettings.BLAME_TIMEOUT_PROPERTY);
+    analysisWarnings.addUnique("Git blame exceeded its time budget for " + files.size() + " file(s). "
+      + "SCM information of these files is approximated or missing, see the analysis logs for details.");
+  }
+}
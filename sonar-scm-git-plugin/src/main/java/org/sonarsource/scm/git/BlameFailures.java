@@ -0,0 +1,83 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.PackInvalidException;
+import org.eclipse.jgit.errors.PackMismatchException;
+import org.sonar.api.notifications.AnalysisWarnings;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Files that could not be blamed. A failure only loses the SCM information of its file: it is collected here and
+ * all failures are reported together at the end of the blame.
+ */
+class BlameFailures {
+
+  private static final Logger LOG = Loggers.get(BlameFailures.class);
+  private static final int MAX_REPORTED_FILES = 10;
+
+  private final Map<String, String> failures = new TreeMap<>();
+
+  /**
+   * Errors that may not happen again when reading the same objects, typically because packs were being rewritten
+   * by a concurrent gc or repack.
+   */
+  static boolean isTransient(Throwable error) {
+    for (Throwable t = error; t != null; t = t.getCause()) {
+      if (t instanceof MissingObjectException || t instanceof PackInvalidException || t instanceof PackMismatchException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void add(String file, Exception error) {
+    LOG.debug("Unable to blame file " + file, error);
+    synchronized (failures) {
+      failures.put(file, String.valueOf(error.getMessage()));
+    }
+  }
+
+  Map<String, String> failures() {
+    synchronized (failures) {
+      return new TreeMap<>(failures);
+    }
+  }
+
+  void report(GitMetrics.Phase phase, AnalysisWarnings analysisWarnings) {
+    Map<String, String> files = failures();
+    if (files.isEmpty()) {
+      return;
+    }
+    phase.add("failed files", files.size());
+    String examples = files.entrySet().stream()
+      .limit(MAX_REPORTED_FILES)
+      .map(e -> e.getKey() + " (" + e.getValue() + ")")
+      .collect(Collectors.joining(", "));
+    LOG.warn("Unable to blame {} file(s): {}{}. Enable debug logs for details.", files.size(), examples, files.size() > MAX_REPORTED_FILES ? ", ..." : "");
+    analysisWarnings.addUnique("Git blame failed for " + files.size() + " file(s). "
+      + "SCM information of these files is missing, see the analysis logs for details.");
+  }
+}
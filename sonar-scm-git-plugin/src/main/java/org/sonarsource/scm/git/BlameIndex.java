@@ -0,0 +1,566 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.HistogramDiff;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Blames of files at a given commit, kept from one analysis to the next. When HEAD moves, the index is moved along the
+ * first parents of HEAD by applying the diff of each commit, like the blame would: lines matched with the parent keep
+ * their commit, others are attributed to the commit. Files modified by a merge, deleted or renamed are dropped from
+ * the index, and blamed again when needed. When the commit of the index is not a first parent of HEAD, like after a
+ * force push, the index is emptied.
+ * <p>
+ * The index is a log of records. Each save appends the commits and the files changed since the previous save, followed
+ * by the commit the index is at. Records after the last commit are ignored, so an interrupted save has no effect.
+ * The log is rewritten when most of its records are obsolete. Lines of a file are stored as runs of lines attributed
+ * to the same commit, along with the blob they are the blame of.
+ * <p>
+ * Saves of concurrent analyses are serialized by a lock file. Each rewrite renumbers commits and changes the generation
+ * in the header, so an analysis which loaded a previous generation rewrites the log rather than appending records
+ * numbered against it.
+ */
+class BlameIndex {
+
+  private static final Logger LOG = Loggers.get(BlameIndex.class);
+
+  static final String DEFAULT_FILE = "sonar/blame.idx";
+  static final int MAGIC = 0x53514249;
+  static final int VERSION = 2;
+  static final int MAX_ADVANCED_COMMITS = 10_000;
+  private static final int HEADER_SIZE = 16;
+  private static final int COMMIT = 1;
+  private static final int FILE = 2;
+  private static final int REMOVE = 3;
+  private static final int HEAD = 4;
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final Path file;
+  private final Path lockFile;
+  private final List<IndexedCommit> commits = new ArrayList<>();
+  private final Map<ObjectId, Integer> commitIndexes = new HashMap<>();
+  private final Map<String, IndexedFile> filesByPath = new HashMap<>();
+  private final Set<String> changedPaths = new HashSet<>();
+  private long generation;
+  private ObjectId head;
+  private ObjectId savedHead;
+  private int savedCommits;
+  private long savedLength;
+  private int records;
+  private boolean rewrite;
+  private int hits;
+  private int misses;
+
+  private BlameIndex(Path file) {
+    this.file = file;
+    this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+  }
+
+  static BlameIndex load(Path file) throws IOException {
+    BlameIndex index = new BlameIndex(file);
+    if (Files.exists(file)) {
+      index.read(Files.readAllBytes(file));
+    }
+    return index;
+  }
+
+  private void read(byte[] bytes) {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    List<IndexedCommit> pendingCommits = new ArrayList<>();
+    Map<String, IndexedFile> pendingFiles = new HashMap<>();
+    int pendingRecords = 0;
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        LOG.debug("Blame index {} has an unknown format, it is rebuilt", file);
+        rewrite = true;
+        return;
+      }
+      generation = in.readLong();
+      savedLength = HEADER_SIZE;
+      int tag;
+      while ((tag = in.read()) != -1) {
+        switch (tag) {
+          case COMMIT:
+            pendingCommits.add(new IndexedCommit(readId(in), in.readLong(), in.readUTF()));
+            break;
+          case FILE:
+            pendingFiles.put(in.readUTF(), new IndexedFile(readId(in), readRuns(in, commits.size() + pendingCommits.size())));
+            pendingRecords++;
+            break;
+          case REMOVE:
+            pendingFiles.put(in.readUTF(), null);
+            pendingRecords++;
+            break;
+          case HEAD:
+            head = readId(in);
+            pendingCommits.forEach(this::addCommit);
+            pendingFiles.forEach((path, indexedFile) -> {
+              if (indexedFile == null) {
+                filesByPath.remove(path);
+              } else {
+                filesByPath.put(path, indexedFile);
+              }
+            });
+            records += pendingRecords;
+            pendingCommits.clear();
+            pendingFiles.clear();
+            pendingRecords = 0;
+            savedLength = bytes.length - (long) in.available();
+            break;
+          default:
+            throw new IOException("Unknown record " + tag);
+        }
+      }
+    } catch (IOException e) {
+      // an interrupted save, or a corrupted log: what was read until the last commit is kept
+      LOG.debug("Blame index {} is truncated after {} bytes", file, savedLength);
+    }
+    savedHead = head;
+    savedCommits = commits.size();
+  }
+
+  private static ObjectId readId(DataInputStream in) throws IOException {
+    byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+    in.readFully(id);
+    return ObjectId.fromRaw(id);
+  }
+
+  private static int[] readRuns(DataInputStream in, int commitCount) throws IOException {
+    int[] runs = new int[2 * in.readInt()];
+    for (int i = 0; i < runs.length; i += 2) {
+      runs[i] = in.readInt();
+      runs[i + 1] = in.readInt();
+      if (runs[i] < 0 || runs[i] >= commitCount || runs[i + 1] <= 0) {
+        throw new IOException("Invalid run");
+      }
+    }
+    return runs;
+  }
+
+  /**
+   * Moves the index to the given commit.
+   *
+   * @return number of commits applied to the index
+   */
+  synchronized int advanceTo(Repository repo, ObjectId commitId) throws IOException {
+    if (head == null || head.equals(commitId)) {
+      head = commitId.copy();
+      return 0;
+    }
+    try (RevWalk walk = new RevWalk(repo)) {
+      List<RevCommit> commitsToApply = firstParentsUntil(walk, walk.parseCommit(commitId), head);
+      if (commitsToApply == null) {
+        LOG.debug("Blame index is at commit {}, which is not a first parent of {}, it is rebuilt", head.name(), commitId.name());
+        clear();
+      } else {
+        Collections.reverse(commitsToApply);
+        try (ObjectReader reader = repo.newObjectReader()) {
+          for (RevCommit commit : commitsToApply) {
+            apply(repo, reader, walk, commit);
+          }
+        }
+      }
+      head = commitId.copy();
+      return commitsToApply == null ? 0 : commitsToApply.size();
+    }
+  }
+
+  @CheckForNull
+  private static List<RevCommit> firstParentsUntil(RevWalk walk, RevCommit start, ObjectId ancestorId) throws IOException {
+    RevCommit ancestor;
+    try {
+      ancestor = walk.parseCommit(ancestorId);
+    } catch (IOException e) {
+      // garbage collected
+      return null;
+    }
+    List<RevCommit> firstParents = new ArrayList<>();
+    RevCommit commit = start;
+    while (!commit.equals(ancestor)) {
+      if (commit.getParentCount() == 0 || firstParents.size() == MAX_ADVANCED_COMMITS || commit.getCommitTime() < ancestor.getCommitTime()) {
+        return null;
+      }
+      firstParents.add(commit);
+      commit = walk.parseCommit(commit.getParent(0));
+    }
+    return firstParents;
+  }
+
+  private void apply(Repository repo, ObjectReader reader, RevWalk walk, RevCommit commit) throws IOException {
+    if (filesByPath.isEmpty()) {
+      return;
+    }
+    try (TreeWalk treeWalk = new TreeWalk(repo, reader)) {
+      treeWalk.addTree(walk.parseCommit(commit.getParent(0)).getTree());
+      treeWalk.addTree(commit.getTree());
+      treeWalk.setRecursive(true);
+      treeWalk.setFilter(TreeFilter.ANY_DIFF);
+      while (treeWalk.next()) {
+        String path = treeWalk.getPathString();
+        IndexedFile indexedFile = filesByPath.get(path);
+        if (indexedFile == null) {
+          continue;
+        }
+        IndexedFile updated = null;
+        if (commit.getParentCount() == 1 && (treeWalk.getRawMode(1) & FileMode.TYPE_MASK) == FileMode.TYPE_FILE
+          && indexedFile.blob.equals(treeWalk.getObjectId(0))) {
+          int[] runs = applyDiff(indexedFile.runs, new RawText(reader.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB).getCachedBytes()),
+            new RawText(reader.open(treeWalk.getObjectId(1), Constants.OBJ_BLOB).getCachedBytes()), commit);
+          updated = runs == null ? null : new IndexedFile(treeWalk.getObjectId(1), runs);
+        }
+        setFile(path, updated);
+      }
+    }
+  }
+
+  /**
+   * Same diff as the blame, which ignores whitespaces.
+   */
+  @CheckForNull
+  private int[] applyDiff(int[] runs, RawText parentText, RawText text, RevCommit commit) {
+    int[] parentLines = toLines(runs);
+    if (parentLines.length != parentText.size()) {
+      return null;
+    }
+    int[] lines = new int[text.size()];
+    int a = 0;
+    int b = 0;
+    for (Edit edit : new HistogramDiff().diff(RawTextComparator.WS_IGNORE_ALL, parentText, text)) {
+      while (b < edit.getBeginB()) {
+        lines[b++] = parentLines[a++];
+      }
+      if (b < edit.getEndB()) {
+        int commitIndex = addCommit(new IndexedCommit(commit, commit.getCommitterIdent().getWhen().getTime(), commit.getAuthorIdent().getEmailAddress()));
+        Arrays.fill(lines, b, edit.getEndB(), commitIndex);
+        b = edit.getEndB();
+      }
+      a = edit.getEndA();
+    }
+    while (b < lines.length) {
+      lines[b++] = parentLines[a++];
+    }
+    return toRuns(lines);
+  }
+
+  /**
+   * Blame of the file, if it is indexed for the given blob. It only applies to the file in the work tree if the file
+   * has no uncommitted changes.
+   *
+   * @param blob id of the blob of the file in HEAD
+   */
+  @CheckForNull
+  synchronized List<BlameLine> get(String path, ObjectId blob) {
+    IndexedFile indexedFile = filesByPath.get(path);
+    if (indexedFile == null || !indexedFile.blob.equals(blob)) {
+      misses++;
+      return null;
+    }
+    hits++;
+    int[] runs = indexedFile.runs;
+    List<BlameLine> lines = new ArrayList<>();
+    for (int i = 0; i < runs.length; i += 2) {
+      lines.addAll(Collections.nCopies(runs[i + 1], commits.get(runs[i]).line));
+    }
+    return lines;
+  }
+
+  /**
+   * Indexes the blame of the file at the commit of the index.
+   *
+   * @param blob id of the blob of the file in HEAD
+   */
+  synchronized void put(String path, ObjectId blob, List<BlameLine> lines) {
+    int[] commitIndexes = new int[lines.size()];
+    for (int i = 0; i < commitIndexes.length; i++) {
+      BlameLine line = lines.get(i);
+      commitIndexes[i] = addCommit(new IndexedCommit(ObjectId.fromString(line.revision()), line.date().getTime(), line.author()));
+    }
+    setFile(path, new IndexedFile(blob, toRuns(commitIndexes)));
+  }
+
+  synchronized int hits() {
+    return hits;
+  }
+
+  synchronized int misses() {
+    return misses;
+  }
+
+  synchronized int size() {
+    return filesByPath.size();
+  }
+
+  /**
+   * Appends the changes since the index was loaded or saved, or rewrites the index if most of its records would be
+   * obsolete or if another analysis rewrote it. Concurrent analyses of the same repository don't wait for each other:
+   * only one saves the index.
+   */
+  synchronized void save() throws IOException {
+    if (head == null || (head.equals(savedHead) && changedPaths.isEmpty() && !rewrite)) {
+      return;
+    }
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE); FileLock lock = tryLock(lockChannel)) {
+      if (lock == null) {
+        LOG.debug("Blame index {} is being saved by another analysis", file);
+        return;
+      }
+      if (rewrite || savedLength == 0 || records + changedPaths.size() > 2 * filesByPath.size() || !append()) {
+        rewrite();
+      }
+    }
+  }
+
+  @CheckForNull
+  private static FileLock tryLock(FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      // held by another analysis of this JVM
+      return null;
+    }
+  }
+
+  /**
+   * @return false if the log is not the one which was loaded or saved
+   */
+  private boolean append() throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header) != -1) {
+        // read the whole header
+      }
+      header.flip();
+      if (channel.size() < savedLength || header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION
+        || header.getLong() != generation) {
+        LOG.debug("Blame index {} was rewritten by another analysis", file);
+        return false;
+      }
+      channel.truncate(savedLength);
+      channel.position(savedLength);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      writeRecords(out, savedCommits, changedPaths);
+      out.flush();
+      savedLength = channel.size();
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    records += changedPaths.size();
+    markSaved();
+    return true;
+  }
+
+  /**
+   * Writes the referenced commits and all the files to a new log, renumbering commits.
+   */
+  private void rewrite() throws IOException {
+    int[] newIndexes = new int[commits.size()];
+    Arrays.fill(newIndexes, -1);
+    List<IndexedCommit> referenced = new ArrayList<>();
+    for (IndexedFile indexedFile : filesByPath.values()) {
+      int[] runs = indexedFile.runs;
+      for (int i = 0; i < runs.length; i += 2) {
+        if (newIndexes[runs[i]] == -1) {
+          newIndexes[runs[i]] = referenced.size();
+          referenced.add(commits.get(runs[i]));
+        }
+        runs[i] = newIndexes[runs[i]];
+      }
+    }
+    commits.clear();
+    commitIndexes.clear();
+    referenced.forEach(this::addCommit);
+
+    long newGeneration = RANDOM.nextLong();
+    Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), "blame", ".tmp");
+    try {
+      try (OutputStream stream = Files.newOutputStream(tmp); DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(newGeneration);
+        writeRecords(out, 0, filesByPath.keySet());
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    generation = newGeneration;
+    savedLength = Files.size(file);
+    records = filesByPath.size();
+    rewrite = false;
+    markSaved();
+  }
+
+  private void writeRecords(DataOutputStream out, int fromCommit, Set<String> paths) throws IOException {
+    for (IndexedCommit commit : commits.subList(fromCommit, commits.size())) {
+      out.writeByte(COMMIT);
+      writeId(out, commit.id);
+      out.writeLong(commit.line.date().getTime());
+      out.writeUTF(commit.line.author());
+    }
+    for (String path : paths) {
+      IndexedFile indexedFile = filesByPath.get(path);
+      if (indexedFile == null) {
+        out.writeByte(REMOVE);
+        out.writeUTF(path);
+      } else {
+        out.writeByte(FILE);
+        out.writeUTF(path);
+        writeId(out, indexedFile.blob);
+        out.writeInt(indexedFile.runs.length / 2);
+        for (int run : indexedFile.runs) {
+          out.writeInt(run);
+        }
+      }
+    }
+    out.writeByte(HEAD);
+    writeId(out, head);
+  }
+
+  private static void writeId(DataOutputStream out, ObjectId id) throws IOException {
+    byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+    id.copyRawTo(raw, 0);
+    out.write(raw);
+  }
+
+  private void markSaved() {
+    savedHead = head;
+    savedCommits = commits.size();
+    changedPaths.clear();
+  }
+
+  private void clear() {
+    filesByPath.clear();
+    commits.clear();
+    commitIndexes.clear();
+    changedPaths.clear();
+    rewrite = true;
+  }
+
+  private void setFile(String path, @CheckForNull IndexedFile indexedFile) {
+    if (indexedFile == null) {
+      filesByPath.remove(path);
+    } else {
+      filesByPath.put(path, indexedFile);
+    }
+    changedPaths.add(path);
+  }
+
+  private int addCommit(IndexedCommit commit) {
+    return commitIndexes.computeIfAbsent(commit.id, id -> {
+      commits.add(commit);
+      return commits.size() - 1;
+    });
+  }
+
+  private static int[] toLines(int[] runs) {
+    int count = 0;
+    for (int i = 1; i < runs.length; i += 2) {
+      count += runs[i];
+    }
+    int[] lines = new int[count];
+    int line = 0;
+    for (int i = 0; i < runs.length; i += 2) {
+      Arrays.fill(lines, line, line + runs[i + 1], runs[i]);
+      line += runs[i + 1];
+    }
+    return lines;
+  }
+
+  private static int[] toRuns(int[] lines) {
+    int[] runs = new int[2 * lines.length];
+    int size = 0;
+    for (int i = 0; i < lines.length; i++) {
+      if (size > 0 && runs[size - 2] == lines[i]) {
+        runs[size - 1]++;
+      } else {
+        runs[size++] = lines[i];
+        runs[size++] = 1;
+      }
+    }
+    return Arrays.copyOf(runs, size);
+  }
+
+  private static class IndexedFile {
+    private final ObjectId blob;
+    /**
+     * Pairs of commit index and number of lines
+     */
+    private final int[] runs;
+
+    private IndexedFile(ObjectId blob, int[] runs) {
+      this.blob = blob.copy();
+      this.runs = runs;
+    }
+  }
+
+  private static class IndexedCommit {
+    private final ObjectId id;
+    private final BlameLine line;
+
+    private IndexedCommit(ObjectId id, long date, String author) {
+      this.id = id.copy();
+      this.line = new BlameLine().revision(id.name()).date(new Date(date)).author(author);
+    }
+  }
+}
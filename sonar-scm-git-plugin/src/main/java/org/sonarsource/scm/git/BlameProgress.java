@@ -0,0 +1,96 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Periodically logs how many files were blamed, the throughput and the estimated remaining time, so that a slow blame
+ * can be told apart from a stuck one. Workers only update atomic counters, logging is done by a dedicated thread.
+ */
+class BlameProgress implements AutoCloseable {
+
+  private static final Logger LOG = Loggers.get(BlameProgress.class);
+
+  private final int totalFiles;
+  private final long start = System.nanoTime();
+  private final AtomicInteger filesDone = new AtomicInteger();
+  private final AtomicLong linesDone = new AtomicLong();
+  @CheckForNull
+  private final ScheduledExecutorService scheduler;
+
+  BlameProgress(int totalFiles, Duration interval) {
+    this.totalFiles = totalFiles;
+    if (interval.isZero() || interval.isNegative()) {
+      scheduler = null;
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "git-blame-progress");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long intervalMs = interval.toMillis();
+    scheduler.scheduleAtFixedRate(this::log, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  void fileDone() {
+    filesDone.incrementAndGet();
+  }
+
+  void addLines(int lines) {
+    linesDone.addAndGet(lines);
+  }
+
+  void log() {
+    int done = filesDone.get();
+    long elapsedNanos = System.nanoTime() - start;
+    long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+    long linesPerSecond = linesDone.get() * 1000 / elapsedMs;
+    String eta = done == 0 ? "unknown" : formatDuration(elapsedMs * (totalFiles - done) / done);
+    LOG.info("{}/{} files blamed, {} lines/s, estimated time remaining: {}", done, totalFiles, linesPerSecond, eta);
+  }
+
+  static String formatDuration(long ms) {
+    long seconds = TimeUnit.MILLISECONDS.toSeconds(ms);
+    if (seconds < 60) {
+      return seconds + "s";
+    }
+    if (seconds < 3600) {
+      return (seconds / 60) + "m " + (seconds % 60) + "s";
+    }
+    return (seconds / 3600) + "h " + (seconds % 3600 / 60) + "m";
+  }
+
+  @Override
+  public void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+}
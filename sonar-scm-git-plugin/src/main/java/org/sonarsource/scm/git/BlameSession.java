@@ -0,0 +1,160 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * What the blames of the modules of a project share when they are in the same repository: the repository, with its
+ * caches of refs, packs and attributes, the workers, and what is computed once per analysis, like the merge base of a
+ * pull request or the update of the blame index.
+ */
+class BlameSession implements AutoCloseable {
+
+  private static final Logger LOG = Loggers.get(BlameSession.class);
+
+  private final Repository repo;
+  private final Git git;
+  private final boolean invalidClone;
+  private final GitAttributes gitAttributes;
+  private final WorkTreeBlobs workTreeBlobs;
+  private final PullRequestBlame pullRequestBlame;
+  private final BlameIndex blameIndex;
+  private final PartialClone partialClone;
+  private final ForkJoinPool forkJoinPool;
+  private long reportedAttributesCacheHits;
+  private long reportedAttributesCacheMisses;
+  private int reportedIndexHits;
+  private int reportedIndexMisses;
+
+  BlameSession(Repository repo, boolean invalidClone, @Nullable GitAttributes gitAttributes, @Nullable WorkTreeBlobs workTreeBlobs,
+    @Nullable PullRequestBlame pullRequestBlame, @Nullable BlameIndex blameIndex, @Nullable PartialClone partialClone) {
+    this.repo = repo;
+    this.git = Git.wrap(repo);
+    this.invalidClone = invalidClone;
+    this.gitAttributes = gitAttributes;
+    this.workTreeBlobs = workTreeBlobs;
+    this.pullRequestBlame = pullRequestBlame;
+    this.blameIndex = blameIndex;
+    this.partialClone = partialClone;
+    this.forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), new GitThreadFactory(), null, false);
+  }
+
+  Git git() {
+    return git;
+  }
+
+  File workTree() {
+    return repo.getWorkTree();
+  }
+
+  /**
+   * Shallow clones can't be blamed
+   */
+  boolean isInvalidClone() {
+    return invalidClone;
+  }
+
+  /**
+   * Only null for invalid clones
+   */
+  GitAttributes gitAttributes() {
+    return gitAttributes;
+  }
+
+  /**
+   * Only null for invalid clones
+   */
+  WorkTreeBlobs workTreeBlobs() {
+    return workTreeBlobs;
+  }
+
+  @CheckForNull
+  PullRequestBlame pullRequestBlame() {
+    return pullRequestBlame;
+  }
+
+  @CheckForNull
+  BlameIndex blameIndex() {
+    return blameIndex;
+  }
+
+  /**
+   * Null unless the repository is a partial clone
+   */
+  @CheckForNull
+  PartialClone partialClone() {
+    return partialClone;
+  }
+
+  ForkJoinPool forkJoinPool() {
+    return forkJoinPool;
+  }
+
+  /**
+   * Adds the counters of the shared caches since the previous report to the phase.
+   */
+  synchronized void report(GitMetrics.Phase phase) {
+    if (pullRequestBlame != null) {
+      pullRequestBlame.report(phase);
+    }
+    if (blameIndex != null) {
+      phase.add("index hits", blameIndex.hits() - reportedIndexHits);
+      phase.add("index misses", blameIndex.misses() - reportedIndexMisses);
+      phase.add("indexed files", blameIndex.size());
+      reportedIndexHits = blameIndex.hits();
+      reportedIndexMisses = blameIndex.misses();
+    }
+    phase.add("attributes cache hits", gitAttributes.cacheHits() - reportedAttributesCacheHits);
+    phase.add("attributes cache misses", gitAttributes.cacheMisses() - reportedAttributesCacheMisses);
+    reportedAttributesCacheHits = gitAttributes.cacheHits();
+    reportedAttributesCacheMisses = gitAttributes.cacheMisses();
+  }
+
+  /**
+   * Interrupts the workers, then waits a bit for them to release the repository before it is closed.
+   */
+  void close(long gracePeriodSeconds) {
+    forkJoinPool.shutdownNow();
+    try {
+      if (!forkJoinPool.awaitTermination(gracePeriodSeconds, TimeUnit.SECONDS)) {
+        LOG.debug("Git blame workers did not stop within {} seconds", gracePeriodSeconds);
+      }
+    } catch (InterruptedException e) {
+      // interrupted again, stop waiting
+      Thread.currentThread().interrupt();
+    }
+    repo.close();
+  }
+
+  @Override
+  public void close() {
+    forkJoinPool.shutdown();
+    repo.close();
+  }
+}
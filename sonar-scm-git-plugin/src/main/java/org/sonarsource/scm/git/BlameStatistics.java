@@ -0,0 +1,117 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Distribution of the time spent blaming each file, and of the number of commits its lines come from, with the
+ * slowest files. Helps finding the files that should be excluded or handled specially.
+ */
+class BlameStatistics {
+
+  private static final Logger LOG = Loggers.get(BlameStatistics.class);
+  private static final Comparator<FileBlame> BY_DURATION = Comparator.comparingLong(f -> f.durationNanos);
+
+  private final Histogram durationsMicros = new Histogram();
+  private final Histogram commits = new Histogram();
+  private final int slowestFilesCount;
+  // the fastest of the slowest files is at the head, to be replaced by a slower file
+  private final PriorityQueue<FileBlame> slowestFiles = new PriorityQueue<>(BY_DURATION);
+
+  BlameStatistics(int slowestFilesCount) {
+    this.slowestFilesCount = slowestFilesCount;
+  }
+
+  void record(String file, long durationNanos, int commitCount) {
+    durationsMicros.record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+    commits.record(commitCount);
+    if (slowestFilesCount <= 0) {
+      return;
+    }
+    synchronized (slowestFiles) {
+      if (slowestFiles.size() < slowestFilesCount) {
+        slowestFiles.add(new FileBlame(file, durationNanos, commitCount));
+      } else if (slowestFiles.peek().durationNanos < durationNanos) {
+        slowestFiles.poll();
+        slowestFiles.add(new FileBlame(file, durationNanos, commitCount));
+      }
+    }
+  }
+
+  /**
+   * Slowest files first
+   */
+  List<FileBlame> slowestFiles() {
+    synchronized (slowestFiles) {
+      List<FileBlame> files = new ArrayList<>(slowestFiles);
+      files.sort(BY_DURATION.reversed());
+      return files;
+    }
+  }
+
+  void report(GitMetrics.Phase phase) {
+    if (durationsMicros.count() == 0) {
+      return;
+    }
+    phase.add("file p50 ms", toMillis(durationsMicros.percentile(50)));
+    phase.add("file p95 ms", toMillis(durationsMicros.percentile(95)));
+    phase.add("file p99 ms", toMillis(durationsMicros.percentile(99)));
+    phase.add("file max ms", toMillis(durationsMicros.max()));
+    phase.add("file commits p50", commits.percentile(50));
+    phase.add("file commits p99", commits.percentile(99));
+    List<FileBlame> files = slowestFiles();
+    if (!files.isEmpty()) {
+      LOG.info("Slowest files to blame: {}", files.stream().map(FileBlame::toString).collect(Collectors.joining(", ")));
+    }
+  }
+
+  private static long toMillis(long micros) {
+    return TimeUnit.MICROSECONDS.toMillis(micros);
+  }
+
+  static class FileBlame {
+    private final String file;
+    private final long durationNanos;
+    private final int commitCount;
+
+    private FileBlame(String file, long durationNanos, int commitCount) {
+      this.file = file;
+      this.durationNanos = durationNanos;
+      this.commitCount = commitCount;
+    }
+
+    String file() {
+      return file;
+    }
+
+    @Override
+    public String toString() {
+      return file + " (" + TimeUnit.NANOSECONDS.toMillis(durationNanos) + " ms, " + commitCount + (commitCount == 1 ? " commit)" : " commits)");
+    }
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.CheckForNull;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Reads objects with long-lived {@code git cat-file --batch} processes, started on demand up to a maximum and reused
+ * by one thread at a time, for repository formats JGit doesn't support. {@link #read(List, int)} pipelines the
+ * requests of several objects: ids are written in bulk, then the objects are read in the same order. Lookups of
+ * {@link ObjectSource} read one object at a time, one tree per directory level for {@link #findBlob}.
+ */
+class CatFileBatch implements ObjectSource {
+
+  private static final Logger LOG = Loggers.get(CatFileBatch.class);
+  /**
+   * Requests written before reading responses. Kept small enough for the requests to fit in the pipe buffer,
+   * otherwise git could block writing a response while we block writing a request.
+   */
+  static final int PIPELINE_DEPTH = 256;
+
+  private final String executable;
+  private final Path gitDir;
+  private final int maxProcesses;
+  private final BlockingQueue<BatchProcess> idle = new LinkedBlockingQueue<>();
+  private final List<BatchProcess> all = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger started = new AtomicInteger();
+  private volatile boolean closed = false;
+
+  CatFileBatch(String executable, Path gitDir, int maxProcesses) {
+    this.executable = executable;
+    this.gitDir = gitDir;
+    this.maxProcesses = Math.max(1, maxProcesses);
+  }
+
+  @Override
+  public byte[] blob(ObjectId blobId) throws IOException {
+    return read(Collections.singletonList(blobId), Constants.OBJ_BLOB).get(0);
+  }
+
+  @CheckForNull
+  @Override
+  public ObjectId findBlob(RevCommit commit, String path) throws IOException {
+    ObjectId treeId = commit.getTree();
+    String[] names = path.split("/");
+    CanonicalTreeParser parser = new CanonicalTreeParser();
+    for (int i = 0; i < names.length; i++) {
+      parser.reset(read(Collections.singletonList(treeId), Constants.OBJ_TREE).get(0));
+      ObjectId entryId = null;
+      int mode = 0;
+      for (; !parser.eof(); parser.next()) {
+        if (names[i].equals(parser.getEntryPathString())) {
+          entryId = parser.getEntryObjectId();
+          mode = parser.getEntryRawMode();
+          break;
+        }
+      }
+      if (entryId == null) {
+        return null;
+      }
+      boolean last = i == names.length - 1;
+      int type = mode & FileMode.TYPE_MASK;
+      if (last) {
+        return type == FileMode.TYPE_FILE ? entryId : null;
+      }
+      if (type != FileMode.TYPE_TREE) {
+        return null;
+      }
+      treeId = entryId;
+    }
+    return null;
+  }
+
+  /**
+   * Reads objects of the expected type, in the order of the ids.
+   */
+  List<byte[]> read(List<ObjectId> ids, int expectedType) throws IOException {
+    BatchProcess process = acquire();
+    boolean healthy = false;
+    try {
+      List<byte[]> objects = process.read(ids, expectedType);
+      healthy = true;
+      return objects;
+    } finally {
+      release(process, healthy);
+    }
+  }
+
+  private BatchProcess acquire() throws IOException {
+    if (closed) {
+      throw new IOException("git cat-file processes are closed");
+    }
+    BatchProcess process = idle.poll();
+    if (process != null) {
+      return process;
+    }
+    if (started.incrementAndGet() <= maxProcesses) {
+      try {
+        process = new BatchProcess(new ProcessBuilder(executable, "--git-dir=" + gitDir, "cat-file", "--batch").start());
+      } catch (IOException e) {
+        started.decrementAndGet();
+        throw e;
+      }
+      all.add(process);
+      return process;
+    }
+    started.decrementAndGet();
+    try {
+      return idle.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a git cat-file process", e);
+    }
+  }
+
+  /**
+   * A process that failed may be out of sync with its requests, it is not reused.
+   */
+  private void release(BatchProcess process, boolean healthy) {
+    if (healthy && !closed) {
+      idle.add(process);
+    } else {
+      process.destroy();
+      all.remove(process);
+      started.decrementAndGet();
+    }
+  }
+
+  int startedProcesses() {
+    return started.get();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    synchronized (all) {
+      all.forEach(BatchProcess::destroy);
+      all.clear();
+    }
+    idle.clear();
+  }
+
+  private static class BatchProcess {
+    private final Process process;
+    private final OutputStream requests;
+    private final InputStream responses;
+    private final NativeGit.ErrorOutput errors;
+
+    private BatchProcess(Process process) {
+      this.process = process;
+      this.requests = new BufferedOutputStream(process.getOutputStream());
+      this.responses = new BufferedInputStream(process.getInputStream(), 64 * 1024);
+      this.errors = new NativeGit.ErrorOutput(process, "git-cat-file-errors");
+    }
+
+    private List<byte[]> read(List<ObjectId> ids, int expectedType) throws IOException {
+      List<byte[]> objects = new ArrayList<>(ids.size());
+      for (int from = 0; from < ids.size(); from += PIPELINE_DEPTH) {
+        List<ObjectId> chunk = ids.subList(from, Math.min(ids.size(), from + PIPELINE_DEPTH));
+        byte[] request = new byte[Constants.OBJECT_ID_STRING_LENGTH + 1];
+        for (ObjectId id : chunk) {
+          id.copyTo(request, 0);
+          request[Constants.OBJECT_ID_STRING_LENGTH] = '\n';
+          requests.write(request);
+        }
+        requests.flush();
+        for (ObjectId id : chunk) {
+          objects.add(readObject(id, expectedType));
+        }
+      }
+      return objects;
+    }
+
+    private byte[] readObject(ObjectId id, int expectedType) throws IOException {
+      // <id> <type> <size>, or <id> missing
+      String[] header = readLine().split(" ");
+      if (header.length == 2 && "missing".equals(header[1])) {
+        throw new MissingObjectException(id, Constants.typeString(expectedType));
+      }
+      if (header.length != 3 || !id.name().equals(header[0])) {
+        throw new IOException("Unexpected response of git cat-file for " + id.name() + ": " + String.join(" ", header));
+      }
+      if (!Constants.typeString(expectedType).equals(header[1])) {
+        throw new IOException("Object " + id.name() + " is a " + header[1] + ", expected a " + Constants.typeString(expectedType));
+      }
+      int size = Integer.parseInt(header[2]);
+      byte[] content = new byte[size];
+      int offset = 0;
+      while (offset < size) {
+        int read = responses.read(content, offset, size - offset);
+        if (read == -1) {
+          throw new IOException("Unexpected end of git cat-file output");
+        }
+        offset += read;
+      }
+      if (responses.read() != '\n') {
+        throw new IOException("Unexpected git cat-file output after object " + id.name());
+      }
+      return content;
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+      int b;
+      while ((b = responses.read()) != '\n') {
+        if (b == -1) {
+          throw new IOException("Unexpected end of git cat-file output: " + errors.get());
+        }
+        line.write(b);
+      }
+      return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void destroy() {
+      try {
+        requests.close();
+      } catch (IOException e) {
+        LOG.debug("Unable to close git cat-file input", e);
+      }
+      process.destroy();
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.submodule.SubmoduleWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Checked out submodules whose recorded commit moved between the merge base and HEAD of their superproject. The diff
+ * of a superproject only shows a single gitlink for such a submodule: its files have to be diffed in the submodule,
+ * against the commit recorded at the merge base. Nested submodules are found the same way, down to a maximum depth.
+ * Submodules whose gitlink didn't move are not opened at all.
+ */
+final class ChangedSubmodules implements AutoCloseable {
+
+  private static final Logger LOG = Loggers.get(ChangedSubmodules.class);
+
+  @FunctionalInterface
+  interface SubmoduleFunction<T> {
+    T apply(Submodule submodule) throws IOException;
+  }
+
+  static final class Submodule {
+    private final Repository repo;
+    @Nullable
+    private final RevCommit base;
+    private final RevTree headTree;
+
+    private Submodule(Repository repo, @Nullable RevCommit base, RevTree headTree) {
+      this.repo = repo;
+      this.base = base;
+      this.headTree = headTree;
+    }
+
+    Repository repo() {
+      return repo;
+    }
+
+    Path workTree() {
+      return repo.getWorkTree().toPath();
+    }
+
+    /**
+     * Commit recorded by the superproject at its merge base, or null if the submodule was added since then or if the
+     * commit is not available in the submodule. All files of the submodule are then changed.
+     */
+    @CheckForNull
+    RevCommit base() {
+      return base;
+    }
+
+    RevTree headTree() {
+      return headTree;
+    }
+  }
+
+  private final List<Submodule> submodules;
+
+  private ChangedSubmodules(List<Submodule> submodules) {
+    this.submodules = submodules;
+  }
+
+  static ChangedSubmodules find(Repository superproject, RevTree baseTree, RevTree headTree, int maxDepth, GitMetrics.Phase phase) throws IOException {
+    long start = System.nanoTime();
+    List<Submodule> submodules = new ArrayList<>();
+    try {
+      collect(superproject, baseTree, headTree, 1, maxDepth, submodules);
+    } catch (IOException | RuntimeException e) {
+      new ChangedSubmodules(submodules).close();
+      throw e;
+    }
+    phase.addTime("submodules", start);
+    phase.add("submodules", submodules.size());
+    return new ChangedSubmodules(submodules);
+  }
+
+  private static void collect(Repository repo, @Nullable RevTree baseTree, RevTree headTree, int depth, int maxDepth, List<Submodule> submodules)
+    throws IOException {
+    if (depth > maxDepth) {
+      return;
+    }
+    try (TreeWalk walk = new TreeWalk(repo)) {
+      if (baseTree == null) {
+        walk.addTree(new EmptyTreeIterator());
+      } else {
+        walk.addTree(baseTree);
+      }
+      walk.addTree(headTree);
+      walk.setRecursive(true);
+      walk.setFilter(TreeFilter.ANY_DIFF);
+      while (walk.next()) {
+        if (walk.getFileMode(1) == FileMode.GITLINK) {
+          ObjectId recordedBase = walk.getFileMode(0) == FileMode.GITLINK ? walk.getObjectId(0) : null;
+          Submodule submodule = open(repo, walk.getPathString(), recordedBase);
+          if (submodule != null) {
+            submodules.add(submodule);
+            collect(submodule.repo, submodule.base == null ? null : submodule.base.getTree(), submodule.headTree, depth + 1, maxDepth, submodules);
+          }
+        }
+      }
+    }
+  }
+
+  @CheckForNull
+  private static Submodule open(Repository superproject, String path, @Nullable ObjectId recordedBase) throws IOException {
+    Repository repo = SubmoduleWalk.getSubmoduleRepository(superproject, path);
+    if (repo == null) {
+      LOG.debug("Submodule {} is not checked out, its changes are ignored", path);
+      return null;
+    }
+    try (RevWalk walk = new RevWalk(repo)) {
+      Ref head = repo.exactRef("HEAD");
+      if (head == null || head.getObjectId() == null) {
+        repo.close();
+        return null;
+      }
+      RevTree headTree = walk.parseCommit(head.getObjectId()).getTree();
+      RevCommit base = null;
+      if (recordedBase != null) {
+        if (repo.getObjectDatabase().has(recordedBase)) {
+          base = walk.parseCommit(recordedBase);
+        } else {
+          LOG.warn("Commit {} of submodule {} is not available, all its files are considered changed. Please fetch it before the analysis.",
+            recordedBase.getName(), path);
+        }
+      }
+      return new Submodule(repo, base, headTree);
+    } catch (IOException | RuntimeException e) {
+      repo.close();
+      throw e;
+    }
+  }
+
+  List<Submodule> submodules() {
+    return Collections.unmodifiableList(submodules);
+  }
+
+  /**
+   * Deepest submodule containing the given file, if any.
+   */
+  @CheckForNull
+  Submodule owning(Path file) {
+    Submodule owner = null;
+    for (Submodule submodule : submodules) {
+      if (file.startsWith(submodule.workTree()) && (owner == null || submodule.workTree().startsWith(owner.workTree()))) {
+        owner = submodule;
+      }
+    }
+    return owner;
+  }
+
+  /**
+   * Applies the function to all submodules, in parallel. Submodules for which it fails are logged and left out of the
+   * results.
+   */
+  <T> Map<Submodule, T> map(SubmoduleFunction<T> function) throws InterruptedIOException {
+    Map<Submodule, T> results = new ConcurrentHashMap<>();
+    if (submodules.isEmpty()) {
+      return results;
+    }
+    ForkJoinPool forkJoinPool = new ForkJoinPool(Math.min(submodules.size(), Runtime.getRuntime().availableProcessors()), new GitThreadFactory(), null, false);
+    try {
+      forkJoinPool.submit(() -> submodules.parallelStream().forEach(submodule -> {
+        try {
+          results.put(submodule, function.apply(submodule));
+        } catch (Exception e) {
+          LOG.warn("Failed to get changes of submodule " + submodule.workTree(), e);
+        }
+      })).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while getting changes of submodules");
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      forkJoinPool.shutdownNow();
+    }
+    return results;
+  }
+
+  @Override
+  public void close() {
+    submodules.forEach(submodule -> submodule.repo.close());
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.EditList;
+import org.eclipse.jgit.diff.HistogramDiff;
+import org.eclipse.jgit.diff.MyersDiff;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.diff.Sequence;
+import org.eclipse.jgit.diff.SequenceComparator;
+import org.eclipse.jgit.diff.Subsequence;
+import org.eclipse.jgit.diff.SubsequenceComparator;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Picks the diff algorithm of each file, so that the time spent computing changed lines stays bounded on
+ * pathological files:
+ * <ul>
+ *   <li>normal files are diffed with the algorithm configured in git (diff.algorithm), histogram by default</li>
+ *   <li>very large files are diffed with histogram, falling back to Myers only for regions small enough, since its
+ *   cost grows with the size of the region times the number of differences</li>
+ *   <li>bigger regions are matched line by line on their hash, which is linear but may report more changed lines
+ *   than an exact diff</li>
+ * </ul>
+ */
+class DiffStrategy {
+
+  private static final Logger LOG = Loggers.get(DiffStrategy.class);
+
+  private final DiffAlgorithm configuredAlgorithm;
+  private final int largeFileLines;
+  private final int maxMyersRegionLines;
+
+  DiffStrategy(Config config, GitSettings settings) {
+    this.configuredAlgorithm = DiffAlgorithm.getAlgorithm(config.getEnum(
+      ConfigConstants.CONFIG_DIFF_SECTION, null,
+      ConfigConstants.CONFIG_KEY_ALGORITHM,
+      DiffAlgorithm.SupportedAlgorithm.HISTOGRAM));
+    this.largeFileLines = settings.diffLargeFileLines();
+    this.maxMyersRegionLines = settings.diffMaxMyersRegionLines();
+  }
+
+  /**
+   * Whitespaces are ignored, like with git diff -w. Comparing lines ignoring whitespaces is more expensive, so files
+   * are first compared exactly, and only the regions that differ are compared again ignoring whitespaces.
+   */
+  EditList diffIgnoringWhitespaces(String path, RawText a, RawText b) {
+    DiffAlgorithm algorithm;
+    BoundedMyersDiff fallback = null;
+    if (Math.max(a.size(), b.size()) > largeFileLines) {
+      fallback = new BoundedMyersDiff(maxMyersRegionLines);
+      HistogramDiff histogram = new HistogramDiff();
+      histogram.setFallbackAlgorithm(fallback);
+      algorithm = histogram;
+    } else {
+      algorithm = configuredAlgorithm;
+    }
+
+    EditList edits = new EditList();
+    for (Edit edit : algorithm.diff(RawTextComparator.DEFAULT, a, b)) {
+      if (edit.getType() != Edit.Type.REPLACE) {
+        edits.add(edit);
+        continue;
+      }
+      Subsequence<RawText> regionA = Subsequence.a(a, edit);
+      Subsequence<RawText> regionB = Subsequence.b(b, edit);
+      EditList regionEdits = algorithm.diff(new SubsequenceComparator<>(RawTextComparator.WS_IGNORE_ALL), regionA, regionB);
+      edits.addAll(Subsequence.toBase(regionEdits, regionA, regionB));
+    }
+
+    if (fallback != null && fallback.approximatedRegions.get() > 0) {
+      LOG.debug("File {} has {} regions too large to be diffed exactly, their changed lines are approximated", path, fallback.approximatedRegions.get());
+    }
+    return edits;
+  }
+
+  /**
+   * Myers for regions smaller than a cutoff, {@link #lineHashDiff} above it.
+   */
+  static class BoundedMyersDiff extends DiffAlgorithm {
+    private final int maxRegionLines;
+    private final AtomicInteger approximatedRegions = new AtomicInteger();
+
+    BoundedMyersDiff(int maxRegionLines) {
+      this.maxRegionLines = maxRegionLines;
+    }
+
+    @Override
+    public <S extends Sequence> EditList diffNonCommon(SequenceComparator<? super S> cmp, S a, S b) {
+      if (a.size() + b.size() <= maxRegionLines) {
+        return MyersDiff.INSTANCE.diffNonCommon(cmp, a, b);
+      }
+      approximatedRegions.incrementAndGet();
+      return lineHashDiff(cmp, a, b);
+    }
+  }
+
+  /**
+   * Linear approximation of a diff: lines appearing exactly once in both sequences are matched in order, like the
+   * anchors of a patience diff, and each match is extended to the following identical lines. All other lines are
+   * considered changed. The result is a valid edit list, but not necessarily the shortest one.
+   */
+  static <S extends Sequence> EditList lineHashDiff(SequenceComparator<? super S> cmp, S a, S b) {
+    Map<Integer, Integer> uniqueInA = indexUniqueLines(cmp, a);
+    Map<Integer, Integer> uniqueInB = indexUniqueLines(cmp, b);
+
+    EditList edits = new EditList();
+    int nextA = 0;
+    int nextB = 0;
+    int lastMatchedA = -1;
+    int lastMatchedB = -1;
+    for (int j = 0; j < b.size(); j++) {
+      int i = -1;
+      if (lastMatchedB == j - 1 && lastMatchedA + 1 < a.size() && cmp.equals(a, lastMatchedA + 1, b, j)) {
+        i = lastMatchedA + 1;
+      } else {
+        int hash = cmp.hash(b, j);
+        Integer candidate = uniqueInA.get(hash);
+        if (candidate != null && candidate > lastMatchedA && uniqueInB.containsKey(hash) && cmp.equals(a, candidate, b, j)) {
+          i = candidate;
+        }
+      }
+      if (i < 0) {
+        continue;
+      }
+      if (i > nextA || j > nextB) {
+        edits.add(new Edit(nextA, i, nextB, j));
+      }
+      lastMatchedA = i;
+      lastMatchedB = j;
+      nextA = i + 1;
+      nextB = j + 1;
+    }
+    if (nextA < a.size() || nextB < b.size()) {
+      edits.add(new Edit(nextA, a.size(), nextB, b.size()));
+    }
+    return edits;
+  }
+
+  /**
+   * Index of lines by hash, for lines whose hash is unique in the sequence.
+   */
+  private static <S extends Sequence> Map<Integer, Integer> indexUniqueLines(SequenceComparator<? super S> cmp, S s) {
+    Map<Integer, Integer> index = new HashMap<>();
+    for (int i = 0; i < s.size(); i++) {
+      index.merge(cmp.hash(s, i), i, (previous, current) -> -1);
+    }
+    index.values().removeIf(i -> i < 0);
+    return index;
+  }
+}
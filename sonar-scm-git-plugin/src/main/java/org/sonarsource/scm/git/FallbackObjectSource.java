@@ -0,0 +1,122 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.util.function.Supplier;
+import javax.annotation.CheckForNull;
+import org.eclipse.jgit.errors.CorruptPackIndexException;
+import org.eclipse.jgit.errors.NoPackSignatureException;
+import org.eclipse.jgit.errors.UnsupportedPackIndexVersionException;
+import org.eclipse.jgit.errors.UnsupportedPackVersionException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Reads objects with a primary source, and with a fallback source once the primary one failed because it doesn't
+ * support the format of the repository. The fallback source is only created when needed.
+ * <p>
+ * Only the reads of {@link ObjectSource} fall back: the merge base, renames, attributes and trees of HEAD are still
+ * read with JGit, and fail on repositories JGit can't read at all.
+ */
+class FallbackObjectSource implements ObjectSource {
+
+  private static final Logger LOG = Loggers.get(FallbackObjectSource.class);
+
+  private final ObjectSource primary;
+  private final Supplier<ObjectSource> fallbackSupplier;
+  private volatile ObjectSource fallback;
+  private boolean fallbackUnavailable = false;
+
+  /**
+   * @param fallbackSupplier returns null if there is no fallback
+   */
+  FallbackObjectSource(ObjectSource primary, Supplier<ObjectSource> fallbackSupplier) {
+    this.primary = primary;
+    this.fallbackSupplier = fallbackSupplier;
+  }
+
+  static boolean isUnsupportedFormat(Throwable error) {
+    for (Throwable t = error; t != null; t = t.getCause()) {
+      if (t instanceof UnsupportedPackIndexVersionException || t instanceof UnsupportedPackVersionException
+        || t instanceof NoPackSignatureException || t instanceof CorruptPackIndexException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @CheckForNull
+  @Override
+  public ObjectId findBlob(RevCommit commit, String path) throws IOException {
+    ObjectSource current = fallback;
+    if (current == null) {
+      try {
+        return primary.findBlob(commit, path);
+      } catch (IOException e) {
+        current = fallbackFor(e);
+      }
+    }
+    return current.findBlob(commit, path);
+  }
+
+  @Override
+  public byte[] blob(ObjectId blobId) throws IOException {
+    ObjectSource current = fallback;
+    if (current == null) {
+      try {
+        return primary.blob(blobId);
+      } catch (IOException e) {
+        current = fallbackFor(e);
+      }
+    }
+    return current.blob(blobId);
+  }
+
+  private synchronized ObjectSource fallbackFor(IOException error) throws IOException {
+    if (!isUnsupportedFormat(error) || fallbackUnavailable) {
+      throw error;
+    }
+    if (fallback == null) {
+      fallback = fallbackSupplier.get();
+      if (fallback == null) {
+        fallbackUnavailable = true;
+        throw error;
+      }
+      LOG.info("The format of the repository is not supported by JGit, objects are read with git instead: {}", error.getMessage());
+    }
+    return fallback;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      primary.close();
+    } finally {
+      synchronized (this) {
+        if (fallback != null) {
+          fallback.close();
+        }
+      }
+    }
+  }
+}
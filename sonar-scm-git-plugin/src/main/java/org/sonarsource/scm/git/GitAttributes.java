@@ -0,0 +1,152 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import org.eclipse.jgit.attributes.Attribute;
+import org.eclipse.jgit.attributes.Attributes;
+import org.eclipse.jgit.attributes.AttributesNode;
+import org.eclipse.jgit.attributes.AttributesNodeProvider;
+import org.eclipse.jgit.attributes.AttributesRule;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Resolves the .gitattributes of files of the work tree, path by path, without walking the work tree.
+ * Each .gitattributes file is parsed at most once, so that resolving the attributes of many files of the same
+ * directories stays cheap. Instances are thread safe and are meant to live for the duration of an analysis phase,
+ * since .gitattributes files are not expected to change in the meantime.
+ */
+class GitAttributes {
+
+  private static final String BINARY_MACRO = "binary";
+
+  private final Path workTree;
+  @Nullable
+  private final AttributesNode infoNode;
+  @Nullable
+  private final AttributesNode globalNode;
+  private final Map<String, Optional<AttributesNode>> nodesByDirectory = new ConcurrentHashMap<>();
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong cacheMisses = new AtomicLong();
+
+  GitAttributes(Repository repo) throws IOException {
+    this.workTree = repo.getWorkTree().toPath();
+    AttributesNodeProvider provider = repo.createAttributesNodeProvider();
+    this.infoNode = provider.getInfoAttributesNode();
+    this.globalNode = provider.getGlobalAttributesNode();
+  }
+
+  /**
+   * @param gitPath path of a file relative to the root of the work tree, with '/' as separator
+   */
+  Attributes get(String gitPath) {
+    Attributes result = new Attributes();
+    // from highest to lowest precedence, an attribute is only set by the first node defining it
+    merge(infoNode, gitPath, result);
+    int slash = gitPath.lastIndexOf('/');
+    while (slash >= 0) {
+      String directory = gitPath.substring(0, slash);
+      merge(node(directory), gitPath.substring(slash + 1), result);
+      slash = directory.lastIndexOf('/');
+    }
+    merge(node(""), gitPath, result);
+    merge(globalNode, gitPath, result);
+    return result;
+  }
+
+  @Nullable
+  private AttributesNode node(String directory) {
+    Optional<AttributesNode> node = nodesByDirectory.get(directory);
+    if (node != null) {
+      cacheHits.incrementAndGet();
+      return node.orElse(null);
+    }
+    cacheMisses.incrementAndGet();
+    return nodesByDirectory.computeIfAbsent(directory, this::load).orElse(null);
+  }
+
+  /**
+   * Number of lookups of the .gitattributes file of a directory which didn't need to read the file system
+   */
+  long cacheHits() {
+    return cacheHits.get();
+  }
+
+  long cacheMisses() {
+    return cacheMisses.get();
+  }
+
+  private Optional<AttributesNode> load(String directory) {
+    Path file = workTree.resolve(directory).resolve(Constants.DOT_GIT_ATTRIBUTES);
+    if (!Files.isRegularFile(file)) {
+      return Optional.empty();
+    }
+    try (InputStream is = Files.newInputStream(file)) {
+      AttributesNode node = new AttributesNode();
+      node.parse(is);
+      return Optional.of(node);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to read " + file, e);
+    }
+  }
+
+  private static void merge(@Nullable AttributesNode node, String path, Attributes result) {
+    if (node == null) {
+      return;
+    }
+    List<AttributesRule> rules = node.getRules();
+    // last matching rule of a file wins
+    ListIterator<AttributesRule> ruleIt = rules.listIterator(rules.size());
+    while (ruleIt.hasPrevious()) {
+      AttributesRule rule = ruleIt.previous();
+      if (rule.isMatch(path, false)) {
+        List<Attribute> attributes = rule.getAttributes();
+        ListIterator<Attribute> attributeIt = attributes.listIterator(attributes.size());
+        while (attributeIt.hasPrevious()) {
+          put(attributeIt.previous(), result);
+        }
+      }
+    }
+  }
+
+  private static void put(Attribute attribute, Attributes result) {
+    if (result.containsKey(attribute.getKey())) {
+      return;
+    }
+    result.put(attribute);
+    if (BINARY_MACRO.equals(attribute.getKey()) && attribute.getState() == Attribute.State.SET) {
+      put(new Attribute("diff", Attribute.State.UNSET), result);
+      put(new Attribute("merge", Attribute.State.UNSET), result);
+      put(new Attribute("text", Attribute.State.UNSET), result);
+    }
+  }
+}
@@ -29,12 +29,17 @@ import static java.util.Objects.requireNonNull;
 @ScannerSide
 public class GitIgnoreCommand implements IgnoreCommand {
 
+  private final GitMetrics metrics;
   private IncludedFilesRepository includedFilesRepository;
 
+  public GitIgnoreCommand(GitMetrics metrics) {
+    this.metrics = metrics;
+  }
+
   @Override
   public void init(Path baseDir) {
     try {
-      this.includedFilesRepository = new IncludedFilesRepository(baseDir);
+      this.includedFilesRepository = new IncludedFilesRepository(baseDir, metrics);
     } catch (IOException e) {
       throw new IllegalStateException("I/O error while indexing ignored files.", e);
     }
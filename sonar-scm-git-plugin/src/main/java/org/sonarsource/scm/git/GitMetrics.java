@@ -0,0 +1,211 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import org.eclipse.jgit.storage.file.WindowCacheStats;
+import org.sonar.api.scanner.ScannerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.api.utils.text.JsonWriter;
+
+/**
+ * Timings and counters of the operations of the plugin, to find out which one makes an analysis slow.
+ * Each operation is a {@link Phase}, summarized at INFO level when it ends. If enabled, all phases are also exported
+ * as JSON into the work directory of the scanner.
+ */
+@ScannerSide
+public class GitMetrics {
+
+  private static final Logger LOG = Loggers.get(GitMetrics.class);
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  static final String FILES = "files";
+  static final String BYTES_READ = "bytes read";
+  static final String PACK_CACHE_HITS = "pack cache hits";
+  static final String PACK_CACHE_MISSES = "pack cache misses";
+
+  private final GitSettings settings;
+  private final List<Phase> phases = new CopyOnWriteArrayList<>();
+  @Nullable
+  private volatile Path workDir;
+
+  public GitMetrics(GitSettings settings) {
+    this.settings = settings;
+    this.workDir = settings.workDir().orElse(null);
+  }
+
+  Phase start(String name) {
+    return new Phase(name, this);
+  }
+
+  /**
+   * Work directory of the scanner, when it can't be deduced from the settings. Only evaluated if needed.
+   */
+  void setWorkDirIfAbsent(Supplier<Path> workDirSupplier) {
+    if (settings.exportMetrics() && workDir == null) {
+      workDir = workDirSupplier.get();
+    }
+  }
+
+  List<Phase> phases() {
+    return Collections.unmodifiableList(phases);
+  }
+
+  private void end(Phase phase) {
+    phases.add(phase);
+    LOG.info(phase.summary());
+    Path dir = workDir;
+    if (settings.exportMetrics() && dir != null) {
+      export(dir.resolve(GitSettings.METRICS_FILE_NAME));
+    }
+  }
+
+  private synchronized void export(Path file) {
+    try {
+      Files.createDirectories(file.getParent());
+      try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8); JsonWriter json = JsonWriter.of(writer)) {
+        json.beginObject().name("phases").beginArray();
+        for (Phase phase : phases) {
+          json.beginObject()
+            .prop("name", phase.name)
+            .prop("wallTimeMs", phase.wallTimeMs())
+            .prop("cpuTimeMs", phase.cpuTimeMs());
+          json.name("counters").beginObject();
+          phase.counters().forEach(json::prop);
+          json.endObject();
+          json.endObject();
+        }
+        json.endArray().endObject();
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Unable to write git metrics to " + file, e);
+    }
+  }
+
+  /**
+   * CPU time of the current thread, in nanoseconds, or 0 if not supported by the JVM
+   */
+  static long threadCpuTime() {
+    return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0L;
+  }
+
+  /**
+   * An operation, measured from its creation until it is closed. The CPU time is the one of the creating thread,
+   * plus the CPU time reported by worker threads. Counters are thread safe.
+   */
+  static class Phase implements AutoCloseable {
+    private final String name;
+    private final GitMetrics metrics;
+    private final long startNanos = System.nanoTime();
+    private final long startCpuNanos = threadCpuTime();
+    private final AtomicLong workersCpuNanos = new AtomicLong();
+    private final Map<String, AtomicLong> counters = Collections.synchronizedMap(new LinkedHashMap<>());
+    // JGit's cache of pack file windows is shared by the whole JVM, so concurrent operations are also counted
+    private final long startCacheHits = WindowCacheStats.getStats().getHitCount();
+    private final long startCacheMisses = WindowCacheStats.getStats().getMissCount();
+    private long wallNanos;
+    private long cpuNanos;
+
+    private Phase(String name, GitMetrics metrics) {
+      this.name = name;
+      this.metrics = metrics;
+    }
+
+    String name() {
+      return name;
+    }
+
+    void add(String counter, long value) {
+      counters.computeIfAbsent(counter, c -> new AtomicLong()).addAndGet(value);
+    }
+
+    void increment(String counter) {
+      add(counter, 1);
+    }
+
+    /**
+     * Records the time spent in a step of the phase, since the given {@link System#nanoTime()}
+     */
+    void addTime(String step, long startNanos) {
+      add(step + " ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    void addWorkerCpuTime(long nanos) {
+      workersCpuNanos.addAndGet(nanos);
+    }
+
+    long wallTimeMs() {
+      return TimeUnit.NANOSECONDS.toMillis(wallNanos);
+    }
+
+    long cpuTimeMs() {
+      return TimeUnit.NANOSECONDS.toMillis(cpuNanos);
+    }
+
+    Map<String, Long> counters() {
+      synchronized (counters) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        counters.forEach((counter, value) -> values.put(counter, value.get()));
+        return values;
+      }
+    }
+
+    @Override
+    public void close() {
+      wallNanos = System.nanoTime() - startNanos;
+      cpuNanos = threadCpuTime() - startCpuNanos + workersCpuNanos.get();
+      add(PACK_CACHE_HITS, WindowCacheStats.getStats().getHitCount() - startCacheHits);
+      add(PACK_CACHE_MISSES, WindowCacheStats.getStats().getMissCount() - startCacheMisses);
+      metrics.end(this);
+    }
+
+    String summary() {
+      List<String> details = new ArrayList<>();
+      details.add(wallTimeMs() + " ms");
+      details.add("CPU " + cpuTimeMs() + " ms");
+      Map<String, Long> values = counters();
+      values.forEach((counter, value) -> details.add(counter + ": " + value));
+      long hits = values.getOrDefault(PACK_CACHE_HITS, 0L);
+      long requests = hits + values.getOrDefault(PACK_CACHE_MISSES, 0L);
+      if (requests > 0) {
+        details.add("pack cache hit rate: " + (100 * hits / requests) + "%");
+      }
+      return "Git " + name + ": " + details.stream().collect(Collectors.joining(", "));
+    }
+  }
+}
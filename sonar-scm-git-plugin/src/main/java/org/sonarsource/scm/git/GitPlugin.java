@@ -21,14 +21,21 @@ package org.sonarsource.scm.git;
 
 import org.eclipse.jgit.util.FS;
 import org.sonar.api.Plugin;
+import org.sonar.api.SonarQubeSide;
 
 public final class GitPlugin implements Plugin {
   @Override
   public void define(Context context) {
     FS.setAsyncFileStoreAttributes(true);
+    if (context.getRuntime().getSonarQubeSide() == SonarQubeSide.SCANNER) {
+      WindowCacheTuning.install(new GitSettings(context.getBootConfiguration()));
+    }
     context.addExtensions(
       JGitBlameCommand.class,
+      NativeGitBlameCommand.class,
       GitScmProvider.class,
-      GitIgnoreCommand.class);
+      GitIgnoreCommand.class,
+      GitSettings.class,
+      GitMetrics.class);
   }
 }
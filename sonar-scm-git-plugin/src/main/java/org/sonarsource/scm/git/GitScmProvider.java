@@ -20,38 +20,55 @@
 package org.sonarsource.scm.git;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.eclipse.jgit.attributes.Attributes;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.diff.DiffAlgorithm;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffFormatter;
-import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.diff.RawText;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ConfigConstants;
-import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
-import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.sonar.api.batch.scm.BlameCommand;
 import org.sonar.api.batch.scm.ScmProvider;
 import org.sonar.api.notifications.AnalysisWarnings;
@@ -65,15 +82,24 @@ public class GitScmProvider extends ScmProvider {
   private static final Logger LOG = Loggers.get(GitScmProvider.class);
 
   private final JGitBlameCommand jgitBlameCommand;
+  private final NativeGitBlameCommand nativeGitBlameCommand;
   private final AnalysisWarnings analysisWarnings;
   private final GitIgnoreCommand gitIgnoreCommand;
   private final System2 system2;
+  private final GitSettings settings;
+  private final RenameDetection renameDetection;
+  private final GitMetrics metrics;
 
-  public GitScmProvider(JGitBlameCommand jgitBlameCommand, AnalysisWarnings analysisWarnings, GitIgnoreCommand gitIgnoreCommand, System2 system2) {
+  public GitScmProvider(JGitBlameCommand jgitBlameCommand, NativeGitBlameCommand nativeGitBlameCommand, AnalysisWarnings analysisWarnings,
+    GitIgnoreCommand gitIgnoreCommand, System2 system2, GitSettings settings, GitMetrics metrics) {
     this.jgitBlameCommand = jgitBlameCommand;
+    this.nativeGitBlameCommand = nativeGitBlameCommand;
     this.analysisWarnings = analysisWarnings;
     this.gitIgnoreCommand = gitIgnoreCommand;
     this.system2 = system2;
+    this.settings = settings;
+    this.renameDetection = new RenameDetection(settings);
+    this.metrics = metrics;
   }
 
   @Override
@@ -94,13 +120,16 @@ public class GitScmProvider extends ScmProvider {
 
   @Override
   public BlameCommand blameCommand() {
+    if (settings.blameBackend() == GitSettings.Backend.NATIVE) {
+      return this.nativeGitBlameCommand;
+    }
     return this.jgitBlameCommand;
   }
 
   @CheckForNull
   @Override
   public Set<Path> branchChangedFiles(String targetBranchName, Path rootBaseDir) {
-    try (Repository repo = buildRepo(rootBaseDir)) {
+    try (GitMetrics.Phase phase = metrics.start("changed files"); Repository repo = openRepo(rootBaseDir, phase)) {
       Ref targetRef = resolveTargetRef(targetBranchName, repo);
       if (targetRef == null) {
         analysisWarnings.addUnique(String.format("Could not find ref '%s' in refs/heads, refs/remotes/upstream or refs/remotes/origin. "
@@ -115,25 +144,34 @@ public class GitScmProvider extends ScmProvider {
         return null;
       }
 
-      Optional<RevCommit> mergeBaseCommit = findMergeBase(repo, targetRef);
+      Optional<RevCommit> mergeBaseCommit = findMergeBase(repo, targetRef, phase);
       if (!mergeBaseCommit.isPresent()) {
         LOG.warn("No merge base found between HEAD and " + targetRef.getName());
         return null;
       }
       AbstractTreeIterator mergeBaseTree = prepareTreeParser(repo, mergeBaseCommit.get());
+      RevTree headTree = getHeadTree(repo);
 
       // we compare a commit with HEAD, so no point ignoring line endings (it will be whatever is committed)
+      long start = System.nanoTime();
       try (Git git = newGit(repo)) {
         List<DiffEntry> diffEntries = git.diff()
           .setShowNameAndStatusOnly(true)
           .setOldTree(mergeBaseTree)
-          .setNewTree(prepareNewTree(repo))
+          .setNewTree(prepareNewTree(repo, headTree))
           .call();
+        diffEntries = renameDetection.detect(repo, mergeBaseCommit.get().getTree(), headTree, diffEntries);
 
-        return diffEntries.stream()
-          .filter(diffEntry -> diffEntry.getChangeType() == DiffEntry.ChangeType.ADD || diffEntry.getChangeType() == DiffEntry.ChangeType.MODIFY)
+        Set<Path> changedFiles = diffEntries.stream()
+          .filter(GitScmProvider::isAddedOrModified)
           .map(diffEntry -> repo.getWorkTree().toPath().resolve(diffEntry.getNewPath()))
-          .collect(Collectors.toSet());
+          .collect(Collectors.toCollection(HashSet::new));
+        phase.addTime("diff", start);
+        if (settings.submodules()) {
+          changedFiles.addAll(submodulesChangedFiles(repo, mergeBaseCommit.get().getTree(), headTree, phase));
+        }
+        phase.add(GitMetrics.FILES, changedFiles.size());
+        return changedFiles;
       }
     } catch (IOException | GitAPIException e) {
       LOG.warn(e.getMessage(), e);
@@ -144,7 +182,7 @@ public class GitScmProvider extends ScmProvider {
   @CheckForNull
   @Override
   public Map<Path, Set<Integer>> branchChangedLines(String targetBranchName, Path projectBaseDir, Set<Path> changedFiles) {
-    try (Repository repo = buildRepo(projectBaseDir)) {
+    try (GitMetrics.Phase phase = metrics.start("changed lines"); Repository repo = openRepo(projectBaseDir, phase)) {
       Ref targetRef = resolveTargetRef(targetBranchName, repo);
       if (targetRef == null) {
         analysisWarnings.addUnique(String.format("Could not find ref '%s' in refs/heads, refs/remotes/upstream or refs/remotes/origin. "
@@ -158,21 +196,22 @@ public class GitScmProvider extends ScmProvider {
         return null;
       }
 
-      // force ignore different line endings when comparing a commit with the workspace
-      repo.getConfig().setBoolean("core", null, "autocrlf", true);
-
-      Optional<RevCommit> mergeBaseCommit = findMergeBase(repo, targetRef);
+      Optional<RevCommit> mergeBaseCommit = findMergeBase(repo, targetRef, phase);
       if (!mergeBaseCommit.isPresent()) {
         LOG.warn("No merge base found between HEAD and " + targetRef.getName());
         return null;
       }
 
       Map<Path, Set<Integer>> changedLines = new HashMap<>();
-      Path repoRootDir = repo.getDirectory().toPath().getParent();
-
-      for (Path path : changedFiles) {
-        collectChangedLines(repo, mergeBaseCommit.get(), changedLines, repoRootDir, path);
+      SkippedFiles skippedFiles = new SkippedFiles(settings);
+      if (settings.submodules()) {
+        collectChangedLinesWithSubmodules(repo, mergeBaseCommit.get(), changedFiles, changedLines, skippedFiles, phase);
+      } else {
+        collectChangedLines(repo, mergeBaseCommit.get(), changedFiles, changedLines, skippedFiles, phase);
       }
+      phase.add(GitMetrics.FILES, changedFiles.size());
+      phase.add("skipped files", skippedFiles.count());
+      skippedFiles.logSummary("changed lines computation");
       return changedLines;
     } catch (Exception e) {
       LOG.warn("Failed to get changed lines from git", e);
@@ -180,35 +219,265 @@ public class GitScmProvider extends ScmProvider {
     return null;
   }
 
-  private void collectChangedLines(Repository repo, RevCommit mergeBaseCommit, Map<Path, Set<Integer>> changedLines, Path repoRootDir, Path changedFile) {
+  /**
+   * Files changed in submodules whose recorded commit moved since the merge base of the superproject.
+   */
+  private Set<Path> submodulesChangedFiles(Repository superproject, RevTree mergeBaseTree, RevTree headTree, GitMetrics.Phase phase) throws IOException {
+    try (ChangedSubmodules submodules = ChangedSubmodules.find(superproject, mergeBaseTree, headTree, settings.submodulesMaxDepth(), phase)) {
+      Set<Path> changedFiles = new HashSet<>();
+      long start = System.nanoTime();
+      submodules.map(submodule -> submoduleChangedFiles(submodule.repo(), submodule.base(), submodule.headTree()))
+        .values()
+        .forEach(changedFiles::addAll);
+      phase.addTime("submodules diff", start);
+      return changedFiles;
+    }
+  }
+
+  private Set<Path> submoduleChangedFiles(Repository repo, @Nullable RevCommit base, RevTree headTree) throws IOException {
+    List<DiffEntry> diffEntries;
+    try (TreeWalk walk = new TreeWalk(repo)) {
+      if (base == null) {
+        walk.addTree(new EmptyTreeIterator());
+      } else {
+        walk.addTree(base.getTree());
+      }
+      walk.addTree(headTree);
+      walk.setRecursive(true);
+      walk.setFilter(TreeFilter.ANY_DIFF);
+      diffEntries = DiffEntry.scan(walk);
+    }
+    if (base != null) {
+      diffEntries = renameDetection.detect(repo, base.getTree(), headTree, diffEntries);
+    }
+    return diffEntries.stream()
+      .filter(GitScmProvider::isAddedOrModified)
+      .map(diffEntry -> repo.getWorkTree().toPath().resolve(diffEntry.getNewPath()))
+      .collect(Collectors.toSet());
+  }
+
+  /**
+   * Lines of files of submodules whose recorded commit moved are computed in their submodule, against the commit
+   * recorded at the merge base of the superproject. Submodules are handled in parallel.
+   */
+  private void collectChangedLinesWithSubmodules(Repository superproject, RevCommit mergeBaseCommit, Set<Path> changedFiles,
+    Map<Path, Set<Integer>> changedLines, SkippedFiles skippedFiles, GitMetrics.Phase phase) throws IOException {
+    try (ChangedSubmodules submodules = ChangedSubmodules.find(superproject, mergeBaseCommit.getTree(), getHeadTree(superproject),
+      settings.submodulesMaxDepth(), phase)) {
+      List<Path> superprojectFiles = new ArrayList<>();
+      Map<ChangedSubmodules.Submodule, List<Path>> filesBySubmodule = new HashMap<>();
+      for (Path file : changedFiles) {
+        ChangedSubmodules.Submodule submodule = submodules.owning(file);
+        if (submodule == null) {
+          superprojectFiles.add(file);
+        } else {
+          filesBySubmodule.computeIfAbsent(submodule, s -> new ArrayList<>()).add(file);
+        }
+      }
+      collectChangedLines(superproject, mergeBaseCommit, superprojectFiles, changedLines, skippedFiles, phase);
+      submodules.map(submodule -> {
+        Map<Path, Set<Integer>> submoduleChangedLines = new HashMap<>();
+        List<Path> files = filesBySubmodule.getOrDefault(submodule, Collections.emptyList());
+        if (!files.isEmpty()) {
+          collectChangedLines(submodule.repo(), submodule.base(), files, submoduleChangedLines, skippedFiles, phase);
+        }
+        return submoduleChangedLines;
+      }).values().forEach(changedLines::putAll);
+    }
+  }
+
+  /**
+   * Without merge base commit, like in a submodule added since the merge base, all lines of the files are changed.
+   */
+  private void collectChangedLines(Repository repo, @Nullable RevCommit mergeBaseCommit, Collection<Path> files, Map<Path, Set<Integer>> changedLines,
+    SkippedFiles skippedFiles, GitMetrics.Phase phase) throws IOException {
+    long start = System.nanoTime();
+    if (mergeBaseCommit == null) {
+      for (Path file : files) {
+        if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+          changedLines.put(file, IntStream.rangeClosed(1, SkippedFiles.countLines(file)).boxed().collect(Collectors.toSet()));
+        }
+      }
+      phase.addTime("diff", start);
+      return;
+    }
+    Map<String, DiffEntry> renames = renameDetection.renames(repo, mergeBaseCommit.getTree(), getHeadTree(repo));
+    fetchMissingBlobs(repo, mergeBaseCommit, files, renames, phase);
+    GitAttributes gitAttributes = new GitAttributes(repo);
+    WorkTreeBlobs workTreeBlobs = new WorkTreeBlobs(repo);
+    DiffStrategy diffStrategy = new DiffStrategy(repo.getConfig(), settings);
+    try (ObjectSource objects = newObjectSource(repo)) {
+      for (Path path : files) {
+        collectChangedLines(repo, mergeBaseCommit, changedLines, path, renames, gitAttributes, workTreeBlobs, skippedFiles, diffStrategy, objects,
+          phase);
+      }
+    }
+    phase.addTime("diff", start);
+    phase.add("attributes cache hits", gitAttributes.cacheHits());
+    phase.add("attributes cache misses", gitAttributes.cacheMisses());
+  }
+
+  /**
+   * In partial clones, blobs of the merge base missing locally are fetched all at once rather than one by one.
+   */
+  private void fetchMissingBlobs(Repository repo, RevCommit mergeBaseCommit, Collection<Path> files, Map<String, DiffEntry> renames,
+    GitMetrics.Phase phase) throws IOException {
+    PartialClone partialClone = PartialClone.detect(repo, settings);
+    if (partialClone == null || !settings.partialCloneFetch()) {
+      return;
+    }
+    long start = System.nanoTime();
+    List<String> paths = files.stream()
+      .filter(file -> file.startsWith(repo.getWorkTree().toPath()))
+      .map(file -> toGitPath(repo.getWorkTree().toPath().relativize(file).toString()))
+      .map(path -> renames.containsKey(path) ? renames.get(path).getOldPath() : path)
+      .collect(Collectors.toList());
+    phase.add("fetched objects", partialClone.fetchBlobs(repo, mergeBaseCommit.getTree(), paths, settings.partialCloneFetchTimeout().toNanos()));
+    phase.addTime("partial clone fetch", start);
+  }
+
+  private void collectChangedLines(Repository repo, RevCommit mergeBaseCommit, Map<Path, Set<Integer>> changedLines, Path changedFile,
+    Map<String, DiffEntry> renames, GitAttributes gitAttributes, WorkTreeBlobs workTreeBlobs, SkippedFiles skippedFiles, DiffStrategy diffStrategy,
+    ObjectSource objects, GitMetrics.Phase phase) {
     ChangedLinesComputer computer = new ChangedLinesComputer();
 
     try (DiffFormatter diffFmt = new DiffFormatter(new BufferedOutputStream(computer.receiver()))) {
-      // copied from DiffCommand so that we can use a custom DiffFormatter which ignores white spaces.
-      diffFmt.setRepository(repo);
-      diffFmt.setProgressMonitor(NullProgressMonitor.INSTANCE);
-      diffFmt.setDiffComparator(RawTextComparator.WS_IGNORE_ALL);
-      diffFmt.setPathFilter(PathFilter.create(toGitPath(repoRootDir.relativize(changedFile).toString())));
-
-      AbstractTreeIterator mergeBaseTree = prepareTreeParser(repo, mergeBaseCommit);
-      List<DiffEntry> diffEntries = diffFmt.scan(mergeBaseTree, new FileTreeIterator(repo));
-      diffFmt.format(diffEntries);
+      if (!Files.isRegularFile(changedFile, LinkOption.NOFOLLOW_LINKS)) {
+        return;
+      }
+      String path = toGitPath(repo.getWorkTree().toPath().relativize(changedFile).toString());
+      // compare a moved file with its previous version, so that only edited lines are reported
+      DiffEntry rename = renames.get(path);
+      String pathInMergeBase = rename == null ? path : rename.getOldPath();
+
+      Attributes attributes = gitAttributes.get(path);
+      SkippedFiles.Reason skipReason = skippedFiles.reasonToSkip(attributes, path, changedFile);
+      if (skipReason != null) {
+        approximateChangedLines(repo, mergeBaseCommit, changedLines, workTreeBlobs, path, pathInMergeBase, changedFile, skipReason);
+        return;
+      }
+
+      ObjectId mergeBaseId = objects.findBlob(mergeBaseCommit, pathInMergeBase);
+      byte[] content = readWorkTreeFile(changedFile, attributes);
+      phase.add(GitMetrics.BYTES_READ, content.length);
+      if (mergeBaseId != null && mergeBaseId.equals(new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, content))) {
+        if (rename != null) {
+          changedLines.put(changedFile, new HashSet<>());
+        }
+        return;
+      }
+
+      RawText mergeBaseText = mergeBaseId == null ? RawText.EMPTY_TEXT : new RawText(objects.blob(mergeBaseId));
+      phase.add(GitMetrics.BYTES_READ, mergeBaseText.getRawContent().length);
+      RawText workTreeText = new RawText(content);
+      diffFmt.format(diffStrategy.diffIgnoringWhitespaces(path, mergeBaseText, workTreeText), mergeBaseText, workTreeText);
       diffFmt.flush();
-      diffEntries.stream()
-        .filter(diffEntry -> diffEntry.getChangeType() == DiffEntry.ChangeType.ADD || diffEntry.getChangeType() == DiffEntry.ChangeType.MODIFY)
-        .findAny()
-        .ifPresent(diffEntry -> changedLines.put(changedFile, computer.changedLines()));
+      changedLines.put(changedFile, computer.changedLines());
     } catch (Exception e) {
       LOG.warn("Failed to get changed lines from git for file " + changedFile, e);
     }
   }
 
+  private ObjectSource newObjectSource(Repository repo) {
+    String executable = settings.gitExecutable();
+    Supplier<ObjectSource> catFileBatch = () -> NativeGit.isAvailable(executable)
+      ? new CatFileBatch(executable, repo.getDirectory().toPath(), settings.catFileProcesses())
+      : null;
+    if (settings.objectsBackend() == GitSettings.Backend.NATIVE) {
+      ObjectSource objects = catFileBatch.get();
+      if (objects != null) {
+        return objects;
+      }
+      LOG.info("Git executable '{}' is not available, objects are read with JGit", executable);
+    }
+    return new FallbackObjectSource(new JGitObjectSource(repo), catFileBatch);
+  }
+
+  private class JGitObjectSource implements ObjectSource {
+    private final Repository repo;
+    private final ObjectReader reader;
+
+    private JGitObjectSource(Repository repo) {
+      this.repo = repo;
+      this.reader = repo.newObjectReader();
+    }
+
+    @CheckForNull
+    @Override
+    public ObjectId findBlob(RevCommit commit, String path) throws IOException {
+      return GitScmProvider.findBlob(repo, prepareTreeParser(repo, commit), path);
+    }
+
+    @Override
+    public byte[] blob(ObjectId blobId) throws IOException {
+      return reader.open(blobId, Constants.OBJ_BLOB).getCachedBytes();
+    }
+
+    @Override
+    public void close() {
+      reader.close();
+    }
+  }
+
+  @CheckForNull
+  private static ObjectId findBlob(Repository repo, AbstractTreeIterator tree, String path) throws IOException {
+    try (TreeWalk walk = new TreeWalk(repo)) {
+      walk.addTree(tree);
+      walk.setRecursive(true);
+      walk.setFilter(PathFilter.create(path));
+      while (walk.next()) {
+        if (path.equals(walk.getPathString()) && (walk.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_FILE) {
+          return walk.getObjectId(0);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Different line endings are always ignored, like with core.autocrlf=true, unless the file is marked with -text in
+   * .gitattributes. Only files actually containing CRLF line endings are converted.
+   */
+  private static byte[] readWorkTreeFile(Path file, Attributes attributes) throws IOException {
+    byte[] content = Files.readAllBytes(file);
+    if (attributes.isUnset("text") || !RawText.isCrLfText(content)) {
+      return content;
+    }
+    ByteArrayOutputStream normalized = new ByteArrayOutputStream(content.length);
+    for (int i = 0; i < content.length; i++) {
+      if (content[i] != '\r' || i + 1 == content.length || content[i + 1] != '\n') {
+        normalized.write(content[i]);
+      }
+    }
+    return normalized.toByteArray();
+  }
+
+  /**
+   * Binary files have no line to report. Other skipped files are considered entirely changed, unless their content
+   * is the same as in the merge base.
+   */
+  private static void approximateChangedLines(Repository repo, RevCommit mergeBaseCommit, Map<Path, Set<Integer>> changedLines,
+    WorkTreeBlobs workTreeBlobs, String path, String pathInMergeBase, Path changedFile, SkippedFiles.Reason skipReason) throws IOException {
+    Set<Integer> lines = new HashSet<>();
+    if (skipReason != SkippedFiles.Reason.BINARY && !isSameAsInCommit(repo, mergeBaseCommit, pathInMergeBase, workTreeBlobs, path)) {
+      IntStream.rangeClosed(1, SkippedFiles.countLines(changedFile)).forEach(lines::add);
+    }
+    changedLines.put(changedFile, lines);
+  }
+
+  private static boolean isSameAsInCommit(Repository repo, RevCommit commit, String pathInCommit, WorkTreeBlobs workTreeBlobs, String path)
+    throws IOException {
+    try (TreeWalk walk = TreeWalk.forPath(repo, pathInCommit, commit.getTree())) {
+      return walk != null && walk.getObjectId(0).equals(workTreeBlobs.blobId(path));
+    }
+  }
+
   /**
    * This method will override API in SQ 8.4
    */
   @CheckForNull
   public Instant forkDate(String referenceBranchName, Path projectBaseDir) {
-    try (Repository repo = buildRepo(projectBaseDir)) {
+    try (GitMetrics.Phase phase = metrics.start("fork date"); Repository repo = openRepo(projectBaseDir, phase)) {
       Ref targetRef = resolveTargetRef(referenceBranchName, repo);
       if (targetRef == null) {
         LOG.warn("Branch '{}' not found in git", referenceBranchName);
@@ -221,7 +490,7 @@ public class GitScmProvider extends ScmProvider {
         return null;
       }
 
-      Optional<RevCommit> mergeBaseCommit = findMergeBase(repo, targetRef);
+      Optional<RevCommit> mergeBaseCommit = findMergeBase(repo, targetRef, phase);
       if (!mergeBaseCommit.isPresent()) {
         LOG.warn("No fork point found between HEAD and " + targetRef.getName());
         return null;
@@ -235,7 +504,7 @@ public class GitScmProvider extends ScmProvider {
     return null;
   }
 
-  private static String toGitPath(String path) {
+  static String toGitPath(String path) {
     return path.replaceAll(Pattern.quote(File.separator), "/");
   }
 
@@ -262,7 +531,7 @@ public class GitScmProvider extends ScmProvider {
   }
 
   @CheckForNull
-  private static Ref getFirstExistingRef(Repository repo, String... refs) throws IOException {
+  static Ref getFirstExistingRef(Repository repo, String... refs) throws IOException {
     Ref targetRef = null;
     for (String ref : refs) {
       targetRef = repo.exactRef(ref);
@@ -280,7 +549,9 @@ public class GitScmProvider extends ScmProvider {
   @Override
   public Path relativePathFromScmRoot(Path path) {
     RepositoryBuilder builder = getVerifiedRepositoryBuilder(path);
-    return builder.getGitDir().toPath().getParent().relativize(path);
+    LinkedWorktree worktree = LinkedWorktree.of(builder.getGitDir());
+    Path root = worktree == null ? builder.getGitDir().toPath().getParent() : worktree.workTree().toPath();
+    return root.relativize(path);
   }
 
   @Override
@@ -288,7 +559,7 @@ public class GitScmProvider extends ScmProvider {
   public String revisionId(Path path) {
     RepositoryBuilder builder = getVerifiedRepositoryBuilder(path);
     try {
-      Ref head = getHead(builder.build());
+      Ref head = getHead(LinkedWorktree.build(builder));
       if (head == null || head.getObjectId() == null) {
         // can happen on fresh, empty repos
         return null;
@@ -311,24 +582,44 @@ public class GitScmProvider extends ScmProvider {
     }
   }
 
-  private static AbstractTreeIterator prepareNewTree(Repository repo) throws IOException {
+  /**
+   * Renamed and copied files are reported with their new path, like added files.
+   */
+  private static boolean isAddedOrModified(DiffEntry diffEntry) {
+    switch (diffEntry.getChangeType()) {
+      case ADD:
+      case MODIFY:
+      case RENAME:
+      case COPY:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static AbstractTreeIterator prepareNewTree(Repository repo, RevTree headTree) throws IOException {
     CanonicalTreeParser treeParser = new CanonicalTreeParser();
     try (ObjectReader objectReader = repo.newObjectReader()) {
-      Ref head = getHead(repo);
-      if (head == null) {
-        throw new IOException("HEAD reference not found");
-      }
-      treeParser.reset(objectReader, repo.parseCommit(head.getObjectId()).getTree());
+      treeParser.reset(objectReader, headTree);
     }
     return treeParser;
   }
 
+  private static RevTree getHeadTree(Repository repo) throws IOException {
+    Ref head = getHead(repo);
+    if (head == null) {
+      throw new IOException("HEAD reference not found");
+    }
+    return repo.parseCommit(head.getObjectId()).getTree();
+  }
+
   @CheckForNull
   private static Ref getHead(Repository repo) throws IOException {
     return repo.exactRef("HEAD");
   }
 
-  private static Optional<RevCommit> findMergeBase(Repository repo, Ref targetRef) throws IOException {
+  static Optional<RevCommit> findMergeBase(Repository repo, Ref targetRef, GitMetrics.Phase phase) throws IOException {
+    long start = System.nanoTime();
     try (RevWalk walk = new RevWalk(repo)) {
       Ref head = getHead(repo);
       if (head == null) {
@@ -344,6 +635,7 @@ public class GitScmProvider extends ScmProvider {
       }
       RevCommit base = walk.parseCommit(next);
       walk.dispose();
+      phase.addTime("merge base", start);
       LOG.debug("Merge base sha1: {}", base.getName());
       return Optional.of(base);
     }
@@ -361,8 +653,15 @@ public class GitScmProvider extends ScmProvider {
     return new Git(repo);
   }
 
+  private Repository openRepo(Path basedir, GitMetrics.Phase phase) throws IOException {
+    long start = System.nanoTime();
+    Repository repo = buildRepo(basedir);
+    phase.addTime("repository open", start);
+    return repo;
+  }
+
   Repository buildRepo(Path basedir) throws IOException {
-    return getVerifiedRepositoryBuilder(basedir).build();
+    return LinkedWorktree.build(getVerifiedRepositoryBuilder(basedir));
   }
 
   static RepositoryBuilder getVerifiedRepositoryBuilder(Path basedir) {
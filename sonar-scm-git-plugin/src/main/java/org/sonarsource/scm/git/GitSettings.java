@@ -0,0 +1,347 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Optional;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.scanner.ScannerSide;
+import org.sonar.api.utils.MessageException;
+
+/**
+ * Scanner properties tuning the behavior of the plugin. All of them are optional.
+ */
+@ScannerSide
+public class GitSettings {
+
+  static final String RENAME_DETECTION_PROPERTY = "sonar.scm.git.renameDetection";
+  static final String RENAME_LIMIT_PROPERTY = "sonar.scm.git.renameLimit";
+  static final String LARGE_FILE_THRESHOLD_PROPERTY = "sonar.scm.git.largeFileThreshold";
+  static final String DIFF_LARGE_FILE_LINES_PROPERTY = "sonar.scm.git.diff.largeFileLines";
+  static final String DIFF_MAX_MYERS_REGION_LINES_PROPERTY = "sonar.scm.git.diff.maxMyersRegionLines";
+  static final String BLAME_SLOWEST_FILES_PROPERTY = "sonar.scm.git.blame.slowestFiles";
+  static final String BLAME_TIMEOUT_PROPERTY = "sonar.scm.git.blame.timeout";
+  static final String BLAME_FILE_TIMEOUT_PROPERTY = "sonar.scm.git.blame.fileTimeout";
+  static final String BLAME_BACKEND_PROPERTY = "sonar.scm.git.blame.backend";
+  static final String BLAME_NATIVE_PROCESSES_PROPERTY = "sonar.scm.git.blame.nativeProcesses";
+  static final String OBJECTS_BACKEND_PROPERTY = "sonar.scm.git.objects.backend";
+  static final String CAT_FILE_PROCESSES_PROPERTY = "sonar.scm.git.objects.catFileProcesses";
+  static final String GIT_EXECUTABLE_PROPERTY = "sonar.scm.git.executable";
+  static final String BLAME_PROGRESS_INTERVAL_PROPERTY = "sonar.scm.git.blame.progressInterval";
+  static final String PACKED_GIT_AUTO_SIZE_PROPERTY = "sonar.scm.git.packedGit.autoSize";
+  static final String PACKED_GIT_LIMIT_PROPERTY = "sonar.scm.git.packedGit.limit";
+  static final String PACKED_GIT_WINDOW_SIZE_PROPERTY = "sonar.scm.git.packedGit.windowSize";
+  static final String PACKED_GIT_OPEN_FILES_PROPERTY = "sonar.scm.git.packedGit.openFiles";
+  static final String PACKED_GIT_MMAP_PROPERTY = "sonar.scm.git.packedGit.mmap";
+  static final String DELTA_BASE_CACHE_LIMIT_PROPERTY = "sonar.scm.git.deltaBaseCache.limit";
+  static final String BLAME_PULL_REQUEST_CHANGED_LINES_PROPERTY = "sonar.scm.git.blame.pullRequest.changedLinesOnly";
+  static final String BLAME_INDEX_PROPERTY = "sonar.scm.git.blame.index";
+  static final String BLAME_INDEX_PATH_PROPERTY = "sonar.scm.git.blame.index.path";
+  static final String SUBMODULES_PROPERTY = "sonar.scm.git.submodules";
+  static final String SUBMODULES_MAX_DEPTH_PROPERTY = "sonar.scm.git.submodules.maxDepth";
+  static final String PARTIAL_CLONE_FETCH_PROPERTY = "sonar.scm.git.partialClone.fetch";
+  static final String PARTIAL_CLONE_FETCH_COMMAND_PROPERTY = "sonar.scm.git.partialClone.fetchCommand";
+  static final String PARTIAL_CLONE_FETCH_TIMEOUT_PROPERTY = "sonar.scm.git.partialClone.fetchTimeout";
+  static final String EXPORT_METRICS_PROPERTY = "sonar.scm.git.exportMetrics";
+  static final String METRICS_FILE_NAME = "scm-git-metrics.json";
+  private static final String PULL_REQUEST_KEY_PROPERTY = "sonar.pullrequest.key";
+  private static final String PULL_REQUEST_BASE_PROPERTY = "sonar.pullrequest.base";
+  private static final String PROJECT_BASE_DIR_PROPERTY = "sonar.projectBaseDir";
+  private static final String WORK_DIR_PROPERTY = "sonar.working.directory";
+  private static final String DEFAULT_WORK_DIR = ".scannerwork";
+
+  /**
+   * Same default as git's diff.renameLimit
+   */
+  static final int DEFAULT_RENAME_LIMIT = 400;
+  static final long DEFAULT_LARGE_FILE_THRESHOLD = 5L * 1024L * 1024L;
+  static final int DEFAULT_DIFF_LARGE_FILE_LINES = 10_000;
+  static final int DEFAULT_DIFF_MAX_MYERS_REGION_LINES = 4_000;
+  static final int DEFAULT_BLAME_SLOWEST_FILES = 10;
+  static final long DEFAULT_BLAME_PROGRESS_INTERVAL_SECONDS = 10;
+  static final int DEFAULT_CAT_FILE_PROCESSES = 2;
+  static final int DEFAULT_SUBMODULES_MAX_DEPTH = 3;
+  static final long DEFAULT_PARTIAL_CLONE_FETCH_TIMEOUT_SECONDS = 600;
+
+  enum Backend {
+    JGIT,
+    /**
+     * The git executable, falling back to JGit when it is not available or fails
+     */
+    NATIVE
+  }
+
+  private final Configuration configuration;
+
+  public GitSettings(Configuration configuration) {
+    this.configuration = configuration;
+  }
+
+  boolean renameDetection() {
+    return configuration.getBoolean(RENAME_DETECTION_PROPERTY).orElse(true);
+  }
+
+  /**
+   * Maximum number of added or deleted files considered for inexact rename detection.
+   * Above it, only renames of identical content are detected.
+   */
+  int renameLimit() {
+    return configuration.getInt(RENAME_LIMIT_PROPERTY).orElse(DEFAULT_RENAME_LIMIT);
+  }
+
+  /**
+   * Size in bytes above which files are not diffed nor blamed line by line, but approximated.
+   */
+  long largeFileThreshold() {
+    return configuration.getLong(LARGE_FILE_THRESHOLD_PROPERTY).orElse(DEFAULT_LARGE_FILE_THRESHOLD);
+  }
+
+  /**
+   * Number of lines above which a file is diffed with a bounded strategy rather than with the configured algorithm.
+   */
+  int diffLargeFileLines() {
+    return configuration.getInt(DIFF_LARGE_FILE_LINES_PROPERTY).orElse(DEFAULT_DIFF_LARGE_FILE_LINES);
+  }
+
+  /**
+   * In large files, maximum number of lines of a region diffed with Myers. Bigger regions are approximated.
+   */
+  int diffMaxMyersRegionLines() {
+    return configuration.getInt(DIFF_MAX_MYERS_REGION_LINES_PROPERTY).orElse(DEFAULT_DIFF_MAX_MYERS_REGION_LINES);
+  }
+
+  /**
+   * Number of slowest files to blame reported at the end of the blame. 0 to disable.
+   */
+  int blameSlowestFiles() {
+    return configuration.getInt(BLAME_SLOWEST_FILES_PROPERTY).orElse(DEFAULT_BLAME_SLOWEST_FILES);
+  }
+
+  /**
+   * Maximum duration of the blame of all files. Files not blamed in time have no SCM information. 0 for no limit, the
+   * default.
+   */
+  Duration blameTimeout() {
+    return Duration.ofSeconds(configuration.getLong(BLAME_TIMEOUT_PROPERTY).orElse(0L));
+  }
+
+  /**
+   * Maximum duration of the blame of a single file. Files not blamed in time are attributed entirely to the last commit
+   * modifying them. 0 for no limit, the default, so that no file is approximated unless asked for.
+   */
+  Duration blameFileTimeout() {
+    return Duration.ofSeconds(configuration.getLong(BLAME_FILE_TIMEOUT_PROPERTY).orElse(0L));
+  }
+
+  Backend blameBackend() {
+    return backend(BLAME_BACKEND_PROPERTY);
+  }
+
+  /**
+   * How the blobs of the merge base are read to compute changed lines. Reading with JGit falls back to git when JGit
+   * doesn't support the format of the repository. Everything else, like the merge base itself, is read with JGit.
+   */
+  Backend objectsBackend() {
+    return backend(OBJECTS_BACKEND_PROPERTY);
+  }
+
+  private Backend backend(String property) {
+    String value = configuration.get(property).orElse("jgit");
+    try {
+      return Backend.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+    } catch (IllegalArgumentException e) {
+      throw MessageException.of("Invalid value '" + value + "' for " + property + ", expected 'jgit' or 'native'");
+    }
+  }
+
+  /**
+   * Maximum number of git cat-file processes reading objects with the native backend.
+   */
+  int catFileProcesses() {
+    return configuration.getInt(CAT_FILE_PROCESSES_PROPERTY).orElse(DEFAULT_CAT_FILE_PROCESSES);
+  }
+
+  /**
+   * Maximum number of git processes blaming files in parallel with the native backend.
+   */
+  int blameNativeProcesses() {
+    return configuration.getInt(BLAME_NATIVE_PROCESSES_PROPERTY).orElse(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Git executable used by the native backend, looked up in the PATH if it is not absolute.
+   */
+  String gitExecutable() {
+    return configuration.get(GIT_EXECUTABLE_PROPERTY).orElse("git");
+  }
+
+  /**
+   * Whether the blame of a pull request only walks history until the lines changed since the merge base with the
+   * target branch are attributed. Other lines are attributed like in the merge base. This is an approximation of the
+   * blame: unchanged lines are matched with the merge base by a single diff rather than commit by commit, and a line
+   * deleted then added back in the pull request keeps the commit of the merge base. Disabled by default.
+   */
+  boolean blamePullRequestChangedLinesOnly() {
+    return configuration.getBoolean(BLAME_PULL_REQUEST_CHANGED_LINES_PROPERTY).orElse(false);
+  }
+
+  boolean isPullRequest() {
+    return configuration.get(PULL_REQUEST_KEY_PROPERTY).isPresent();
+  }
+
+  /**
+   * Target branch of the pull request being analyzed, if any and if it is known.
+   */
+  Optional<String> pullRequestBase() {
+    if (!isPullRequest()) {
+      return Optional.empty();
+    }
+    return configuration.get(PULL_REQUEST_BASE_PROPERTY);
+  }
+
+  /**
+   * Whether blames of branch analyses are kept in an index updated from commit to commit, so that files not modified
+   * since the previous analysis are not blamed again.
+   */
+  boolean blameIndex() {
+    return configuration.getBoolean(BLAME_INDEX_PROPERTY).orElse(false);
+  }
+
+  /**
+   * File of the blame index, in the git directory by default.
+   */
+  Optional<Path> blameIndexPath() {
+    return configuration.get(BLAME_INDEX_PATH_PROPERTY).map(Paths::get);
+  }
+
+  /**
+   * Whether changed files and changed lines include the changes of checked out submodules whose recorded commit moved
+   * since the merge base, rather than only their gitlink.
+   */
+  boolean submodules() {
+    return configuration.getBoolean(SUBMODULES_PROPERTY).orElse(false);
+  }
+
+  /**
+   * Maximum nesting of submodules whose changes are included, 1 for the submodules of the project only.
+   */
+  int submodulesMaxDepth() {
+    return configuration.getInt(SUBMODULES_MAX_DEPTH_PROPERTY).orElse(DEFAULT_SUBMODULES_MAX_DEPTH);
+  }
+
+  /**
+   * Whether objects missing in partial clones are fetched, all at once, when files are blamed or diffed. Otherwise,
+   * files with missing objects are not blamed.
+   */
+  boolean partialCloneFetch() {
+    return configuration.getBoolean(PARTIAL_CLONE_FETCH_PROPERTY).orElse(true);
+  }
+
+  /**
+   * Command fetching the objects missing in a partial clone, with arguments separated by spaces. It reads the ids of
+   * the objects on its standard input, one per line. By default, git fetches them from the promisor remote.
+   */
+  Optional<String> partialCloneFetchCommand() {
+    return configuration.get(PARTIAL_CLONE_FETCH_COMMAND_PROPERTY).filter(command -> !command.trim().isEmpty());
+  }
+
+  /**
+   * Maximum duration of a fetch of the objects missing in a partial clone. Files whose objects are not fetched in time
+   * are not blamed, and changed lines are computed with the objects fetched one at a time by git.
+   */
+  Duration partialCloneFetchTimeout() {
+    return Duration.ofSeconds(configuration.getLong(PARTIAL_CLONE_FETCH_TIMEOUT_PROPERTY).orElse(DEFAULT_PARTIAL_CLONE_FETCH_TIMEOUT_SECONDS));
+  }
+
+  /**
+   * Interval between two logs of the progress of the blame. 0 to disable.
+   */
+  Duration blameProgressInterval() {
+    return Duration.ofSeconds(configuration.getLong(BLAME_PROGRESS_INTERVAL_PROPERTY).orElse(DEFAULT_BLAME_PROGRESS_INTERVAL_SECONDS));
+  }
+
+  /**
+   * Whether the pack cache is sized from the maximum heap and the size of the packs of the repository,
+   * for the settings not set explicitly. Otherwise, JGit defaults are used.
+   */
+  boolean packedGitAutoSize() {
+    return configuration.getBoolean(PACKED_GIT_AUTO_SIZE_PROPERTY).orElse(true);
+  }
+
+  /**
+   * Maximum number of bytes of pack files kept in memory, like git's core.packedGitLimit.
+   */
+  Optional<Long> packedGitLimit() {
+    return configuration.getLong(PACKED_GIT_LIMIT_PROPERTY);
+  }
+
+  /**
+   * Number of bytes of a pack file read at once, like git's core.packedGitWindowSize. Must be a power of 2.
+   */
+  Optional<Integer> packedGitWindowSize() {
+    return configuration.getInt(PACKED_GIT_WINDOW_SIZE_PROPERTY);
+  }
+
+  /**
+   * Maximum number of pack files kept open.
+   */
+  Optional<Integer> packedGitOpenFiles() {
+    return configuration.getInt(PACKED_GIT_OPEN_FILES_PROPERTY);
+  }
+
+  /**
+   * Whether pack files are memory mapped rather than read into the heap, when it is safe.
+   */
+  boolean packedGitMmap() {
+    return configuration.getBoolean(PACKED_GIT_MMAP_PROPERTY).orElse(false);
+  }
+
+  /**
+   * Maximum number of bytes of inflated delta bases kept in memory, like git's core.deltaBaseCacheLimit.
+   */
+  Optional<Integer> deltaBaseCacheLimit() {
+    return configuration.getInt(DELTA_BASE_CACHE_LIMIT_PROPERTY);
+  }
+
+  /**
+   * Whether timings and counters are written to {@value #METRICS_FILE_NAME} in the work directory of the scanner.
+   */
+  boolean exportMetrics() {
+    return configuration.getBoolean(EXPORT_METRICS_PROPERTY).orElse(false);
+  }
+
+  Optional<Path> projectBaseDir() {
+    return configuration.get(PROJECT_BASE_DIR_PROPERTY).map(Paths::get);
+  }
+
+  /**
+   * Work directory of the scanner, if it can be deduced from the settings.
+   */
+  Optional<Path> workDir() {
+    Path workDir = Paths.get(configuration.get(WORK_DIR_PROPERTY).orElse(DEFAULT_WORK_DIR));
+    if (workDir.isAbsolute()) {
+      return Optional.of(workDir);
+    }
+    return projectBaseDir().map(baseDir -> baseDir.resolve(workDir));
+  }
+}
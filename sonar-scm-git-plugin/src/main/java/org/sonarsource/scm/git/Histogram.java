@@ -0,0 +1,92 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of positive values with a bounded relative error, in the spirit of HdrHistogram: values are counted in
+ * buckets whose width doubles with each power of two, each bucket being split in {@value #SUB_BUCKETS} sub-buckets.
+ * Recording is lock free and allocation free, so it can be done for every file from concurrent threads.
+ */
+class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  void record(long value) {
+    long v = Math.max(0L, value);
+    counts.incrementAndGet(index(v));
+    total.incrementAndGet();
+    max.accumulateAndGet(v, Math::max);
+  }
+
+  long count() {
+    return total.get();
+  }
+
+  long max() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the highest value of the bucket containing the given percentile, never more than the maximum recorded value
+   */
+  long percentile(double percentile) {
+    long count = total.get();
+    if (count == 0) {
+      return 0L;
+    }
+    long target = Math.max(1L, (long) Math.ceil(percentile / 100.0 * count));
+    long cumulated = 0L;
+    for (int i = 0; i < counts.length(); i++) {
+      cumulated += counts.get(i);
+      if (cumulated >= target) {
+        return Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  private static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long highestValue(int index) {
+    int bucket = index / SUB_BUCKETS;
+    int subBucket = index % SUB_BUCKETS;
+    if (bucket == 0) {
+      return subBucket;
+    }
+    return ((long) (SUB_BUCKETS + subBucket + 1) << (bucket - 1)) - 1;
+  }
+}
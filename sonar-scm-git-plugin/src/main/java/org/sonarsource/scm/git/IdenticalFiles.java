@@ -0,0 +1,238 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Files to blame which have the same blame, because they have the same content in every commit modifying any of them,
+ * like vendored copies or generated duplicates. Only the first of them is blamed, the others reuse its result.
+ * <p>
+ * Files are first grouped by blob in HEAD, leaving out files with uncommitted changes, then history is walked until the
+ * files of a group differ. Files added by a merge, or by a commit deleting files, are never shared: the blame may follow
+ * renames to a different file for each.
+ */
+class IdenticalFiles {
+
+  private static final Logger LOG = Loggers.get(IdenticalFiles.class);
+
+  private final Map<InputFile, List<InputFile>> duplicatesByFile;
+  private final Set<InputFile> duplicates;
+
+  private IdenticalFiles(Map<InputFile, List<InputFile>> duplicatesByFile) {
+    this.duplicatesByFile = duplicatesByFile;
+    this.duplicates = duplicatesByFile.values().stream().flatMap(Collection::stream).collect(Collectors.toSet());
+  }
+
+  static IdenticalFiles none() {
+    return new IdenticalFiles(Collections.emptyMap());
+  }
+
+  static IdenticalFiles find(Repository repo, WorkTreeBlobs workTreeBlobs, Iterable<InputFile> files) {
+    try {
+      return new IdenticalFiles(findDuplicates(repo, workTreeBlobs, files));
+    } catch (IOException e) {
+      LOG.debug("Unable to find identical files, all files are blamed", e);
+      return none();
+    }
+  }
+
+  /**
+   * Whether the blame of the file is the one of another file.
+   */
+  boolean isDuplicate(InputFile file) {
+    return duplicates.contains(file);
+  }
+
+  List<InputFile> duplicatesOf(InputFile file) {
+    return duplicatesByFile.getOrDefault(file, Collections.emptyList());
+  }
+
+  int count() {
+    return duplicates.size();
+  }
+
+  private static Map<InputFile, List<InputFile>> findDuplicates(Repository repo, WorkTreeBlobs workTreeBlobs, Iterable<InputFile> files)
+    throws IOException {
+    Map<String, InputFile> filesByPath = new HashMap<>();
+    Path workTree = repo.getWorkTree().toPath();
+    for (InputFile file : files) {
+      Path path = file.path();
+      if (path.startsWith(workTree)) {
+        filesByPath.putIfAbsent(toGitPath(workTree.relativize(path)), file);
+      }
+    }
+    ObjectId head = repo.resolve(Constants.HEAD);
+    if (filesByPath.size() < 2 || head == null) {
+      return Collections.emptyMap();
+    }
+
+    Map<InputFile, List<InputFile>> duplicatesByFile = new IdentityHashMap<>();
+    try (RevWalk revWalk = new RevWalk(repo)) {
+      RevCommit headCommit = revWalk.parseCommit(head);
+      for (List<String> group : groupByBlob(repo, workTreeBlobs, headCommit.getTree(), filesByPath)) {
+        for (List<String> identical : refineByHistory(repo, headCommit, group)) {
+          List<InputFile> identicalFiles = identical.stream().map(filesByPath::get).collect(Collectors.toList());
+          duplicatesByFile.put(identicalFiles.get(0), new ArrayList<>(identicalFiles.subList(1, identicalFiles.size())));
+        }
+      }
+    }
+    return duplicatesByFile;
+  }
+
+  /**
+   * Groups of at least two paths with the same blob in the given tree, and the same content in the work tree. Files
+   * with uncommitted changes are never shared, since their blame is not the one of HEAD.
+   */
+  private static Collection<List<String>> groupByBlob(Repository repo, WorkTreeBlobs workTreeBlobs, RevTree tree, Map<String, InputFile> filesByPath)
+    throws IOException {
+    Map<ObjectId, List<String>> pathsByBlob = new HashMap<>();
+    try (TreeWalk walk = new TreeWalk(repo)) {
+      walk.addTree(tree);
+      walk.setRecursive(true);
+      walk.setFilter(PathFilterGroup.createFromStrings(filesByPath.keySet()));
+      while (walk.next()) {
+        if ((walk.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_FILE && filesByPath.containsKey(walk.getPathString())) {
+          pathsByBlob.computeIfAbsent(walk.getObjectId(0), id -> new ArrayList<>()).add(walk.getPathString());
+        }
+      }
+    }
+    List<List<String>> groups = new ArrayList<>();
+    for (Map.Entry<ObjectId, List<String>> entry : pathsByBlob.entrySet()) {
+      // only files sharing a blob are compared with the work tree
+      if (entry.getValue().size() < 2) {
+        continue;
+      }
+      List<String> unmodified = new ArrayList<>();
+      for (String path : entry.getValue()) {
+        if (entry.getKey().equals(workTreeBlobs.blobId(path))) {
+          unmodified.add(path);
+        }
+      }
+      if (unmodified.size() > 1) {
+        groups.add(unmodified);
+      }
+    }
+    return groups;
+  }
+
+  /**
+   * Splits the group every time a commit modifying any of its paths leaves them with different content, until no
+   * identical paths are left or history is exhausted.
+   */
+  private static List<List<String>> refineByHistory(Repository repo, RevCommit head, List<String> group) throws IOException {
+    List<List<String>> groups = Collections.singletonList(group);
+    // oldest commit in which each path exists
+    Map<String, RevCommit> addedIn = new HashMap<>();
+    try (RevWalk revWalk = new RevWalk(repo)) {
+      revWalk.setTreeFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(group), TreeFilter.ANY_DIFF));
+      revWalk.markStart(revWalk.parseCommit(head));
+      for (RevCommit commit : revWalk) {
+        Map<String, ObjectId> blobs = blobs(repo, commit.getTree(), group);
+        List<List<String>> refined = new ArrayList<>();
+        for (List<String> identical : groups) {
+          identical.stream()
+            .collect(Collectors.groupingBy(path -> blobs.getOrDefault(path, ObjectId.zeroId()), Collectors.toList()))
+            .values().stream()
+            .filter(paths -> paths.size() > 1)
+            .forEach(refined::add);
+        }
+        groups = refined;
+        if (groups.isEmpty()) {
+          return groups;
+        }
+        blobs.keySet().forEach(path -> addedIn.put(path, commit));
+      }
+      List<List<String>> identicalGroups = new ArrayList<>();
+      for (List<String> identical : groups) {
+        if (!mayFollowRenames(repo, revWalk, addedIn.get(identical.get(0)))) {
+          identicalGroups.add(identical);
+        }
+      }
+      return identicalGroups;
+    }
+  }
+
+  private static Map<String, ObjectId> blobs(Repository repo, RevTree tree, List<String> paths) throws IOException {
+    Map<String, ObjectId> blobs = new HashMap<>();
+    try (TreeWalk walk = new TreeWalk(repo)) {
+      walk.addTree(tree);
+      walk.setRecursive(true);
+      walk.setFilter(PathFilterGroup.createFromStrings(paths));
+      while (walk.next()) {
+        blobs.put(walk.getPathString(), walk.getObjectId(0));
+      }
+    }
+    return blobs;
+  }
+
+  /**
+   * Whether the commit adding the files can be seen as renaming other files.
+   */
+  private static boolean mayFollowRenames(Repository repo, RevWalk revWalk, RevCommit commit) throws IOException {
+    if (commit.getParentCount() == 0) {
+      return false;
+    }
+    if (commit.getParentCount() > 1) {
+      return true;
+    }
+    try (TreeWalk walk = new TreeWalk(repo)) {
+      walk.addTree(revWalk.parseCommit(commit.getParent(0)).getTree());
+      walk.addTree(commit.getTree());
+      walk.setRecursive(true);
+      walk.setFilter(TreeFilter.ANY_DIFF);
+      while (walk.next()) {
+        if (walk.getRawMode(1) == 0) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static String toGitPath(Path path) {
+    return path.toString().replace(File.separatorChar, '/');
+  }
+}
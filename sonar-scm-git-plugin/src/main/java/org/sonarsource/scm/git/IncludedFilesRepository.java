@@ -36,8 +36,11 @@ public class IncludedFilesRepository {
   private static final Logger LOG = Loggers.get(IncludedFilesRepository.class);
   private final Set<Path> includedFiles = new HashSet<>();
 
-  public IncludedFilesRepository(Path baseDir) throws IOException {
-    indexFiles(baseDir);
+  public IncludedFilesRepository(Path baseDir, GitMetrics metrics) throws IOException {
+    try (GitMetrics.Phase phase = metrics.start("ignored files indexing")) {
+      indexFiles(baseDir, phase);
+      phase.add(GitMetrics.FILES, includedFiles.size());
+    }
     LOG.debug("{} non excluded files in this Git repository", includedFiles.size());
   }
 
@@ -45,8 +48,10 @@ public class IncludedFilesRepository {
     return includedFiles.contains(absolutePath);
   }
 
-  private void indexFiles(Path baseDir) throws IOException {
+  private void indexFiles(Path baseDir, GitMetrics.Phase phase) throws IOException {
+    long start = System.nanoTime();
     try (Repository repo = JGitUtils.buildRepository(baseDir)) {
+      phase.addTime("repository open", start);
       Path workTreeRoot = repo.getWorkTree().toPath();
       FileTreeIterator workingTreeIt = new FileTreeIterator(repo);
       try (TreeWalk treeWalk = new TreeWalk(repo)) {
@@ -63,6 +68,8 @@ public class IncludedFilesRepository {
 
           if (!workingTreeIterator.isEntryIgnored()) {
             includedFiles.add(workTreeRoot.resolve(treeWalk.getPathString()));
+          } else {
+            phase.increment("ignored files");
           }
         }
       }
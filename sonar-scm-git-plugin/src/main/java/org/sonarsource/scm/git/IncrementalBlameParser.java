@@ -0,0 +1,252 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Streaming parser of the output of {@code git blame --incremental}. Each group of lines attributed to a commit starts
+ * with a header "&lt;sha1&gt; &lt;source line&gt; &lt;result line&gt; &lt;number of lines&gt;", followed by the details of the
+ * commit the first time it appears, and ends with a "filename" line.
+ * <p>
+ * The output is read into a single growing buffer and lines are parsed in place: only the fields needed for
+ * {@link BlameLine} are decoded, once per commit.
+ */
+class IncrementalBlameParser {
+
+  interface Checkpoint {
+    /**
+     * Called after each group of lines, to stop parsing by throwing.
+     */
+    void check() throws BlameBudget.StoppedException;
+  }
+
+  private static final int SHA1_LENGTH = 40;
+  private static final byte[] AUTHOR_MAIL = "author-mail ".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] COMMITTER_TIME = "committer-time ".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] FILENAME = "filename ".getBytes(StandardCharsets.US_ASCII);
+
+  private final InputStream in;
+  private final Checkpoint checkpoint;
+  private byte[] buffer = new byte[64 * 1024];
+  private int bufferStart = 0;
+  private int bufferEnd = 0;
+  private int lineStart;
+  private int lineEnd;
+
+  private final Map<String, Commit> commits = new HashMap<>();
+  private BlameLine[] lines = new BlameLine[256];
+  private int lineCount = 0;
+  private boolean uncommitted = false;
+
+  IncrementalBlameParser(InputStream in, Checkpoint checkpoint) {
+    this.in = in;
+    this.checkpoint = checkpoint;
+  }
+
+  private static class Commit {
+    private final String sha1;
+    private String authorMail = "";
+    private long committerTime;
+    private BlameLine blameLine;
+
+    private Commit(String sha1) {
+      this.sha1 = sha1;
+    }
+
+    private BlameLine blameLine() {
+      if (blameLine == null) {
+        blameLine = new BlameLine()
+          .revision(sha1)
+          .date(new Date(committerTime * 1000L))
+          .author(authorMail);
+      }
+      return blameLine;
+    }
+  }
+
+  /**
+   * @return blame of each line of the file, or null if some lines are not committed
+   */
+  @CheckForNull
+  List<BlameLine> parse() throws IOException, BlameBudget.StoppedException {
+    while (readLine()) {
+      Commit commit = parseHeader();
+      int sourceLineEnd = indexOfSpace(lineStart + SHA1_LENGTH + 1);
+      int resultLineEnd = indexOfSpace(sourceLineEnd + 1);
+      int resultLine = (int) parseLong(sourceLineEnd + 1, resultLineEnd);
+      int count = (int) parseLong(resultLineEnd + 1, lineEnd);
+      readCommitDetails(commit);
+      if (isUncommitted(commit.sha1)) {
+        uncommitted = true;
+      }
+      setLines(resultLine, count, commit);
+      checkpoint.check();
+    }
+    if (uncommitted) {
+      return null;
+    }
+    for (int i = 0; i < lineCount; i++) {
+      if (lines[i] == null) {
+        throw new IOException("Missing blame of line " + (i + 1));
+      }
+    }
+    return Arrays.asList(Arrays.copyOf(lines, lineCount));
+  }
+
+  private Commit parseHeader() throws IOException {
+    if (lineEnd - lineStart < SHA1_LENGTH + 6 || buffer[lineStart + SHA1_LENGTH] != ' ') {
+      throw new IOException("Unexpected line in git blame output: " + currentLine());
+    }
+    String sha1 = new String(buffer, lineStart, SHA1_LENGTH, StandardCharsets.US_ASCII);
+    return commits.computeIfAbsent(sha1, Commit::new);
+  }
+
+  private void readCommitDetails(Commit commit) throws IOException {
+    while (readLine()) {
+      if (startsWith(FILENAME)) {
+        return;
+      } else if (startsWith(AUTHOR_MAIL)) {
+        int start = lineStart + AUTHOR_MAIL.length;
+        int end = lineEnd;
+        if (end - start >= 2 && buffer[start] == '<' && buffer[end - 1] == '>') {
+          start++;
+          end--;
+        }
+        commit.authorMail = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+      } else if (startsWith(COMMITTER_TIME)) {
+        commit.committerTime = parseLong(lineStart + COMMITTER_TIME.length, lineEnd);
+      }
+    }
+    throw new IOException("Unexpected end of git blame output");
+  }
+
+  private void setLines(int resultLine, int count, Commit commit) throws IOException {
+    if (resultLine < 1 || count < 0) {
+      throw new IOException("Invalid line range in git blame output: " + resultLine + " " + count);
+    }
+    int end = resultLine - 1 + count;
+    if (end > lines.length) {
+      lines = Arrays.copyOf(lines, Math.max(end, lines.length * 2));
+    }
+    BlameLine blameLine = commit.blameLine();
+    Arrays.fill(lines, resultLine - 1, end, blameLine);
+    lineCount = Math.max(lineCount, end);
+  }
+
+  private static boolean isUncommitted(String sha1) {
+    for (int i = 0; i < sha1.length(); i++) {
+      if (sha1.charAt(i) != '0') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Position of the next space of the current line, or its end if there is none.
+   */
+  private int indexOfSpace(int from) {
+    int i = from;
+    while (i < lineEnd && buffer[i] != ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  private long parseLong(int start, int end) throws IOException {
+    if (start >= end) {
+      throw new IOException("Expected a number in git blame output: " + currentLine());
+    }
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      int digit = buffer[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new IOException("Expected a number in git blame output: " + currentLine());
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  private boolean startsWith(byte[] prefix) {
+    if (lineEnd - lineStart < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (buffer[lineStart + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String currentLine() {
+    return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Makes the next line available between {@link #lineStart} and {@link #lineEnd}, without its line feed.
+   */
+  private boolean readLine() throws IOException {
+    int searchFrom = bufferStart;
+    while (true) {
+      for (int i = searchFrom; i < bufferEnd; i++) {
+        if (buffer[i] == '\n') {
+          lineStart = bufferStart;
+          lineEnd = i;
+          bufferStart = i + 1;
+          return true;
+        }
+      }
+      searchFrom = bufferEnd;
+      if (bufferStart > 0) {
+        // make room by moving the beginning of the line to the start of the buffer
+        System.arraycopy(buffer, bufferStart, buffer, 0, bufferEnd - bufferStart);
+        searchFrom -= bufferStart;
+        bufferEnd -= bufferStart;
+        bufferStart = 0;
+      }
+      if (bufferEnd == buffer.length) {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+      int read = in.read(buffer, bufferEnd, buffer.length - bufferEnd);
+      if (read == -1) {
+        if (bufferEnd > bufferStart) {
+          lineStart = bufferStart;
+          lineEnd = bufferEnd;
+          bufferStart = bufferEnd;
+          return true;
+        }
+        return false;
+      }
+      bufferEnd += read;
+    }
+  }
+}
@@ -20,17 +20,38 @@
 package org.sonarsource.scm.git;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ForkJoinPool;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.blame.BlameGenerator;
 import org.eclipse.jgit.blame.BlameResult;
 import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.sonar.api.Startable;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.scm.BlameCommand;
 import org.sonar.api.batch.scm.BlameLine;
@@ -39,47 +60,356 @@ import org.sonar.api.scan.filesystem.PathResolver;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 
-public class JGitBlameCommand extends BlameCommand {
+public class JGitBlameCommand extends BlameCommand implements Startable {
 
   private static final Logger LOG = Loggers.get(JGitBlameCommand.class);
+  private static final long CANCELLATION_GRACE_PERIOD_SECONDS = 5;
+  private static final int MAX_ATTEMPTS = 3;
 
   private final PathResolver pathResolver;
   private final AnalysisWarnings analysisWarnings;
+  private final GitSettings settings;
+  private final GitMetrics metrics;
+  /**
+   * By git directory, kept when sessions are closed since the blames of a merge base never change
+   */
+  private final Map<File, MergeBaseBlames> mergeBaseBlames = new ConcurrentHashMap<>();
+  private final Map<File, BlameSession> sessions = new ConcurrentHashMap<>();
 
-  public JGitBlameCommand(PathResolver pathResolver, AnalysisWarnings analysisWarnings) {
+  public JGitBlameCommand(PathResolver pathResolver, AnalysisWarnings analysisWarnings, GitSettings settings, GitMetrics metrics) {
     this.pathResolver = pathResolver;
     this.analysisWarnings = analysisWarnings;
+    this.settings = settings;
+    this.metrics = metrics;
   }
 
   @Override
   public void blame(BlameInput input, BlameOutput output) {
-    File basedir = input.fileSystem().baseDir();
-    try (Repository repo = JGitUtils.buildRepository(basedir.toPath()); Git git = Git.wrap(repo)) {
-      File gitBaseDir = repo.getWorkTree();
+    blame(input, output, new BlameBudget(settings.blameTimeout(), settings.blameFileTimeout()));
+  }
 
-      if (cloneIsInvalid(gitBaseDir)) {
-        return;
+  /**
+   * @param budget time budget of the blame, which is what is left of the native blame when falling back to JGit
+   */
+  void blame(BlameInput input, BlameOutput output, BlameBudget budget) {
+    File basedir = input.fileSystem().baseDir();
+    metrics.setWorkDirIfAbsent(() -> input.fileSystem().workDir().toPath());
+    try (GitMetrics.Phase phase = metrics.start("blame")) {
+      File projectGitDir = GitScmProvider.getVerifiedRepositoryBuilder(basedir.toPath()).getGitDir();
+      BlameRun run = new BlameRun(output, phase, new BlameStatistics(settings.blameSlowestFiles()), budget,
+        new BlameProgress(countFiles(input), settings.blameProgressInterval()));
+      Map<File, List<InputFile>> filesByGitDir = new RepositoryRouter(projectGitDir).groupByRepository(input.filesToBlame());
+      Map<BlameSession, ForkJoinTask<?>> tasks = new LinkedHashMap<>();
+      int identicalFilesCount = 0;
+      for (Map.Entry<File, List<InputFile>> group : filesByGitDir.entrySet()) {
+        boolean projectRepository = group.getKey().equals(projectGitDir);
+        BlameSession session = session(group.getKey(), projectRepository ? basedir.toPath() : group.getValue().get(0).path().getParent(), projectRepository,
+          phase, group.getValue(), run.failures);
+        if (session == null || session.isInvalidClone()) {
+          continue;
+        }
+        IdenticalFiles identicalFiles = IdenticalFiles.find(session.git().getRepository(), session.workTreeBlobs(), group.getValue());
+        identicalFilesCount += identicalFiles.count();
+        Stream<InputFile> stream = group.getValue().parallelStream()
+          .filter(inputFile -> !identicalFiles.isDuplicate(inputFile));
+        tasks.put(session, session.forkJoinPool().submit(() -> stream.forEach(blamedFile -> run.blame(session, blamedFile, identicalFiles, false))));
       }
-
-      Stream<InputFile> stream = StreamSupport.stream(input.filesToBlame().spliterator(), true);
-      ForkJoinPool forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), new GitThreadFactory(), null, false);
-      forkJoinPool.submit(() -> stream.forEach(inputFile -> blame(output, git, gitBaseDir, inputFile)));
       try {
-        forkJoinPool.shutdown();
-        forkJoinPool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        for (ForkJoinTask<?> task : tasks.values()) {
+          // a failed task doesn't stop waiting for the others, which would keep reporting blames after this method returns
+          try {
+            task.get(budget.remainingNanos(), TimeUnit.NANOSECONDS);
+          } catch (ExecutionException e) {
+            LOG.warn("Git blame failed", e.getCause());
+          }
+        }
+        for (BlameSession session : tasks.keySet()) {
+          if (session.partialClone() != null) {
+            blameDeferredFiles(run, session);
+          }
+        }
+      } catch (TimeoutException e) {
+        // files being blamed stop at their next check of the budget, the others are not started
+        filesByGitDir.values().stream().flatMap(List::stream).forEach(inputFile -> {
+          if (!run.finishedFiles.contains(inputFile)) {
+            budget.overBudget(inputFile.relativePath());
+          }
+        });
       } catch (InterruptedException e) {
         LOG.info("Git blame interrupted");
+        cancel(tasks.keySet(), budget);
+        return;
+      } finally {
+        run.progress.close();
+      }
+      phase.add("commits", run.commits.size());
+      run.statistics.report(phase);
+      budget.report(phase, analysisWarnings);
+      run.failures.report(phase, analysisWarnings);
+      phase.add("skipped files", run.skippedFiles.count());
+      phase.add("identical files", identicalFilesCount);
+      if (filesByGitDir.size() > 1) {
+        phase.add("repositories", filesByGitDir.size());
+      }
+      for (BlameSession session : tasks.keySet()) {
+        if (session.blameIndex() != null) {
+          saveBlameIndex(session.blameIndex(), phase);
+        }
+        session.report(phase);
+      }
+      run.skippedFiles.logSummary("blame");
+    }
+  }
+
+  /**
+   * Files of a partial clone which failed on missing objects are blamed again once the blobs missing in their history
+   * are fetched. They are failed if nothing could be fetched, or if objects are still missing after a few rounds.
+   */
+  private void blameDeferredFiles(BlameRun run, BlameSession session) throws InterruptedException, TimeoutException {
+    PartialClone partialClone = session.partialClone();
+    for (int round = 1;; round++) {
+      Map<InputFile, MissingObjectException> files = partialClone.takeDeferredFiles();
+      if (files.isEmpty()) {
+        return;
+      }
+      int fetched = 0;
+      if (round <= PartialClone.MAX_ROUNDS && !run.budget.isExhausted()) {
+        long start = System.nanoTime();
+        try {
+          fetched = partialClone.fetchHistory(session.git().getRepository(), files,
+            Math.min(run.budget.remainingNanos(), settings.partialCloneFetchTimeout().toNanos()));
+        } catch (IOException e) {
+          LOG.warn("Unable to fetch missing objects: {}", e.getMessage());
+          LOG.debug("Unable to fetch missing objects", e);
+        }
+        run.phase.increment("partial clone fetches");
+        run.phase.add("fetched objects", fetched);
+        run.phase.addTime("partial clone fetch", start);
+      }
+      if (fetched == 0) {
+        files.forEach((file, error) -> {
+          run.failures.add(file.relativePath(), error);
+          run.fileDone(file);
+        });
+        return;
+      }
+      try {
+        session.forkJoinPool().submit(() -> files.keySet().parallelStream().forEach(file -> run.blame(session, file, IdenticalFiles.none(), true)))
+          .get(run.budget.remainingNanos(), TimeUnit.NANOSECONDS);
+      } catch (ExecutionException e) {
+        LOG.warn("Git blame failed", e.getCause());
+        return;
       }
     }
   }
 
-  private boolean cloneIsInvalid(File gitBaseDir) {
-    if (Files.isRegularFile(gitBaseDir.toPath().resolve(".git/objects/info/alternates"))) {
-      LOG.info("This git repository references another local repository which is not well supported. SCM information might be missing for some files. "
-        + "You can avoid borrow objects from another local repository by not using --reference or --shared when cloning it.");
+  /**
+   * State of a blame, shared by the workers of all repositories.
+   */
+  private class BlameRun {
+    private final BlameOutput output;
+    private final GitMetrics.Phase phase;
+    private final SkippedFiles skippedFiles = new SkippedFiles(settings);
+    private final Set<String> commits = ConcurrentHashMap.newKeySet();
+    private final BlameStatistics statistics;
+    private final BlameBudget budget;
+    private final BlameFailures failures = new BlameFailures();
+    private final Set<InputFile> finishedFiles = ConcurrentHashMap.newKeySet();
+    private final BlameProgress progress;
+
+    private BlameRun(BlameOutput output, GitMetrics.Phase phase, BlameStatistics statistics, BlameBudget budget, BlameProgress progress) {
+      this.output = output;
+      this.phase = phase;
+      this.statistics = statistics;
+      this.budget = budget;
+      this.progress = progress;
+    }
+
+    /**
+     * Identical files are blamed by the same worker, right after the file they are identical to. Files set aside until
+     * missing objects are fetched are not done yet.
+     *
+     * @param retry whether the file was set aside by a previous blame, and is already counted
+     */
+    private void blame(BlameSession session, InputFile blamedFile, IdenticalFiles identicalFiles, boolean retry) {
+      List<BlameLine> blamedLines = null;
+      for (InputFile inputFile : withDuplicates(blamedFile, identicalFiles)) {
+        long cpuStart = GitMetrics.threadCpuTime();
+        long fileStart = System.nanoTime();
+        Set<String> fileCommits = new HashSet<>();
+        BlameOutput measuredOutput = (file, lines) -> {
+          if (budget.isCancelled() || budget.isExhausted()) {
+            // the blame is returning or has returned, results must not be reported anymore
+            budget.overBudget(file.relativePath());
+            return;
+          }
+          phase.add("lines", lines.size());
+          lines.forEach(line -> fileCommits.add(line.revision()));
+          commits.addAll(fileCommits);
+          output.blameResult(file, lines);
+          progress.addLines(lines.size());
+        };
+        if (budget.isCancelled() || budget.isExhausted()) {
+          budget.overBudget(inputFile.relativePath());
+          fileDone(inputFile);
+          continue;
+        }
+        if (!retry) {
+          phase.increment(GitMetrics.FILES);
+          phase.add(GitMetrics.BYTES_READ, inputFile.file().length());
+        }
+        try {
+          List<BlameLine> lines = blameWithRetries(measuredOutput, session, inputFile, skippedFiles, inputFile == blamedFile ? null : blamedLines,
+            budget, failures);
+          if (inputFile == blamedFile) {
+            blamedLines = lines;
+          }
+        } finally {
+          statistics.record(inputFile.relativePath(), System.nanoTime() - fileStart, fileCommits.size());
+          phase.addWorkerCpuTime(GitMetrics.threadCpuTime() - cpuStart);
+          if (session.partialClone() == null || !session.partialClone().isDeferred(inputFile)) {
+            fileDone(inputFile);
+          }
+        }
+      }
+    }
+
+    private void fileDone(InputFile inputFile) {
+      finishedFiles.add(inputFile);
+      progress.fileDone();
+    }
+  }
+
+  /**
+   * The session of a repository, opened by the first blame in this repository. Null if the repository can't be
+   * opened, in which case its files are reported as failed.
+   *
+   * @param directory a directory of the work tree of the repository
+   * @param projectRepository whether this is the repository of the project base directory
+   */
+  @CheckForNull
+  private BlameSession session(File gitDir, Path directory, boolean projectRepository, GitMetrics.Phase phase, List<InputFile> files,
+    BlameFailures failures) {
+    try {
+      return sessions.computeIfAbsent(gitDir, dir -> {
+        long start = System.nanoTime();
+        Repository repo = JGitUtils.buildRepository(directory);
+        phase.addTime("repository open", start);
+        if (cloneIsInvalid(repo)) {
+          return new BlameSession(repo, true, null, null, null, null, null);
+        }
+        MergeBaseBlames repoMergeBaseBlames = mergeBaseBlames.computeIfAbsent(dir, d -> new MergeBaseBlames());
+        return new BlameSession(repo, false, newGitAttributes(repo), newWorkTreeBlobs(repo), PullRequestBlame.create(repo, settings, repoMergeBaseBlames, phase),
+          openBlameIndex(repo, projectRepository, phase), PartialClone.detect(repo, settings));
+      });
+    } catch (RuntimeException e) {
+      files.forEach(file -> failures.add(file.relativePath(), e));
+      return null;
+    }
+  }
+
+  @Override
+  public void start() {
+    // sessions are opened by the first blame of each repository
+  }
+
+  /**
+   * Closes the sessions at the end of the analysis.
+   */
+  @Override
+  public void stop() {
+    sessions.values().forEach(BlameSession::close);
+    sessions.clear();
+  }
+
+  /**
+   * Null in pull request analyses, where HEAD is not the commit of the next analysis.
+   */
+  @CheckForNull
+  private BlameIndex openBlameIndex(Repository repo, boolean projectRepository, GitMetrics.Phase phase) {
+    if (!settings.blameIndex() || settings.isPullRequest()) {
+      return null;
+    }
+    long start = System.nanoTime();
+    // work trees linked to the same repository have different HEADs, so each has its own index
+    Path defaultFile = LinkedWorktree.privateDirectory(repo).toPath().resolve(BlameIndex.DEFAULT_FILE);
+    // the configured file is the one of the repository of the project, other repositories keep theirs
+    Path file = projectRepository ? settings.blameIndexPath().orElse(defaultFile) : defaultFile;
+    try {
+      ObjectId head = repo.resolve(Constants.HEAD);
+      if (head == null) {
+        return null;
+      }
+      BlameIndex blameIndex = BlameIndex.load(file);
+      phase.add("index commits", blameIndex.advanceTo(repo, head));
+      phase.addTime("index update", start);
+      return blameIndex;
+    } catch (IOException e) {
+      LOG.warn("Unable to read the blame index {}, files are blamed without it: {}", file, e.getMessage());
+      LOG.debug("Unable to read the blame index", e);
+      return null;
+    }
+  }
+
+  private static void saveBlameIndex(BlameIndex blameIndex, GitMetrics.Phase phase) {
+    long start = System.nanoTime();
+    try {
+      blameIndex.save();
+    } catch (IOException e) {
+      LOG.warn("Unable to save the blame index: {}", e.getMessage());
+      LOG.debug("Unable to save the blame index", e);
+    }
+    phase.addTime("index save", start);
+  }
+
+  private static List<InputFile> withDuplicates(InputFile inputFile, IdenticalFiles identicalFiles) {
+    List<InputFile> files = new ArrayList<>();
+    files.add(inputFile);
+    files.addAll(identicalFiles.duplicatesOf(inputFile));
+    return files;
+  }
+
+  static int countFiles(BlameInput input) {
+    int count = 0;
+    for (InputFile ignored : input.filesToBlame()) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Stops in-flight blames at their next check of the budget and interrupts the workers, then waits a bit for them to
+   * release the repositories before they are closed. The sessions are dropped, and the interrupted status of the current
+   * thread is restored.
+   */
+  private void cancel(Collection<BlameSession> sessionsToClose, BlameBudget budget) {
+    budget.cancel();
+    for (BlameSession session : sessionsToClose) {
+      sessions.values().remove(session);
+      session.close(CANCELLATION_GRACE_PERIOD_SECONDS);
+    }
+    Thread.currentThread().interrupt();
+  }
+
+  private static WorkTreeBlobs newWorkTreeBlobs(Repository repo) {
+    try {
+      return new WorkTreeBlobs(repo);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read the git index", e);
+    }
+  }
+
+  private static GitAttributes newGitAttributes(Repository repo) {
+    try {
+      return new GitAttributes(repo);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read git attributes", e);
     }
+  }
 
-    if (Files.isRegularFile(gitBaseDir.toPath().resolve(".git/shallow"))) {
+  private boolean cloneIsInvalid(Repository repo) {
+    // the shallow file is in the common directory of linked work trees
+    if (Files.isRegularFile(repo.getDirectory().toPath().resolve("shallow"))) {
       LOG.warn("Shallow clone detected, no blame information will be provided. "
         + "You can convert to non-shallow with 'git fetch --unshallow'.");
       analysisWarnings.addUnique("Shallow clone detected during the analysis. "
@@ -91,39 +421,183 @@ public class JGitBlameCommand extends BlameCommand {
     return false;
   }
 
-  private void blame(BlameOutput output, Git git, File gitBaseDir, InputFile inputFile) {
-    String filename = pathResolver.relativePath(gitBaseDir, inputFile.file());
+  /**
+   * Errors are isolated to the file being blamed, so that the blame of other files goes on. Nothing is reported to the
+   * output before the blame of a file is complete, so it can be retried after a transient error.
+   */
+  @CheckForNull
+  private List<BlameLine> blameWithRetries(BlameOutput output, BlameSession session, InputFile inputFile, SkippedFiles skippedFiles,
+    @Nullable List<BlameLine> identicalFileLines, BlameBudget budget, BlameFailures failures) {
+    for (int attempt = 1;; attempt++) {
+      try {
+        return blame(output, session, inputFile, skippedFiles, identicalFileLines, budget);
+      } catch (Exception e) {
+        if (budget.isCancelled()) {
+          return null;
+        }
+        MissingObjectException missingObject = session.partialClone() == null ? null : PartialClone.missingObject(e);
+        if (missingObject != null && session.partialClone().defer(inputFile, missingObject)) {
+          LOG.debug("Missing object {} to blame file {}, it will be blamed again once fetched", missingObject.getObjectId(), inputFile.relativePath());
+          return null;
+        }
+        if (attempt < MAX_ATTEMPTS && BlameFailures.isTransient(e)) {
+          LOG.debug("Transient error while blaming file {}, retrying: {}", inputFile.relativePath(), e.getMessage());
+        } else {
+          failures.add(inputFile.relativePath(), e);
+          return null;
+        }
+      }
+    }
+  }
+
+  /**
+   * @param identicalFileLines blame of an identical file, if any
+   * @return lines of the blame, unless the file was skipped, approximated or could not be blamed
+   */
+  @CheckForNull
+  private List<BlameLine> blame(BlameOutput output, BlameSession session, InputFile inputFile, SkippedFiles skippedFiles,
+    @Nullable List<BlameLine> identicalFileLines, BlameBudget budget) throws IOException, GitAPIException {
+    long fileStart = System.nanoTime();
+    Git git = session.git();
+    PullRequestBlame pullRequestBlame = session.pullRequestBlame();
+    BlameIndex blameIndex = session.blameIndex();
+    String filename = pathResolver.relativePath(session.workTree(), inputFile.file());
     LOG.debug("Blame file {}", filename);
+    SkippedFiles.Reason skipReason = skippedFiles.reasonToSkip(session.gitAttributes().get(filename), filename, inputFile.file().toPath());
+    if (skipReason != null) {
+      if (skipReason != SkippedFiles.Reason.BINARY) {
+        approximateBlame(output, git, session.workTreeBlobs(), filename, inputFile);
+      }
+      return null;
+    }
+    if (identicalFileLines != null) {
+      ObjectId headBlobId = blameIndex == null ? null : unmodifiedHeadBlobId(git.getRepository(), session.workTreeBlobs(), filename);
+      if (headBlobId != null) {
+        blameIndex.put(filename, headBlobId, identicalFileLines);
+      }
+      report(output, inputFile, identicalFileLines);
+      return identicalFileLines;
+    }
+    // blames of HEAD only apply to files without uncommitted changes
+    ObjectId headBlobId = blameIndex == null && pullRequestBlame == null ? null
+      : unmodifiedHeadBlobId(git.getRepository(), session.workTreeBlobs(), filename);
+    boolean sameAsHead = headBlobId != null;
+    List<BlameLine> indexedLines = blameIndex == null || !sameAsHead ? null : blameIndex.get(filename, headBlobId);
+    if (indexedLines != null) {
+      report(output, inputFile, indexedLines);
+      return indexedLines;
+    }
     BlameResult blameResult;
     try {
-      blameResult = git.blame()
-        // Equivalent to -w command line option
-        .setTextComparator(RawTextComparator.WS_IGNORE_ALL)
-        .setFilePath(filename).call();
-    } catch (Exception e) {
-      throw new IllegalStateException("Unable to blame file " + inputFile.relativePath(), e);
+      if (pullRequestBlame != null && sameAsHead) {
+        List<BlameLine> lines = pullRequestBlame.blame(filename, budget, fileStart);
+        if (lines != null) {
+          report(output, inputFile, lines);
+          return lines;
+        }
+      }
+      blameResult = computeBlame(git.getRepository(), filename, budget, fileStart);
+    } catch (BlameBudget.StoppedException e) {
+      if (budget.isCancelled()) {
+        return null;
+      }
+      LOG.debug("Blame of file {} exceeded its time budget", filename);
+      budget.overBudget(inputFile.relativePath());
+      if (!budget.isExhausted()) {
+        approximateBlame(output, git, session.workTreeBlobs(), filename, inputFile);
+      }
+      return null;
     }
     List<BlameLine> lines = new ArrayList<>();
     if (blameResult == null) {
       LOG.debug("Unable to blame file {}. It is probably a symlink.", inputFile.relativePath());
-      return;
+      return null;
     }
     for (int i = 0; i < blameResult.getResultContents().size(); i++) {
       if (blameResult.getSourceAuthor(i) == null || blameResult.getSourceCommit(i) == null) {
         LOG.debug("Unable to blame file {}. No blame info at line {}. Is file committed? [Author: {} Source commit: {}]", inputFile.relativePath(), i + 1,
           blameResult.getSourceAuthor(i), blameResult.getSourceCommit(i));
-        return;
+        return null;
       }
       lines.add(new BlameLine()
         .date(blameResult.getSourceCommitter(i).getWhen())
         .revision(blameResult.getSourceCommit(i).getName())
         .author(blameResult.getSourceAuthor(i).getEmailAddress()));
     }
+    if (blameIndex != null && sameAsHead) {
+      blameIndex.put(filename, headBlobId, lines);
+    }
+    report(output, inputFile, lines);
+    return lines;
+  }
+
+  private static void report(BlameOutput output, InputFile inputFile, List<BlameLine> lines) {
     if (lines.size() == inputFile.lines() - 1) {
       // SONARPLUGINS-3097 Git do not report blame on last empty line
-      lines.add(lines.get(lines.size() - 1));
+      List<BlameLine> completed = new ArrayList<>(lines);
+      completed.add(lines.get(lines.size() - 1));
+      output.blameResult(inputFile, completed);
+    } else {
+      output.blameResult(inputFile, lines);
     }
-    output.blameResult(inputFile, lines);
   }
 
+  /**
+   * Same as {@link org.eclipse.jgit.api.BlameCommand#call()}, but computing the result one region at a time to check
+   * the time budget in between.
+   */
+  @CheckForNull
+  private static BlameResult computeBlame(Repository repo, String filename, BlameBudget budget, long fileStart)
+    throws IOException, GitAPIException, BlameBudget.StoppedException {
+    try (BlameGenerator generator = new BlameGenerator(repo, filename)) {
+      // Equivalent to -w command line option
+      generator.setTextComparator(RawTextComparator.WS_IGNORE_ALL);
+      generator.prepareHead();
+      BlameResult blameResult = BlameResult.create(generator);
+      if (blameResult == null) {
+        return null;
+      }
+      while (blameResult.computeNext() != -1) {
+        budget.check(fileStart);
+      }
+      return blameResult;
+    }
+  }
+
+  /**
+   * Blob of the file in HEAD, if the file in the work tree has the same content, so that blames of HEAD, like the one of
+   * the pull request or the indexed one, match its lines.
+   */
+  @CheckForNull
+  private static ObjectId unmodifiedHeadBlobId(Repository repo, WorkTreeBlobs workTreeBlobs, String filename) throws IOException {
+    ObjectId head = repo.resolve(Constants.HEAD);
+    return head == null ? null : workTreeBlobs.unmodifiedBlobId(repo.parseCommit(head).getTree(), filename);
+  }
+
+  /**
+   * Files skipped or over budget are attributed entirely to the last commit that modified them, which only requires
+   * walking history until that commit. If the file has uncommitted changes, no blame is provided, like for regular files.
+   */
+  static void approximateBlame(BlameOutput output, Git git, WorkTreeBlobs workTreeBlobs, String filename, InputFile inputFile)
+    throws IOException, GitAPIException {
+    Repository repo = git.getRepository();
+    ObjectId head = repo.resolve(Constants.HEAD);
+    if (head == null) {
+      return;
+    }
+    if (!workTreeBlobs.isSameAs(repo.parseCommit(head).getTree(), filename)) {
+      LOG.debug("Unable to blame file {}. Is file committed?", inputFile.relativePath());
+      return;
+    }
+    Iterator<RevCommit> commits = git.log().add(head).addPath(filename).setMaxCount(1).call().iterator();
+    if (!commits.hasNext()) {
+      return;
+    }
+    RevCommit lastCommit = commits.next();
+    BlameLine line = new BlameLine()
+      .date(lastCommit.getCommitterIdent().getWhen())
+      .revision(lastCommit.getName())
+      .author(lastCommit.getAuthorIdent().getEmailAddress());
+    output.blameResult(inputFile, Collections.nCopies(inputFile.lines(), line));
+  }
 }
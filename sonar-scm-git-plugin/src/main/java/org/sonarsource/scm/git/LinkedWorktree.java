@@ -0,0 +1,234 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.BaseRepositoryBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefRename;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.lib.SymbolicRef;
+
+/**
+ * Work tree added with {@code git worktree add}. Its {@code .git} file points to a private directory, in the
+ * {@code worktrees} directory of the main repository, holding only its HEAD and its index. Everything else, objects,
+ * refs and configuration, is in the common directory named by the {@code commondir} file. JGit doesn't support this
+ * layout: repositories of linked work trees are opened on the common directory, with the index and the HEAD of the
+ * work tree.
+ */
+final class LinkedWorktree {
+
+  private static final String COMMON_DIR_FILE = "commondir";
+  private static final String GIT_DIR_FILE = "gitdir";
+  private static final String SYMREF_PREFIX = "ref: ";
+
+  private final File privateDir;
+  private final File commonDir;
+  private final File workTree;
+
+  private LinkedWorktree(File privateDir, File commonDir, File workTree) {
+    this.privateDir = privateDir;
+    this.commonDir = commonDir;
+    this.workTree = workTree;
+  }
+
+  /**
+   * Linked work tree of the given git directory, or null if it is the git directory of a regular repository.
+   */
+  @CheckForNull
+  static LinkedWorktree of(File gitDir) {
+    Path commonDirFile = gitDir.toPath().resolve(COMMON_DIR_FILE);
+    Path gitDirFile = gitDir.toPath().resolve(GIT_DIR_FILE);
+    if (!Files.isRegularFile(commonDirFile) || !Files.isRegularFile(gitDirFile)) {
+      return null;
+    }
+    try {
+      Path commonDir = gitDir.toPath().resolve(read(commonDirFile)).normalize();
+      // gitdir holds the path of the .git file of the work tree
+      Path dotGit = gitDir.toPath().resolve(read(gitDirFile)).normalize();
+      return new LinkedWorktree(gitDir, commonDir.toFile(), dotGit.getParent().toFile());
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Builds the repository found by the given builder, supporting linked work trees.
+   */
+  static Repository build(RepositoryBuilder builder) throws IOException {
+    LinkedWorktree worktree = builder.getGitDir() == null ? null : of(builder.getGitDir());
+    if (worktree == null) {
+      return builder.build();
+    }
+    return worktree.build();
+  }
+
+  /**
+   * Directory of files private to the work tree of the given repository: its git directory, unless the repository is
+   * the one of a linked work tree.
+   */
+  static File privateDirectory(Repository repo) {
+    if (repo instanceof WorktreeRepository) {
+      return ((WorktreeRepository) repo).privateDir;
+    }
+    return repo.getDirectory();
+  }
+
+  File commonDir() {
+    return commonDir;
+  }
+
+  File workTree() {
+    return workTree;
+  }
+
+  Repository build() throws IOException {
+    RepositoryBuilder builder = new RepositoryBuilder()
+      .setGitDir(commonDir)
+      .setWorkTree(workTree)
+      .setIndexFile(new File(privateDir, "index"))
+      .setMustExist(true)
+      .setup();
+    return new WorktreeRepository(builder, privateDir);
+  }
+
+  private static String read(Path file) throws IOException {
+    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+  }
+
+  private static class WorktreeRepository extends FileRepository {
+    private final File privateDir;
+    private final RefDatabase refs;
+
+    private WorktreeRepository(BaseRepositoryBuilder<?, ?> options, File privateDir) throws IOException {
+      super(options);
+      this.privateDir = privateDir;
+      this.refs = new WorktreeRefDatabase(super.getRefDatabase(), new File(privateDir, Constants.HEAD).toPath());
+    }
+
+    @Override
+    public RefDatabase getRefDatabase() {
+      return refs;
+    }
+  }
+
+  /**
+   * Refs of the common directory, except HEAD which is read from the private directory of the work tree.
+   */
+  private static class WorktreeRefDatabase extends RefDatabase {
+    private final RefDatabase common;
+    private final Path headFile;
+
+    private WorktreeRefDatabase(RefDatabase common, Path headFile) {
+      this.common = common;
+      this.headFile = headFile;
+    }
+
+    @Override
+    public Ref exactRef(String name) throws IOException {
+      if (!Constants.HEAD.equals(name)) {
+        return common.exactRef(name);
+      }
+      if (!Files.isRegularFile(headFile)) {
+        return null;
+      }
+      String head = read(headFile);
+      if (head.startsWith(SYMREF_PREFIX)) {
+        String targetName = head.substring(SYMREF_PREFIX.length()).trim();
+        Ref target = common.exactRef(targetName);
+        return new SymbolicRef(Constants.HEAD, target != null ? target : new ObjectIdRef.Unpeeled(Ref.Storage.NEW, targetName, null));
+      }
+      return new ObjectIdRef.Unpeeled(Ref.Storage.LOOSE, Constants.HEAD, ObjectId.fromString(head));
+    }
+
+    /**
+     * @deprecated required by {@link RefDatabase}
+     */
+    @Deprecated
+    @Override
+    public Map<String, Ref> getRefs(String prefix) throws IOException {
+      Map<String, Ref> refs = new LinkedHashMap<>(common.getRefs(prefix));
+      if (refs.containsKey(Constants.HEAD)) {
+        Ref head = exactRef(Constants.HEAD);
+        if (head == null) {
+          refs.remove(Constants.HEAD);
+        } else {
+          refs.put(Constants.HEAD, head);
+        }
+      }
+      return refs;
+    }
+
+    @Override
+    public List<Ref> getAdditionalRefs() throws IOException {
+      return common.getAdditionalRefs();
+    }
+
+    @Override
+    public Ref peel(Ref ref) throws IOException {
+      return common.peel(ref);
+    }
+
+    @Override
+    public boolean isNameConflicting(String name) throws IOException {
+      return common.isNameConflicting(name);
+    }
+
+    @Override
+    public RefUpdate newUpdate(String name, boolean detach) throws IOException {
+      return common.newUpdate(name, detach);
+    }
+
+    @Override
+    public RefRename newRename(String fromName, String toName) throws IOException {
+      return common.newRename(fromName, toName);
+    }
+
+    @Override
+    public void create() throws IOException {
+      common.create();
+    }
+
+    @Override
+    public void refresh() {
+      common.refresh();
+    }
+
+    @Override
+    public void close() {
+      common.close();
+    }
+  }
+}
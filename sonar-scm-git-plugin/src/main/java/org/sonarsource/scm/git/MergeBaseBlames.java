@@ -0,0 +1,57 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.CheckForNull;
+import org.eclipse.jgit.lib.ObjectId;
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Blames of files in the merge base of a pull request in one repository, indexed by path. The blame of a file in a
+ * given commit never changes, so it can be reused as long as the merge base is the same. Only the blames of the last
+ * merge base are kept.
+ */
+class MergeBaseBlames {
+
+  private final Map<String, List<BlameLine>> blames = new ConcurrentHashMap<>();
+  private ObjectId mergeBase;
+
+  /**
+   * Forgets the blames of another merge base.
+   */
+  synchronized void retain(ObjectId mergeBase) {
+    if (!mergeBase.equals(this.mergeBase)) {
+      blames.clear();
+      this.mergeBase = mergeBase.copy();
+    }
+  }
+
+  @CheckForNull
+  List<BlameLine> get(String path) {
+    return blames.get(path);
+  }
+
+  void put(String path, List<BlameLine> lines) {
+    blames.put(path, lines);
+  }
+}
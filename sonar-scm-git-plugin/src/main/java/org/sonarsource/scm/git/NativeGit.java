@@ -0,0 +1,132 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Helpers to run the git executable.
+ */
+final class NativeGit {
+
+  private static final Logger LOG = Loggers.get(NativeGit.class);
+  private static final long VERSION_TIMEOUT_SECONDS = 10;
+  private static final int MAX_ERRORS_LENGTH = 4096;
+  private static final long ERRORS_DRAIN_TIMEOUT_MS = 1000;
+  private static final Map<String, Boolean> AVAILABILITY = new ConcurrentHashMap<>();
+
+  private NativeGit() {
+    // only static methods
+  }
+
+  /**
+   * Whether the executable can be run and is git. Checked once per executable.
+   */
+  static boolean isAvailable(String executable) {
+    return AVAILABILITY.computeIfAbsent(executable, NativeGit::checkVersion);
+  }
+
+  private static boolean checkVersion(String executable) {
+    try {
+      Process process = new ProcessBuilder(executable, "--version").redirectErrorStream(true).start();
+      try {
+        String version = readFully(process.getInputStream()).trim();
+        if (process.waitFor(VERSION_TIMEOUT_SECONDS, TimeUnit.SECONDS) && process.exitValue() == 0 && version.startsWith("git version")) {
+          LOG.debug("Using {}", version);
+          return true;
+        }
+        LOG.debug("Unexpected output of '{} --version': {}", executable, version);
+      } finally {
+        process.destroyForcibly();
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to run '{}': {}", executable, e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  static String readFully(InputStream is) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = is.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * End of the error output of a process, drained on its own thread so that git never blocks writing warnings while
+   * its output is read.
+   */
+  static final class ErrorOutput {
+    private final InputStream stream;
+    private final StringBuilder errors = new StringBuilder();
+    private final Thread drainer;
+
+    ErrorOutput(Process process, String threadName) {
+      this.stream = process.getErrorStream();
+      this.drainer = new Thread(this::drain, threadName);
+      drainer.setDaemon(true);
+      drainer.start();
+    }
+
+    private void drain() {
+      byte[] buffer = new byte[8192];
+      try (InputStream is = stream) {
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+          synchronized (errors) {
+            errors.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+            if (errors.length() > MAX_ERRORS_LENGTH) {
+              errors.delete(0, errors.length() - MAX_ERRORS_LENGTH);
+            }
+          }
+        }
+      } catch (IOException e) {
+        // the process was destroyed
+      }
+    }
+
+    /**
+     * Error output of the process, once fully drained if it exited
+     */
+    String get() {
+      try {
+        drainer.join(ERRORS_DRAIN_TIMEOUT_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (errors) {
+        return errors.toString().trim();
+      }
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+import javax.annotation.CheckForNull;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameCommand;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.notifications.AnalysisWarnings;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Blames files with the git executable, running {@code git blame --incremental -w} for several files in parallel.
+ * Native git is much faster than JGit on large repositories, in particular when they have a commit-graph.
+ * Files are blamed with {@link JGitBlameCommand} when git is not available, when the repository is a shallow clone
+ * (JGit reports it) and when git fails on a file, in which case JGit only has the time left of the budget.
+ */
+public class NativeGitBlameCommand extends BlameCommand {
+
+  private static final Logger LOG = Loggers.get(NativeGitBlameCommand.class);
+
+  private final JGitBlameCommand jgitBlameCommand;
+  private final AnalysisWarnings analysisWarnings;
+  private final GitSettings settings;
+  private final GitMetrics metrics;
+
+  public NativeGitBlameCommand(JGitBlameCommand jgitBlameCommand, AnalysisWarnings analysisWarnings, GitSettings settings, GitMetrics metrics) {
+    this.jgitBlameCommand = jgitBlameCommand;
+    this.analysisWarnings = analysisWarnings;
+    this.settings = settings;
+    this.metrics = metrics;
+  }
+
+  boolean isAvailable() {
+    return NativeGit.isAvailable(settings.gitExecutable());
+  }
+
+  @Override
+  public void blame(BlameInput input, BlameOutput output) {
+    if (!isAvailable()) {
+      LOG.info("Git executable '{}' is not available, files are blamed with JGit", settings.gitExecutable());
+      jgitBlameCommand.blame(input, output);
+      return;
+    }
+    BlameBudget budget = new BlameBudget(settings.blameTimeout(), settings.blameFileTimeout());
+    List<InputFile> failedFiles = Collections.synchronizedList(new ArrayList<>());
+    try (Repository repo = JGitUtils.buildRepository(input.fileSystem().baseDir().toPath())) {
+      if (Files.isRegularFile(repo.getDirectory().toPath().resolve("shallow"))) {
+        jgitBlameCommand.blame(input, output);
+        return;
+      }
+      if (!blame(repo, input, output, budget, failedFiles)) {
+        return;
+      }
+    }
+
+    if (!failedFiles.isEmpty()) {
+      LOG.info("{} file(s) could not be blamed with git, they are blamed with JGit", failedFiles.size());
+      jgitBlameCommand.blame(onlyFiles(input, new ArrayList<>(failedFiles)), output, budget.remaining());
+    }
+  }
+
+  /**
+   * Skipped files are handled like by {@link JGitBlameCommand}: binary files are not blamed, and other skipped files
+   * are approximated.
+   *
+   * @return false if the blame was interrupted
+   */
+  private boolean blame(Repository repo, BlameInput input, BlameOutput output, BlameBudget budget, List<InputFile> failedFiles) {
+    Path workTree = repo.getWorkTree().toPath();
+    Git git = Git.wrap(repo);
+    GitAttributes gitAttributes;
+    WorkTreeBlobs workTreeBlobs;
+    try {
+      gitAttributes = new GitAttributes(repo);
+      workTreeBlobs = new WorkTreeBlobs(repo);
+    } catch (IOException e) {
+      LOG.debug("Unable to read git attributes or index, files are blamed with JGit", e);
+      input.filesToBlame().forEach(failedFiles::add);
+      return true;
+    }
+    SkippedFiles skippedFiles = new SkippedFiles(settings);
+    BlameStatistics statistics = new BlameStatistics(settings.blameSlowestFiles());
+    Set<Process> processes = ConcurrentHashMap.newKeySet();
+    try (GitMetrics.Phase phase = metrics.start("native blame");
+      BlameProgress progress = new BlameProgress(JGitBlameCommand.countFiles(input), settings.blameProgressInterval())) {
+      ForkJoinPool forkJoinPool = new ForkJoinPool(Math.max(1, settings.blameNativeProcesses()), new GitThreadFactory(), null, false);
+      forkJoinPool.submit(() -> StreamSupport.stream(input.filesToBlame().spliterator(), true).forEach(inputFile -> {
+        if (budget.isCancelled() || budget.isExhausted()) {
+          budget.overBudget(inputFile.relativePath());
+          return;
+        }
+        phase.increment(GitMetrics.FILES);
+        long fileStart = System.nanoTime();
+        int commits = 0;
+        String path = workTree.relativize(inputFile.file().toPath()).toString().replace(File.separatorChar, '/');
+        try {
+          SkippedFiles.Reason skipReason = skippedFiles.reasonToSkip(gitAttributes.get(path), path, inputFile.file().toPath());
+          if (skipReason != null) {
+            if (skipReason != SkippedFiles.Reason.BINARY) {
+              JGitBlameCommand.approximateBlame(output, git, workTreeBlobs, path, inputFile);
+            }
+            return;
+          }
+          List<BlameLine> lines = blame(workTree, path, inputFile, budget, processes);
+          if (lines != null && !budget.isExhausted()) {
+            commits = (int) lines.stream().map(BlameLine::revision).distinct().count();
+            phase.add("lines", lines.size());
+            progress.addLines(lines.size());
+            output.blameResult(inputFile, lines);
+          }
+        } catch (BlameBudget.StoppedException e) {
+          budget.overBudget(inputFile.relativePath());
+        } catch (Exception e) {
+          if (!budget.isCancelled()) {
+            LOG.debug("Unable to blame file " + inputFile.relativePath() + " with git, it will be blamed with JGit", e);
+            failedFiles.add(inputFile);
+          }
+        } finally {
+          statistics.record(inputFile.relativePath(), System.nanoTime() - fileStart, commits);
+          progress.fileDone();
+        }
+      }));
+      forkJoinPool.shutdown();
+      try {
+        if (!forkJoinPool.awaitTermination(budget.remainingNanos(), TimeUnit.NANOSECONDS)) {
+          // processes stuck without output would never check the budget
+          forkJoinPool.shutdownNow();
+          processes.forEach(Process::destroyForcibly);
+        }
+      } catch (InterruptedException e) {
+        LOG.info("Git blame interrupted");
+        budget.cancel();
+        forkJoinPool.shutdownNow();
+        processes.forEach(Process::destroyForcibly);
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      phase.add("JGit fallbacks", failedFiles.size());
+      statistics.report(phase);
+      phase.add("skipped files", skippedFiles.count());
+      budget.report(phase, analysisWarnings);
+    }
+    skippedFiles.logSummary("native blame");
+    return true;
+  }
+
+  /**
+   * @param processes running processes, killed when the budget is exhausted or the blame is interrupted
+   */
+  @CheckForNull
+  private List<BlameLine> blame(Path workTree, String path, InputFile inputFile, BlameBudget budget, Set<Process> processes)
+    throws IOException, InterruptedException, BlameBudget.StoppedException {
+    long fileStart = System.nanoTime();
+    LOG.debug("Blame file {}", path);
+    Process process = new ProcessBuilder(settings.gitExecutable(), "-C", workTree.toString(), "blame", "--incremental", "-w", "--", path).start();
+    processes.add(process);
+    try {
+      // the budget may have been exhausted while the process was started, after running processes were killed
+      budget.check(fileStart);
+      process.getOutputStream().close();
+      NativeGit.ErrorOutput errors = new NativeGit.ErrorOutput(process, "git-blame-errors");
+      List<BlameLine> lines;
+      try (InputStream is = process.getInputStream()) {
+        lines = new IncrementalBlameParser(is, () -> budget.check(fileStart)).parse();
+      }
+      int exitValue = process.waitFor();
+      if (exitValue != 0) {
+        throw new IOException("git blame exited with code " + exitValue + ": " + errors.get());
+      }
+      if (lines == null || lines.isEmpty()) {
+        LOG.debug("Unable to blame file {}. Is file committed?", inputFile.relativePath());
+        return null;
+      }
+      List<BlameLine> result = new ArrayList<>(lines);
+      if (result.size() == inputFile.lines() - 1) {
+        // SONARPLUGINS-3097 Git do not report blame on last empty line
+        result.add(result.get(result.size() - 1));
+      }
+      return result;
+    } finally {
+      processes.remove(process);
+      if (process.isAlive()) {
+        process.destroyForcibly();
+      }
+    }
+  }
+
+  private static BlameInput onlyFiles(BlameInput input, List<InputFile> files) {
+    return new BlameInput() {
+      @Override
+      public FileSystem fileSystem() {
+        return input.fileSystem();
+      }
+
+      @Override
+      public Iterable<InputFile> filesToBlame() {
+        return files;
+      }
+    };
+  }
+}
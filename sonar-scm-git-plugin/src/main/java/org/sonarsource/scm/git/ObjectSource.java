@@ -0,0 +1,42 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.Closeable;
+import java.io.IOException;
+import javax.annotation.CheckForNull;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * Reads the blobs of the merge base compared with the work tree to compute changed lines. Implemented with JGit, and
+ * with git cat-file for repositories JGit can't read.
+ */
+interface ObjectSource extends Closeable {
+
+  /**
+   * @param path path of a file relative to the root of the repository, with '/' as separator
+   * @return id of the blob of the file in the commit, or null if there is no such regular file
+   */
+  @CheckForNull
+  ObjectId findBlob(RevCommit commit, String path) throws IOException;
+
+  byte[] blob(ObjectId blobId) throws IOException;
+}
@@ -0,0 +1,299 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.CheckForNull;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Partial clones, like blobless clones made with {@code --filter=blob:none}, only have some of the blobs: git fetches
+ * the others from the promisor remote one at a time when it needs them, while JGit fails on them. Files which failed
+ * on a missing object are set aside while the other files are blamed with the objects available locally. The blobs
+ * missing in their history are then fetched all at once, with a single command, and these files are blamed again.
+ * <p>
+ * The fetch command reads the ids of the objects to fetch on its standard input, one per line, and runs in the work
+ * tree. By default, it is the command git itself runs to fetch missing objects from the promisor remote.
+ */
+final class PartialClone {
+
+  private static final Logger LOG = Loggers.get(PartialClone.class);
+
+  /**
+   * Blobs of the previous paths of renamed files are only found missing by the next blame
+   */
+  static final int MAX_ROUNDS = 3;
+  static final String DEFAULT_REMOTE = "origin";
+  private static final long OUTPUT_TIMEOUT_SECONDS = 5;
+
+  private final String remote;
+  private final GitSettings settings;
+  private final Map<InputFile, MissingObjectException> deferredFiles = new HashMap<>();
+
+  private PartialClone(String remote, GitSettings settings) {
+    this.remote = remote;
+    this.settings = settings;
+  }
+
+  /**
+   * The partial clone of the given repository, or null if the repository has all its objects, as far as it knows:
+   * it has no promisor remote nor promisor pack.
+   */
+  @CheckForNull
+  static PartialClone detect(Repository repo, GitSettings settings) {
+    Config config = repo.getConfig();
+    String remote = config.getString("extensions", null, "partialclone");
+    if (remote == null) {
+      remote = config.getSubsections("remote").stream()
+        .filter(name -> config.getBoolean("remote", name, "promisor", false))
+        .findFirst()
+        .orElse(null);
+    }
+    if (remote == null && !hasPromisorPacks(repo.getDirectory().toPath().resolve(Constants.OBJECTS).resolve("pack"))) {
+      return null;
+    }
+    PartialClone partialClone = new PartialClone(remote == null ? DEFAULT_REMOTE : remote, settings);
+    LOG.info("Partial clone detected, {}", settings.partialCloneFetch()
+      ? ("missing objects are fetched from the remote '" + partialClone.remote + "' when needed")
+      : "files with missing objects are not blamed");
+    return partialClone;
+  }
+
+  private static boolean hasPromisorPacks(Path packDirectory) {
+    if (!Files.isDirectory(packDirectory)) {
+      return false;
+    }
+    try (Stream<Path> files = Files.list(packDirectory)) {
+      return files.anyMatch(file -> file.getFileName().toString().endsWith(".promisor"));
+    } catch (IOException e) {
+      LOG.debug("Unable to list the git pack directory", e);
+      return false;
+    }
+  }
+
+  String remote() {
+    return remote;
+  }
+
+  /**
+   * The missing object the given error is due to, if any.
+   */
+  @CheckForNull
+  static MissingObjectException missingObject(Throwable error) {
+    for (Throwable t = error; t != null; t = t.getCause()) {
+      if (t instanceof MissingObjectException) {
+        return (MissingObjectException) t;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Sets aside a file whose blame failed on a missing object, until the missing objects are fetched. Always false
+   * when fetching missing objects is disabled: the file is then failed.
+   */
+  boolean defer(InputFile file, MissingObjectException error) {
+    if (!settings.partialCloneFetch()) {
+      return false;
+    }
+    synchronized (deferredFiles) {
+      deferredFiles.put(file, error);
+    }
+    return true;
+  }
+
+  boolean isDeferred(InputFile file) {
+    synchronized (deferredFiles) {
+      return deferredFiles.containsKey(file);
+    }
+  }
+
+  /**
+   * Files set aside since the previous call, with the error that made them set aside.
+   */
+  Map<InputFile, MissingObjectException> takeDeferredFiles() {
+    synchronized (deferredFiles) {
+      Map<InputFile, MissingObjectException> files = new HashMap<>(deferredFiles);
+      deferredFiles.clear();
+      return files;
+    }
+  }
+
+  /**
+   * Fetches the blobs missing in the history of the given files, from HEAD, and the objects of the given errors.
+   *
+   * @return the number of objects fetched
+   */
+  int fetchHistory(Repository repo, Map<InputFile, MissingObjectException> files, long timeoutNanos) throws IOException {
+    Set<ObjectId> missing = new LinkedHashSet<>();
+    ObjectDatabase objects = repo.getObjectDatabase();
+    for (MissingObjectException error : files.values()) {
+      if (error.getObjectId() != null && !objects.has(error.getObjectId())) {
+        missing.add(error.getObjectId());
+      }
+    }
+    List<String> paths = files.keySet().stream()
+      .map(file -> GitScmProvider.toGitPath(repo.getWorkTree().toPath().relativize(file.path()).toString()))
+      .collect(Collectors.toList());
+    ObjectId head = repo.resolve(Constants.HEAD);
+    if (head != null && !paths.isEmpty()) {
+      try (RevWalk walk = new RevWalk(repo)) {
+        walk.markStart(walk.parseCommit(head));
+        walk.setTreeFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(paths), TreeFilter.ANY_DIFF));
+        for (RevCommit commit : walk) {
+          collectMissingBlobs(repo, commit.getTree(), paths, missing);
+        }
+      }
+    }
+    return fetch(repo, missing, timeoutNanos);
+  }
+
+  /**
+   * Fetches the blobs of the given paths missing in the given tree.
+   *
+   * @return the number of objects fetched
+   */
+  int fetchBlobs(Repository repo, RevTree tree, Collection<String> paths, long timeoutNanos) throws IOException {
+    if (paths.isEmpty()) {
+      return 0;
+    }
+    Set<ObjectId> missing = new LinkedHashSet<>();
+    collectMissingBlobs(repo, tree, paths, missing);
+    return fetch(repo, missing, timeoutNanos);
+  }
+
+  private static void collectMissingBlobs(Repository repo, RevTree tree, Collection<String> paths, Set<ObjectId> missing) throws IOException {
+    ObjectDatabase objects = repo.getObjectDatabase();
+    try (TreeWalk treeWalk = new TreeWalk(repo)) {
+      treeWalk.addTree(tree);
+      treeWalk.setRecursive(true);
+      treeWalk.setFilter(PathFilterGroup.createFromStrings(paths));
+      while (treeWalk.next()) {
+        if ((treeWalk.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_FILE && !objects.has(treeWalk.getObjectId(0))) {
+          missing.add(treeWalk.getObjectId(0));
+        }
+      }
+    }
+  }
+
+  private int fetch(Repository repo, Set<ObjectId> ids, long timeoutNanos) throws IOException {
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    List<String> command = fetchCommand();
+    LOG.debug("Fetching {} missing objects with: {}", ids.size(), String.join(" ", command));
+    Process process = new ProcessBuilder(command).directory(repo.getWorkTree()).redirectErrorStream(true).start();
+    try {
+      Thread writer = new Thread(() -> writeIds(process.getOutputStream(), ids), "git-scm-fetch-input");
+      writer.setDaemon(true);
+      writer.start();
+      // drained on another thread, so that a command hanging with its output open doesn't outlive the timeout
+      FutureTask<String> output = new FutureTask<>(() -> NativeGit.readFully(process.getInputStream()));
+      Thread reader = new Thread(output, "git-scm-fetch-output");
+      reader.setDaemon(true);
+      reader.start();
+      if (!process.waitFor(timeoutNanos, TimeUnit.NANOSECONDS)) {
+        LOG.warn("Fetching missing objects timed out, see property '{}'", GitSettings.PARTIAL_CLONE_FETCH_TIMEOUT_PROPERTY);
+        return 0;
+      }
+      if (process.exitValue() != 0) {
+        LOG.warn("Unable to fetch missing objects, exit code {}: {}", process.exitValue(), outputOf(output));
+        return 0;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return 0;
+    } finally {
+      process.destroyForcibly();
+    }
+    // packs written by the fetch are found by the next lookups
+    ObjectDatabase objects = repo.getObjectDatabase();
+    int fetched = 0;
+    for (ObjectId id : ids) {
+      if (objects.has(id)) {
+        fetched++;
+      }
+    }
+    return fetched;
+  }
+
+  /**
+   * Output of the exited command, unless a child process it started still holds it open
+   */
+  private static String outputOf(FutureTask<String> output) throws InterruptedException {
+    try {
+      return output.get(OUTPUT_TIMEOUT_SECONDS, TimeUnit.SECONDS).trim();
+    } catch (ExecutionException | TimeoutException e) {
+      return "";
+    }
+  }
+
+  private static void writeIds(OutputStream stdin, Collection<ObjectId> ids) {
+    try (OutputStream out = stdin) {
+      for (ObjectId id : ids) {
+        out.write((id.name() + "\n").getBytes(StandardCharsets.US_ASCII));
+      }
+    } catch (IOException e) {
+      // the command failed early, its exit code is reported
+      LOG.debug("Unable to write the ids of the objects to fetch", e);
+    }
+  }
+
+  List<String> fetchCommand() {
+    return settings.partialCloneFetchCommand()
+      .map(command -> Arrays.asList(command.trim().split("\\s+")))
+      .orElseGet(() -> new ArrayList<>(Arrays.asList(settings.gitExecutable(), "-c", "fetch.negotiationAlgorithm=noop", "fetch", remote,
+        "--no-tags", "--recurse-submodules=no", "--filter=blob:none", "--stdin")));
+  }
+}
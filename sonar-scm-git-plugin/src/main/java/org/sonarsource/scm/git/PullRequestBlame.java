@@ -0,0 +1,251 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.CheckForNull;
+import org.eclipse.jgit.blame.BlameGenerator;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Blame of a pull request, where only the lines changed since the merge base with the target branch are new. History
+ * is walked from HEAD only until the changed lines are attributed. The other lines are attributed like in the blame of
+ * the merge base, which is shared by all the analyses with the same merge base.
+ * <p>
+ * A line deleted and added back in the pull request is attributed to the merge base rather than to the commit adding
+ * it back, like if it was never deleted.
+ */
+class PullRequestBlame {
+
+  private static final Logger LOG = Loggers.get(PullRequestBlame.class);
+
+  private final Repository repo;
+  private final RevCommit head;
+  private final RevCommit mergeBase;
+  private final Map<String, DiffEntry> renames;
+  private final DiffStrategy diffStrategy;
+  private final MergeBaseBlames mergeBaseBlames;
+  private final AtomicInteger blamedFiles = new AtomicInteger();
+  private final AtomicInteger cacheHits = new AtomicInteger();
+  private final AtomicInteger cacheMisses = new AtomicInteger();
+
+  PullRequestBlame(Repository repo, RevCommit head, RevCommit mergeBase, Map<String, DiffEntry> renames, DiffStrategy diffStrategy,
+    MergeBaseBlames mergeBaseBlames) {
+    this.repo = repo;
+    this.head = head;
+    this.mergeBase = mergeBase;
+    this.renames = renames;
+    this.diffStrategy = diffStrategy;
+    this.mergeBaseBlames = mergeBaseBlames;
+    mergeBaseBlames.retain(mergeBase);
+  }
+
+  /**
+   * Null when no pull request is analyzed, or when its target branch or merge base can't be found.
+   */
+  @CheckForNull
+  static PullRequestBlame create(Repository repo, GitSettings settings, MergeBaseBlames mergeBaseBlames, GitMetrics.Phase phase) {
+    Optional<String> targetBranchName = settings.pullRequestBase();
+    if (!targetBranchName.isPresent() || !settings.blamePullRequestChangedLinesOnly()) {
+      return null;
+    }
+    try {
+      String branch = targetBranchName.get();
+      Ref targetRef = GitScmProvider.getFirstExistingRef(repo, "refs/heads/" + branch, "refs/remotes/origin/" + branch, "refs/remotes/upstream/" + branch);
+      ObjectId headId = repo.resolve(Constants.HEAD);
+      if (targetRef == null || headId == null) {
+        LOG.debug("Target branch '{}' not found, all lines of pull request files are blamed", branch);
+        return null;
+      }
+      Optional<RevCommit> mergeBase = GitScmProvider.findMergeBase(repo, targetRef, phase);
+      if (!mergeBase.isPresent()) {
+        LOG.debug("No merge base found with target branch '{}', all lines of pull request files are blamed", branch);
+        return null;
+      }
+      RevCommit head = repo.parseCommit(headId);
+      Map<String, DiffEntry> renames = new RenameDetection(settings).renames(repo, mergeBase.get().getTree(), head.getTree());
+      return new PullRequestBlame(repo, head, mergeBase.get(), renames, new DiffStrategy(repo.getConfig(), settings), mergeBaseBlames);
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.debug("Unable to find the changes of the pull request, all lines of pull request files are blamed", e);
+      return null;
+    }
+  }
+
+  /**
+   * Blame of the file at HEAD, null if the file didn't exist in the merge base. The file must not be modified in the
+   * work tree, since its lines are the ones of HEAD.
+   */
+  @CheckForNull
+  List<BlameLine> blame(String path, BlameBudget budget, long fileStart) throws IOException, BlameBudget.StoppedException {
+    DiffEntry rename = renames.get(path);
+    String pathInMergeBase = rename == null ? path : rename.getOldPath();
+    ObjectId headBlob = blobId(head, path);
+    ObjectId mergeBaseBlob = blobId(mergeBase, pathInMergeBase);
+    if (headBlob == null || mergeBaseBlob == null) {
+      return null;
+    }
+
+    RawText headText;
+    RawText mergeBaseText;
+    try (ObjectReader reader = repo.newObjectReader()) {
+      headText = new RawText(reader.open(headBlob, Constants.OBJ_BLOB).getCachedBytes());
+      mergeBaseText = new RawText(reader.open(mergeBaseBlob, Constants.OBJ_BLOB).getCachedBytes());
+    }
+    // line of the merge base of each line of HEAD, -1 for changed lines
+    int[] mergeBaseLines = new int[headText.size()];
+    int changedLines = 0;
+    int a = 0;
+    int b = 0;
+    for (Edit edit : diffStrategy.diffIgnoringWhitespaces(path, mergeBaseText, headText)) {
+      while (b < edit.getBeginB()) {
+        mergeBaseLines[b++] = a++;
+      }
+      for (; b < edit.getEndB(); b++) {
+        mergeBaseLines[b] = -1;
+        changedLines++;
+      }
+      a = edit.getEndA();
+    }
+    while (b < mergeBaseLines.length) {
+      mergeBaseLines[b++] = a++;
+    }
+
+    BlameLine[] lines = new BlameLine[headText.size()];
+    if (changedLines > 0 && !blameChangedLines(path, lines, mergeBaseLines, changedLines, budget, fileStart)) {
+      return null;
+    }
+    if (Arrays.stream(lines).anyMatch(line -> line == null)) {
+      List<BlameLine> mergeBaseBlame = mergeBaseBlame(pathInMergeBase, mergeBaseText.size(), budget, fileStart);
+      if (mergeBaseBlame == null) {
+        return null;
+      }
+      for (int i = 0; i < lines.length; i++) {
+        if (lines[i] == null) {
+          lines[i] = mergeBaseBlame.get(mergeBaseLines[i]);
+        }
+      }
+    }
+    blamedFiles.incrementAndGet();
+    return Arrays.asList(lines);
+  }
+
+  /**
+   * Walks history from HEAD until all the changed lines are attributed. Unchanged lines attributed on the way are kept.
+   */
+  private boolean blameChangedLines(String path, BlameLine[] lines, int[] mergeBaseLines, int changedLines, BlameBudget budget, long fileStart)
+    throws IOException, BlameBudget.StoppedException {
+    int remaining = changedLines;
+    Map<ObjectId, BlameLine> byCommit = new HashMap<>();
+    try (BlameGenerator generator = newGenerator(path)) {
+      generator.push(null, head);
+      while (remaining > 0 && generator.next()) {
+        BlameLine line = blameLine(generator, byCommit);
+        for (int i = generator.getResultStart(); i < generator.getResultEnd(); i++) {
+          lines[i] = line;
+          if (mergeBaseLines[i] < 0) {
+            remaining--;
+          }
+        }
+        budget.check(fileStart);
+      }
+    }
+    return remaining == 0;
+  }
+
+  @CheckForNull
+  private List<BlameLine> mergeBaseBlame(String path, int size, BlameBudget budget, long fileStart) throws IOException, BlameBudget.StoppedException {
+    List<BlameLine> cached = mergeBaseBlames.get(path);
+    if (cached != null) {
+      cacheHits.incrementAndGet();
+      return cached;
+    }
+    cacheMisses.incrementAndGet();
+    BlameLine[] lines = new BlameLine[size];
+    Map<ObjectId, BlameLine> byCommit = new HashMap<>();
+    try (BlameGenerator generator = newGenerator(path)) {
+      generator.push(null, mergeBase);
+      while (generator.next()) {
+        BlameLine line = blameLine(generator, byCommit);
+        Arrays.fill(lines, generator.getResultStart(), generator.getResultEnd(), line);
+        budget.check(fileStart);
+      }
+    }
+    if (Arrays.stream(lines).anyMatch(line -> line == null)) {
+      return null;
+    }
+    List<BlameLine> blame = Arrays.asList(lines);
+    mergeBaseBlames.put(path, blame);
+    return blame;
+  }
+
+  private BlameGenerator newGenerator(String path) {
+    BlameGenerator generator = new BlameGenerator(repo, path);
+    // Equivalent to -w command line option
+    generator.setTextComparator(RawTextComparator.WS_IGNORE_ALL);
+    return generator;
+  }
+
+  private static BlameLine blameLine(BlameGenerator generator, Map<ObjectId, BlameLine> byCommit) {
+    RevCommit commit = generator.getSourceCommit();
+    return byCommit.computeIfAbsent(commit, c -> new BlameLine()
+      .date(generator.getSourceCommitter().getWhen())
+      .revision(commit.getName())
+      .author(generator.getSourceAuthor().getEmailAddress()));
+  }
+
+  @CheckForNull
+  private ObjectId blobId(RevCommit commit, String path) throws IOException {
+    try (TreeWalk walk = TreeWalk.forPath(repo, path, commit.getTree())) {
+      if (walk == null || (walk.getRawMode(0) & FileMode.TYPE_MASK) != FileMode.TYPE_FILE) {
+        return null;
+      }
+      return walk.getObjectId(0);
+    }
+  }
+
+  /**
+   * Adds the counters since the previous report to the phase.
+   */
+  void report(GitMetrics.Phase phase) {
+    phase.add("pull request files", blamedFiles.getAndSet(0));
+    phase.add("merge base blame cache hits", cacheHits.getAndSet(0));
+    phase.add("merge base blame cache misses", cacheMisses.getAndSet(0));
+  }
+}
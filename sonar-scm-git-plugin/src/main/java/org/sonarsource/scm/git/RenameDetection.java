@@ -0,0 +1,112 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.eclipse.jgit.diff.DiffConfig;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Pairs deleted and added files of a tree diff into renames and copies, using JGit's {@link RenameDetector}.
+ * Inexact detection compares the content of every added file with every deleted file, so it is only done
+ * when the number of candidates is below the configured rename limit. Above it, only renames of identical
+ * content are detected, which is linear.
+ * Results, including the similarity score of each pair, are cached per pair of trees since both
+ * changed files and changed lines need them during the same analysis.
+ */
+class RenameDetection {
+
+  private static final Logger LOG = Loggers.get(RenameDetection.class);
+
+  private final GitSettings settings;
+  private final Map<String, List<DiffEntry>> cache = new ConcurrentHashMap<>();
+
+  RenameDetection(GitSettings settings) {
+    this.settings = settings;
+  }
+
+  boolean isEnabled() {
+    return settings.renameDetection();
+  }
+
+  List<DiffEntry> detect(Repository repo, AnyObjectId oldTree, AnyObjectId newTree, List<DiffEntry> entries) throws IOException {
+    if (!isEnabled()) {
+      return entries;
+    }
+
+    String key = oldTree.name() + ".." + newTree.name();
+    List<DiffEntry> cached = cache.get(key);
+    if (cached != null) {
+      return cached;
+    }
+
+    List<DiffEntry> result;
+    try (ObjectReader reader = repo.newObjectReader()) {
+      RenameDetector detector = new RenameDetector(reader, repo.getConfig().get(DiffConfig.KEY));
+      detector.setRenameLimit(settings.renameLimit());
+      detector.addAll(entries);
+      result = detector.compute(reader, NullProgressMonitor.INSTANCE);
+      if (detector.isOverRenameLimit()) {
+        LOG.debug("Too many added and deleted files for rename detection (limit is {}), only exact renames were detected", settings.renameLimit());
+      }
+    }
+    cache.put(key, result);
+    return result;
+  }
+
+  /**
+   * Renames between two trees, indexed by new path.
+   */
+  Map<String, DiffEntry> renames(Repository repo, RevTree oldTree, RevTree newTree) throws IOException {
+    if (!isEnabled()) {
+      return Collections.emptyMap();
+    }
+
+    List<DiffEntry> entries = cache.get(oldTree.name() + ".." + newTree.name());
+    if (entries == null) {
+      try (TreeWalk walk = new TreeWalk(repo)) {
+        walk.setRecursive(true);
+        walk.setFilter(TreeFilter.ANY_DIFF);
+        walk.addTree(oldTree);
+        walk.addTree(newTree);
+        entries = detect(repo, oldTree, newTree, DiffEntry.scan(walk));
+      }
+    }
+    return entries.stream()
+      .filter(diffEntry -> diffEntry.getChangeType() == DiffEntry.ChangeType.RENAME)
+      .collect(Collectors.toMap(DiffEntry::getNewPath, Function.identity()));
+  }
+}
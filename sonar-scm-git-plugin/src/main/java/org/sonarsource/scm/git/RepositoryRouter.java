@@ -0,0 +1,66 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.sonar.api.batch.fs.InputFile;
+
+/**
+ * Finds the repository owning each file to blame: the closest one containing it. Files of submodules, of nested
+ * repositories or of linked work trees are then blamed in their own repository rather than in the one of the project.
+ * Files not in any repository are left to the repository of the project, which will report them as not committed.
+ * Lookups are cached by directory.
+ */
+class RepositoryRouter {
+
+  private final Map<Path, Optional<File>> gitDirsByDirectory = new HashMap<>();
+  private final File projectGitDir;
+
+  /**
+   * @param projectGitDir git directory of the repository of the project, owning files not in any repository
+   */
+  RepositoryRouter(File projectGitDir) {
+    this.projectGitDir = projectGitDir;
+  }
+
+  /**
+   * Files by git directory of their repository, in the order of the given files.
+   */
+  Map<File, List<InputFile>> groupByRepository(Iterable<InputFile> files) {
+    Map<File, List<InputFile>> filesByGitDir = new LinkedHashMap<>();
+    for (InputFile file : files) {
+      File gitDir = gitDir(file.path().getParent()).orElse(projectGitDir);
+      filesByGitDir.computeIfAbsent(gitDir, dir -> new ArrayList<>()).add(file);
+    }
+    return filesByGitDir;
+  }
+
+  private Optional<File> gitDir(Path directory) {
+    return gitDirsByDirectory.computeIfAbsent(directory, dir -> Optional.ofNullable(new RepositoryBuilder().findGitDir(dir.toFile()).getGitDir()));
+  }
+}
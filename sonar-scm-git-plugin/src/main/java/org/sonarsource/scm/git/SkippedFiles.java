@@ -0,0 +1,145 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import javax.annotation.CheckForNull;
+import org.eclipse.jgit.attributes.Attribute;
+import org.eclipse.jgit.attributes.Attributes;
+import org.eclipse.jgit.diff.RawText;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Detects files for which running a full diff or blame is pointless or too expensive: binary files, files marked as
+ * generated or not diffable in .gitattributes, and files bigger than a threshold. Callers either skip them or
+ * compute a cheap approximation. Skipped files are counted, per reason, to be reported at the end of a phase.
+ */
+class SkippedFiles {
+
+  private static final Logger LOG = Loggers.get(SkippedFiles.class);
+
+  enum Reason {
+    BINARY("binary"),
+    GENERATED("generated"),
+    TOO_LARGE("too large");
+
+    private final String label;
+
+    Reason(String label) {
+      this.label = label;
+    }
+  }
+
+  private final long maxFileSize;
+  private final Map<Reason, AtomicInteger> counts = new EnumMap<>(Reason.class);
+
+  SkippedFiles(GitSettings settings) {
+    this.maxFileSize = settings.largeFileThreshold();
+    for (Reason reason : Reason.values()) {
+      counts.put(reason, new AtomicInteger());
+    }
+  }
+
+  /**
+   * @param attributes attributes of the file, see {@link GitAttributes}
+   * @param gitPath path of the file relative to the root of the work tree, with '/' as separator
+   * @return why the file should not be diffed or blamed, or null if it should be
+   */
+  @CheckForNull
+  Reason reasonToSkip(Attributes attributes, String gitPath, Path file) throws IOException {
+    Reason reason = detect(attributes, file);
+    if (reason != null) {
+      LOG.debug("File {} is {}, it will not be diffed nor blamed line by line", gitPath, reason.label);
+      counts.get(reason).incrementAndGet();
+    }
+    return reason;
+  }
+
+  @CheckForNull
+  private Reason detect(Attributes attributes, Path file) throws IOException {
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    if (attributes.isUnset("diff")) {
+      return Reason.BINARY;
+    }
+    if (isGenerated(attributes)) {
+      return Reason.GENERATED;
+    }
+    if (Files.size(file) > maxFileSize) {
+      return Reason.TOO_LARGE;
+    }
+    try (InputStream is = Files.newInputStream(file)) {
+      return RawText.isBinary(is) ? Reason.BINARY : null;
+    }
+  }
+
+  private static boolean isGenerated(Attributes attributes) {
+    Attribute generated = attributes.get("linguist-generated");
+    return generated != null
+      && (generated.getState() == Attribute.State.SET || "true".equalsIgnoreCase(attributes.getValue("linguist-generated")));
+  }
+
+  int count() {
+    return counts.values().stream().mapToInt(AtomicInteger::get).sum();
+  }
+
+  void logSummary(String phase) {
+    if (count() == 0) {
+      return;
+    }
+    String details = counts.entrySet().stream()
+      .filter(e -> e.getValue().get() > 0)
+      .map(e -> e.getKey().label + ": " + e.getValue().get())
+      .collect(Collectors.joining(", "));
+    LOG.info("{} {} skipped or approximated during {} ({})", count(), pluralize(count()), phase, details);
+  }
+
+  private static String pluralize(int count) {
+    return count == 1 ? "file" : "files";
+  }
+
+  /**
+   * Number of lines, as counted by git: the last line does not need to end with a line feed.
+   */
+  static int countLines(Path file) throws IOException {
+    int lines = 0;
+    int last = '\n';
+    try (InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
+      int b;
+      while ((b = is.read()) != -1) {
+        if (b == '\n') {
+          lines++;
+        }
+        last = b;
+      }
+    }
+    return last == '\n' ? lines : (lines + 1);
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Stream;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Configures JGit's pack cache, which is global to the JVM. JGit defaults are sized for small repositories:
+ * blaming or diffing files of a repository with multi-GB packs then keeps evicting windows and inflating the same
+ * delta bases again. Unless disabled, the cache is sized from the maximum heap and the total size of the packs of
+ * the repository of the project, including the packs of its alternates, which are read through the same cache.
+ * Settings set explicitly always win.
+ * <p>
+ * Packs can also be memory mapped. Windows are then not copied into the heap and the page cache is shared with other
+ * processes reading the same repository. Mapping is only done when it is considered safe: on 64-bit JVMs, for the
+ * address space, not on Windows, where mapped files can't be deleted by a concurrent gc, and not on network file
+ * systems, where a file truncated under a mapping crashes the JVM.
+ */
+final class WindowCacheTuning {
+
+  private static final Logger LOG = Loggers.get(WindowCacheTuning.class);
+
+  static final long MAX_HEAP_RATIO = 4;
+  static final long MAX_DELTA_BASE_CACHE_HEAP_RATIO = 16;
+  static final long LARGE_PACKS_SIZE = 256L * WindowCacheConfig.MB;
+  static final int LARGE_PACKS_WINDOW_SIZE = 64 * WindowCacheConfig.KB;
+  static final long MAX_MAPPED_LIMIT = 16L * 1024L * WindowCacheConfig.MB;
+  static final int MAPPED_WINDOW_SIZE = WindowCacheConfig.MB;
+  private static final Set<String> NETWORK_FILE_SYSTEMS = new HashSet<>(Arrays.asList("nfs", "nfs4", "cifs", "smb", "smbfs", "smb2", "afs", "9p",
+    "fuse.sshfs"));
+
+  private WindowCacheTuning() {
+    // only static methods
+  }
+
+  static void install(GitSettings settings) {
+    List<Path> packDirectories = settings.projectBaseDir().map(WindowCacheTuning::packDirectories).orElse(Collections.emptyList());
+    long packsSize = settings.packedGitAutoSize() ? packDirectories.stream().mapToLong(WindowCacheTuning::packsSize).sum() : 0L;
+    boolean mmap = settings.packedGitMmap()
+      && isMmapSafe(System.getProperty("os.name"), System.getProperty("sun.arch.data.model"), fileSystemType(packDirectories));
+    WindowCacheConfig config = configure(settings, Runtime.getRuntime().maxMemory(), packsSize, mmap);
+    try {
+      config.install();
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Invalid git pack cache settings, defaults are used: {}", e.getMessage());
+      return;
+    }
+    LOG.debug("Git pack cache: limit {} MB, window size {} KB, delta base cache {} MB, open files {}, memory mapped {}",
+      config.getPackedGitLimit() / WindowCacheConfig.MB, config.getPackedGitWindowSize() / WindowCacheConfig.KB,
+      config.getDeltaBaseCacheLimit() / WindowCacheConfig.MB, config.getPackedGitOpenFiles(), config.isPackedGitMMAP());
+  }
+
+  static WindowCacheConfig configure(GitSettings settings, long maxHeap, long packsSize, boolean mmap) {
+    WindowCacheConfig config = new WindowCacheConfig();
+    config.setPackedGitMMAP(mmap);
+    if (settings.packedGitAutoSize()) {
+      // mapped windows use address space and page cache rather than heap
+      long limit = clamp(packsSize, config.getPackedGitLimit(), mmap ? MAX_MAPPED_LIMIT : (maxHeap / MAX_HEAP_RATIO));
+      config.setPackedGitLimit(limit);
+      if (mmap && limit > MAPPED_WINDOW_SIZE) {
+        config.setPackedGitWindowSize(MAPPED_WINDOW_SIZE);
+      } else if (packsSize >= LARGE_PACKS_SIZE) {
+        config.setPackedGitWindowSize(LARGE_PACKS_WINDOW_SIZE);
+      }
+      long deltaBaseCacheLimit = clamp(limit / 4, config.getDeltaBaseCacheLimit(), Math.min(maxHeap / MAX_DELTA_BASE_CACHE_HEAP_RATIO, Integer.MAX_VALUE));
+      config.setDeltaBaseCacheLimit((int) deltaBaseCacheLimit);
+    }
+    settings.packedGitLimit().ifPresent(config::setPackedGitLimit);
+    settings.packedGitWindowSize().ifPresent(config::setPackedGitWindowSize);
+    settings.packedGitOpenFiles().ifPresent(config::setPackedGitOpenFiles);
+    settings.deltaBaseCacheLimit().ifPresent(config::setDeltaBaseCacheLimit);
+    return config;
+  }
+
+  /**
+   * @param dataModel value of the system property sun.arch.data.model, 32 or 64, if known
+   * @param fileSystemType type of the file system of the packs, if known
+   */
+  static boolean isMmapSafe(@Nullable String osName, @Nullable String dataModel, @Nullable String fileSystemType) {
+    if (osName != null && osName.startsWith("Windows")) {
+      LOG.warn("Memory mapped git packs are not supported on Windows, packs will be read into the heap");
+      return false;
+    }
+    if (dataModel != null && !"64".equals(dataModel)) {
+      LOG.warn("Memory mapped git packs require a 64-bit JVM, packs will be read into the heap");
+      return false;
+    }
+    if (fileSystemType != null && NETWORK_FILE_SYSTEMS.contains(fileSystemType.toLowerCase(Locale.ENGLISH))) {
+      LOG.warn("Memory mapped git packs are not supported on network file systems ({}), packs will be read into the heap", fileSystemType);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Bounds are applied in order: the result is never below the minimum, even if the maximum is lower.
+   */
+  private static long clamp(long value, long min, long max) {
+    return Math.max(min, Math.min(value, max));
+  }
+
+  /**
+   * Pack directories of the repository containing the given directory, if any, followed by the ones of its alternates.
+   */
+  static List<Path> packDirectories(Path dir) {
+    try {
+      FileRepositoryBuilder builder = new FileRepositoryBuilder().findGitDir(dir.toFile());
+      if (builder.getGitDir() == null) {
+        return Collections.emptyList();
+      }
+      LinkedWorktree worktree = LinkedWorktree.of(builder.getGitDir());
+      File objectDirectory = worktree == null ? builder.setup().getObjectDirectory() : new File(worktree.commonDir(), Constants.OBJECTS);
+      List<Path> packDirectories = new ArrayList<>();
+      collectPackDirectories(objectDirectory.toPath(), packDirectories, new HashSet<>());
+      return packDirectories;
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.debug("Unable to find the git pack directories", e);
+      return Collections.emptyList();
+    }
+  }
+
+  private static void collectPackDirectories(Path objectDirectory, List<Path> packDirectories, Set<Path> visited) throws IOException {
+    if (!visited.add(objectDirectory.normalize())) {
+      return;
+    }
+    Path packDirectory = objectDirectory.resolve("pack");
+    if (Files.isDirectory(packDirectory)) {
+      packDirectories.add(packDirectory);
+    }
+    Path alternates = objectDirectory.resolve(Constants.INFO_ALTERNATES);
+    if (Files.isRegularFile(alternates)) {
+      for (String alternate : Files.readAllLines(alternates, StandardCharsets.UTF_8)) {
+        if (!alternate.trim().isEmpty() && !alternate.startsWith("#")) {
+          collectPackDirectories(objectDirectory.resolve(alternate.trim()), packDirectories, visited);
+        }
+      }
+    }
+  }
+
+  /**
+   * Total size of the pack files of the given pack directory.
+   */
+  static long packsSize(Path packDirectory) {
+    try (Stream<Path> files = Files.list(packDirectory)) {
+      return files.filter(file -> file.getFileName().toString().endsWith(".pack"))
+        .mapToLong(file -> file.toFile().length())
+        .sum();
+    } catch (IOException e) {
+      LOG.debug("Unable to compute the size of git packs", e);
+      return 0L;
+    }
+  }
+
+  /**
+   * Type of the file system of the packs: the first network file system if some packs are on one.
+   */
+  @CheckForNull
+  private static String fileSystemType(List<Path> packDirectories) {
+    String first = null;
+    for (Path packDirectory : packDirectories) {
+      String type = fileSystemType(packDirectory);
+      if (type != null && NETWORK_FILE_SYSTEMS.contains(type.toLowerCase(Locale.ENGLISH))) {
+        return type;
+      }
+      first = first == null ? type : first;
+    }
+    return first;
+  }
+
+  @CheckForNull
+  private static String fileSystemType(Path path) {
+    try {
+      return Files.getFileStore(path).type();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import javax.annotation.CheckForNull;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.TreeWalk.OperationType;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+
+/**
+ * Blobs of files of the work tree, as git would add them: after the check-in normalization of the repository, like
+ * core.autocrlf, eol attributes and clean filters. Like git status, files whose stats match their index entry are not
+ * read, the blob of the index entry is used.
+ * <p>
+ * The index is read once, files added to the index later are hashed.
+ */
+class WorkTreeBlobs {
+
+  private final Repository repo;
+  private final DirCache dirCache;
+
+  WorkTreeBlobs(Repository repo) throws IOException {
+    this.repo = repo;
+    this.dirCache = repo.readDirCache();
+    // built once, so that walks of different threads only read it and skip directories not leading to their file
+    dirCache.getCacheTree(true);
+  }
+
+  /**
+   * @param path path of the file relative to the root of the work tree, with '/' as separator
+   * @return id of the blob of the file, or null if it is not a regular file
+   */
+  @CheckForNull
+  ObjectId blobId(String path) throws IOException {
+    try (TreeWalk walk = new TreeWalk(repo)) {
+      walk.setOperationType(OperationType.CHECKIN_OP);
+      int indexTree = walk.addTree(new DirCacheIterator(dirCache));
+      FileTreeIterator files = new FileTreeIterator(repo);
+      int fileTree = walk.addTree(files);
+      files.setDirCacheIterator(walk, indexTree);
+      walk.setFilter(PathFilter.create(path));
+      walk.setRecursive(true);
+      while (walk.next()) {
+        WorkingTreeIterator file = walk.getTree(fileTree, WorkingTreeIterator.class);
+        if (path.equals(walk.getPathString()) && file != null && (walk.getRawMode(fileTree) & FileMode.TYPE_MASK) == FileMode.TYPE_FILE) {
+          return file.getEntryObjectId();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Whether the file has the same content in the work tree as in the given tree, so that blames or diffs of the tree
+   * apply to it.
+   */
+  boolean isSameAs(RevTree tree, String path) throws IOException {
+    return unmodifiedBlobId(tree, path) != null;
+  }
+
+  /**
+   * @return id of the blob of the file in the given tree, or null if the file is not in the tree or is modified in the
+   * work tree
+   */
+  @CheckForNull
+  ObjectId unmodifiedBlobId(RevTree tree, String path) throws IOException {
+    try (TreeWalk walk = TreeWalk.forPath(repo, path, tree)) {
+      if (walk == null || !walk.getObjectId(0).equals(blobId(path))) {
+        return null;
+      }
+      return walk.getObjectId(0);
+    }
+  }
+}
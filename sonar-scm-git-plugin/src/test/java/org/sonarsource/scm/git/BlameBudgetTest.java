@@ -0,0 +1,124 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.time.Duration;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.notifications.AnalysisWarnings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class BlameBudgetTest {
+
+  @Test
+  public void no_limit_when_timeouts_are_zero() throws BlameBudget.StoppedException {
+    BlameBudget budget = new BlameBudget(Duration.ZERO, Duration.ZERO);
+
+    budget.check(System.nanoTime() - Duration.ofDays(1).toNanos());
+    assertThat(budget.isExhausted()).isFalse();
+    assertThat(budget.remainingNanos()).isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test
+  public void no_limit_by_default() {
+    GitSettings settings = new GitSettings(new MapSettings().asConfig());
+    BlameBudget budget = new BlameBudget(settings.blameTimeout(), settings.blameFileTimeout());
+
+    assertThat(settings.blameTimeout()).isEqualTo(Duration.ZERO);
+    assertThat(settings.blameFileTimeout()).isEqualTo(Duration.ZERO);
+    assertThat(budget.remainingNanos()).isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test
+  public void file_over_budget() {
+    BlameBudget budget = new BlameBudget(Duration.ZERO, Duration.ofMinutes(1));
+
+    assertThatThrownBy(() -> budget.check(System.nanoTime() - Duration.ofMinutes(2).toNanos()))
+      .isInstanceOf(BlameBudget.StoppedException.class);
+    assertThat(budget.isExhausted()).isFalse();
+  }
+
+  @Test
+  public void overall_budget_exhausted() {
+    BlameBudget budget = new BlameBudget(Duration.ofNanos(1), Duration.ZERO);
+
+    assertThat(budget.isExhausted()).isTrue();
+    assertThat(budget.remainingNanos()).isZero();
+    assertThatThrownBy(() -> budget.check(System.nanoTime())).isInstanceOf(BlameBudget.StoppedException.class);
+  }
+
+  @Test
+  public void remaining_budget_doesnt_restart_the_overall_budget() {
+    assertThat(new BlameBudget(Duration.ofNanos(1), Duration.ZERO).remaining().isExhausted()).isTrue();
+    assertThat(new BlameBudget(Duration.ZERO, Duration.ZERO).remaining().remainingNanos()).isEqualTo(Long.MAX_VALUE);
+    assertThat(new BlameBudget(Duration.ofHours(1), Duration.ZERO).remaining().remainingNanos()).isBetween(1L, Duration.ofHours(1).toNanos());
+  }
+
+  @Test
+  public void cancel_stops_blames_without_reporting_them_over_budget() {
+    BlameBudget budget = new BlameBudget(Duration.ZERO, Duration.ZERO);
+
+    budget.cancel();
+    budget.overBudget("a");
+
+    assertThat(budget.isCancelled()).isTrue();
+    assertThatThrownBy(() -> budget.check(System.nanoTime())).isInstanceOf(BlameBudget.StoppedException.class);
+    assertThat(budget.overBudgetFiles()).isEmpty();
+  }
+
+  @Test
+  public void interrupted_thread_is_cancelled() {
+    BlameBudget budget = new BlameBudget(Duration.ZERO, Duration.ZERO);
+
+    Thread.currentThread().interrupt();
+    try {
+      assertThat(budget.isCancelled()).isTrue();
+    } finally {
+      Thread.interrupted();
+    }
+    assertThat(budget.isCancelled()).isFalse();
+  }
+
+  @Test
+  public void report_files_over_budget() {
+    BlameBudget budget = new BlameBudget(Duration.ZERO, Duration.ZERO);
+    AnalysisWarnings analysisWarnings = mock(AnalysisWarnings.class);
+    GitMetrics.Phase phase = new GitMetrics(new GitSettings(new MapSettings().asConfig())).start("blame");
+
+    budget.report(phase, analysisWarnings);
+    verify(analysisWarnings, never()).addUnique(anyString());
+
+    budget.overBudget("b");
+    budget.overBudget("a");
+    budget.overBudget("a");
+    budget.report(phase, analysisWarnings);
+
+    assertThat(budget.overBudgetFiles()).containsExactly("a", "b");
+    assertThat(phase.counters()).containsEntry("files over budget", 2L);
+    verify(analysisWarnings).addUnique("Git blame exceeded its time budget for 2 file(s). "
+      + "SCM information of these files is approximated or missing, see the analysis logs for details.");
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import org.eclipse.jgit.api.errors.JGitInternalException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.PackInvalidException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class BlameFailuresTest {
+
+  @Test
+  public void missing_objects_and_invalid_packs_are_transient() {
+    MissingObjectException missingObject = new MissingObjectException(ObjectId.zeroId(), Constants.OBJ_BLOB);
+
+    assertThat(BlameFailures.isTransient(missingObject)).isTrue();
+    assertThat(BlameFailures.isTransient(new JGitInternalException("error", missingObject))).isTrue();
+    assertThat(BlameFailures.isTransient(new PackInvalidException("pack-1234.pack", null))).isTrue();
+    assertThat(BlameFailures.isTransient(new IOException("error"))).isFalse();
+    assertThat(BlameFailures.isTransient(new IllegalStateException("error", new IOException("error")))).isFalse();
+  }
+
+  @Test
+  public void failures_are_sorted_by_file() {
+    BlameFailures failures = new BlameFailures();
+
+    failures.add("b", new IOException("error b"));
+    failures.add("a", new IOException("error a"));
+
+    assertThat(failures.failures()).containsExactly(entry("a", "error a"), entry("b", "error b"));
+  }
+}
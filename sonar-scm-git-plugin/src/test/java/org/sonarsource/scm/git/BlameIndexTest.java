@@ -0,0 +1,282 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.blame.BlameResult;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlameIndexTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private File workTree;
+  private Git git;
+  private Path indexFile;
+
+  @Before
+  public void prepare() throws IOException, GitAPIException {
+    workTree = temp.newFolder();
+    git = Git.init().setDirectory(workTree).call();
+    indexFile = temp.getRoot().toPath().resolve("index/blame.idx");
+  }
+
+  @After
+  public void tearDown() {
+    git.close();
+  }
+
+  @Test
+  public void save_and_load_blames() throws Exception {
+    RevCommit commit = commit("a.txt", "a\nb\n");
+    BlameIndex index = BlameIndex.load(indexFile);
+    index.advanceTo(git.getRepository(), commit);
+    index.put("a.txt", blobId(commit, "a.txt"), blame("a.txt"));
+    index.save();
+
+    BlameIndex loaded = BlameIndex.load(indexFile);
+    assertThat(loaded.advanceTo(git.getRepository(), commit)).isZero();
+    assertThat(revisions(loaded.get("a.txt", blobId(commit, "a.txt")))).containsExactly(commit.name(), commit.name());
+    assertThat(loaded.get("b.txt", blobId(commit, "a.txt"))).isNull();
+    assertThat(loaded.hits()).isEqualTo(1);
+    assertThat(loaded.misses()).isEqualTo(1);
+  }
+
+  @Test
+  public void dont_answer_blame_of_another_blob() throws Exception {
+    RevCommit commit = commit("a.txt", "a\nb\n");
+    BlameIndex index = BlameIndex.load(indexFile);
+    index.advanceTo(git.getRepository(), commit);
+    index.put("a.txt", blobId(commit, "a.txt"), blame("a.txt"));
+
+    assertThat(index.get("a.txt", ObjectId.zeroId())).isNull();
+    assertThat(index.misses()).isEqualTo(1);
+  }
+
+  @Test
+  public void apply_commits_like_the_blame() throws Exception {
+    RevCommit first = commit("a.txt", "a\nb\nc\n");
+    commit("b.txt", "b\n");
+    BlameIndex index = BlameIndex.load(indexFile);
+    index.advanceTo(git.getRepository(), first);
+    index.put("a.txt", blobId(first, "a.txt"), blame("a.txt"));
+    index.save();
+
+    commit("a.txt", "a\n  b\nx\nc\n");
+    RevCommit last = commit("a.txt", "y\na\n  b\nx\nc\n");
+    BlameIndex loaded = BlameIndex.load(indexFile);
+    assertThat(loaded.advanceTo(git.getRepository(), last)).isEqualTo(3);
+
+    assertThat(loaded.get("a.txt", blobId(last, "a.txt"))).isEqualTo(blame("a.txt"));
+    loaded.save();
+    assertThat(BlameIndex.load(indexFile).get("a.txt", blobId(last, "a.txt"))).isEqualTo(blame("a.txt"));
+  }
+
+  @Test
+  public void drop_deleted_files() throws Exception {
+    RevCommit first = commit("a.txt", "a\n");
+    BlameIndex index = BlameIndex.load(indexFile);
+    index.advanceTo(git.getRepository(), first);
+    index.put("a.txt", blobId(first, "a.txt"), blame("a.txt"));
+
+    git.rm().addFilepattern("a.txt").call();
+    RevCommit deletion = git.commit().setMessage("delete").call();
+    index.advanceTo(git.getRepository(), deletion);
+
+    assertThat(index.get("a.txt", blobId(first, "a.txt"))).isNull();
+    assertThat(index.size()).isZero();
+  }
+
+  @Test
+  public void empty_index_when_its_commit_is_not_a_first_parent_of_head() throws Exception {
+    RevCommit first = commit("a.txt", "a\n");
+    BlameIndex index = BlameIndex.load(indexFile);
+    index.advanceTo(git.getRepository(), first);
+    index.put("a.txt", blobId(first, "a.txt"), blame("a.txt"));
+    index.save();
+
+    git.checkout().setOrphan(true).setName("other").call();
+    RevCommit unrelated = commit("a.txt", "b\n");
+    BlameIndex loaded = BlameIndex.load(indexFile);
+    assertThat(loaded.advanceTo(git.getRepository(), unrelated)).isZero();
+
+    assertThat(loaded.get("a.txt", blobId(first, "a.txt"))).isNull();
+    loaded.save();
+    assertThat(BlameIndex.load(indexFile).size()).isZero();
+  }
+
+  @Test
+  public void ignore_interrupted_saves() throws Exception {
+    RevCommit first = commit("a.txt", "a\n");
+    BlameIndex index = BlameIndex.load(indexFile);
+    index.advanceTo(git.getRepository(), first);
+    index.put("a.txt", blobId(first, "a.txt"), blame("a.txt"));
+    index.save();
+    long length = Files.size(indexFile);
+
+    RevCommit second = commit("a.txt", "a\nb\n");
+    index.advanceTo(git.getRepository(), second);
+    index.save();
+    try (RandomAccessFile file = new RandomAccessFile(indexFile.toFile(), "rw")) {
+      // drop the last record, which marks the save as complete
+      file.setLength(file.length() - 1);
+    }
+
+    BlameIndex loaded = BlameIndex.load(indexFile);
+    assertThat(revisions(loaded.get("a.txt", blobId(first, "a.txt")))).containsExactly(first.name());
+    loaded.advanceTo(git.getRepository(), second);
+    loaded.save();
+    assertThat(Files.size(indexFile)).isGreaterThan(length);
+    assertThat(revisions(BlameIndex.load(indexFile).get("a.txt", blobId(second, "a.txt")))).containsExactly(first.name(), second.name());
+  }
+
+  @Test
+  public void rebuild_index_with_unknown_format() throws Exception {
+    Files.createDirectories(indexFile.getParent());
+    Files.write(indexFile, "garbage".getBytes(StandardCharsets.UTF_8));
+    RevCommit first = commit("a.txt", "a\n");
+
+    BlameIndex index = BlameIndex.load(indexFile);
+    assertThat(index.size()).isZero();
+    index.advanceTo(git.getRepository(), first);
+    index.put("a.txt", blobId(first, "a.txt"), blame("a.txt"));
+    index.save();
+
+    assertThat(revisions(BlameIndex.load(indexFile).get("a.txt", blobId(first, "a.txt")))).containsExactly(first.name());
+  }
+
+  @Test
+  public void compact_obsolete_records() throws Exception {
+    RevCommit commit = commit("a.txt", "a\n");
+    BlameIndex index = BlameIndex.load(indexFile);
+    index.advanceTo(git.getRepository(), commit);
+    List<BlameLine> lines = blame("a.txt");
+    ObjectId blobId = blobId(commit, "a.txt");
+    index.put("a.txt", blobId, lines);
+    index.save();
+    long length = Files.size(indexFile);
+
+    for (int i = 0; i < 10; i++) {
+      index.put("a.txt", blobId, lines);
+      index.save();
+    }
+
+    assertThat(Files.size(indexFile)).isEqualTo(length);
+    assertThat(BlameIndex.load(indexFile).get("a.txt", blobId)).isEqualTo(lines);
+  }
+
+  @Test
+  public void rewrite_index_rewritten_by_another_analysis_since_it_was_loaded() throws Exception {
+    RevCommit first = commit("a.txt", "a\n");
+    BlameIndex index = BlameIndex.load(indexFile);
+    index.advanceTo(git.getRepository(), first);
+    index.put("a.txt", blobId(first, "a.txt"), blame("a.txt"));
+    index.save();
+    BlameIndex loadedBefore = BlameIndex.load(indexFile);
+
+    // the other analysis renumbers commits: the first one is no longer referenced
+    git.rm().addFilepattern("a.txt").call();
+    RevCommit second = commit("b.txt", "b\n");
+    BlameIndex other = BlameIndex.load(indexFile);
+    other.advanceTo(git.getRepository(), second);
+    other.put("b.txt", blobId(second, "b.txt"), blame("b.txt"));
+    other.save();
+
+    // appended records would reference commits of the previous generation
+    loadedBefore.advanceTo(git.getRepository(), first);
+    loadedBefore.put("a.txt", blobId(first, "a.txt"), Collections.singletonList(blameLine(first)));
+    loadedBefore.save();
+
+    BlameIndex loaded = BlameIndex.load(indexFile);
+    assertThat(revisions(loaded.get("a.txt", blobId(first, "a.txt")))).containsExactly(first.name());
+  }
+
+  @Test
+  public void dont_save_while_another_analysis_saves() throws Exception {
+    RevCommit commit = commit("a.txt", "a\n");
+    BlameIndex index = BlameIndex.load(indexFile);
+    index.advanceTo(git.getRepository(), commit);
+    index.put("a.txt", blobId(commit, "a.txt"), blame("a.txt"));
+    Files.createDirectories(indexFile.getParent());
+
+    try (FileChannel channel = FileChannel.open(indexFile.resolveSibling("blame.idx.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      FileLock lock = channel.lock()) {
+      index.save();
+    }
+
+    assertThat(indexFile).doesNotExist();
+  }
+
+  private RevCommit commit(String path, String content) throws IOException, GitAPIException {
+    Files.write(workTree.toPath().resolve(path), content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    git.add().addFilepattern(path).call();
+    return git.commit().setMessage("commit " + path).setAuthor("joe", "joe@example.com").call();
+  }
+
+  private ObjectId blobId(RevCommit commit, String path) throws IOException {
+    try (TreeWalk walk = TreeWalk.forPath(git.getRepository(), path, commit.getTree())) {
+      return walk.getObjectId(0);
+    }
+  }
+
+  private static BlameLine blameLine(RevCommit commit) {
+    return new BlameLine().date(commit.getCommitterIdent().getWhen()).revision(commit.name()).author(commit.getAuthorIdent().getEmailAddress());
+  }
+
+  private List<BlameLine> blame(String path) throws GitAPIException {
+    BlameResult result = git.blame().setFilePath(path).setTextComparator(RawTextComparator.WS_IGNORE_ALL).call();
+    return IntStream.range(0, result.getResultContents().size())
+      .mapToObj(i -> new BlameLine()
+        .date(result.getSourceCommitter(i).getWhen())
+        .revision(result.getSourceCommit(i).getName())
+        .author(result.getSourceAuthor(i).getEmailAddress()))
+      .collect(Collectors.toList());
+  }
+
+  private static List<String> revisions(List<BlameLine> lines) {
+    return lines.stream().map(BlameLine::revision).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.time.Duration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.utils.log.LogTester;
+import org.sonar.api.utils.log.LoggerLevel;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlameProgressTest {
+
+  @Rule
+  public LogTester logTester = new LogTester();
+
+  @Test
+  public void log_files_done_throughput_and_remaining_time() {
+    try (BlameProgress progress = new BlameProgress(4, Duration.ZERO)) {
+      progress.log();
+      progress.fileDone();
+      progress.addLines(100);
+      progress.log();
+    }
+
+    assertThat(logTester.logs(LoggerLevel.INFO)).hasSize(2);
+    assertThat(logTester.logs(LoggerLevel.INFO).get(0)).matches("0/4 files blamed, 0 lines/s, estimated time remaining: unknown");
+    assertThat(logTester.logs(LoggerLevel.INFO).get(1)).matches("1/4 files blamed, \\d+ lines/s, estimated time remaining: \\d+s");
+  }
+
+  @Test
+  public void log_periodically() throws InterruptedException {
+    try (BlameProgress progress = new BlameProgress(1, Duration.ofMillis(10))) {
+      Thread.sleep(200);
+    }
+
+    assertThat(logTester.logs(LoggerLevel.INFO)).isNotEmpty().allMatch(log -> log.startsWith("0/1 files blamed"));
+  }
+
+  @Test
+  public void format_durations() {
+    assertThat(BlameProgress.formatDuration(999)).isEqualTo("0s");
+    assertThat(BlameProgress.formatDuration(61_000)).isEqualTo("1m 1s");
+    assertThat(BlameProgress.formatDuration(3_720_000)).isEqualTo("1h 2m");
+  }
+}
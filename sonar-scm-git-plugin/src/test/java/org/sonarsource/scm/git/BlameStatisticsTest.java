@@ -0,0 +1,99 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.log.LogTester;
+import org.sonar.api.utils.log.LoggerLevel;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class BlameStatisticsTest {
+
+  @Rule
+  public LogTester logTester = new LogTester();
+
+  private final GitMetrics metrics = new GitMetrics(new GitSettings(new MapSettings().asConfig()));
+
+  @Test
+  public void keep_slowest_files() {
+    BlameStatistics underTest = new BlameStatistics(2);
+
+    underTest.record("a", millis(10), 1);
+    underTest.record("b", millis(30), 3);
+    underTest.record("c", millis(5), 1);
+    underTest.record("d", millis(20), 2);
+
+    assertThat(underTest.slowestFiles()).extracting(BlameStatistics.FileBlame::file).containsExactly("b", "d");
+  }
+
+  @Test
+  public void report_percentiles_and_slowest_files() {
+    BlameStatistics underTest = new BlameStatistics(2);
+    for (int i = 1; i <= 100; i++) {
+      underTest.record("file" + i, millis(i), i % 10);
+    }
+
+    try (GitMetrics.Phase phase = metrics.start("blame")) {
+      underTest.report(phase);
+    }
+
+    // percentiles are the highest values of their bucket of the histogram
+    assertThat(metrics.phases().get(0).counters()).contains(
+      entry("file p50 ms", 50L),
+      entry("file p95 ms", 96L),
+      entry("file p99 ms", 100L),
+      entry("file max ms", 100L),
+      entry("file commits p50", 4L),
+      entry("file commits p99", 9L));
+    assertThat(logTester.logs(LoggerLevel.INFO)).contains("Slowest files to blame: file100 (100 ms, 0 commits), file99 (99 ms, 9 commits)");
+  }
+
+  @Test
+  public void dont_report_slowest_files_if_disabled() {
+    BlameStatistics underTest = new BlameStatistics(0);
+    underTest.record("a", millis(10), 1);
+
+    try (GitMetrics.Phase phase = metrics.start("blame")) {
+      underTest.report(phase);
+    }
+
+    assertThat(underTest.slowestFiles()).isEmpty();
+    assertThat(metrics.phases().get(0).counters()).containsKey("file p50 ms");
+    assertThat(logTester.logs(LoggerLevel.INFO)).noneMatch(s -> s.startsWith("Slowest files"));
+  }
+
+  @Test
+  public void dont_report_without_files() {
+    try (GitMetrics.Phase phase = metrics.start("blame")) {
+      new BlameStatistics(10).report(phase);
+    }
+
+    assertThat(metrics.phases().get(0).counters()).doesNotContainKey("file p50 ms");
+  }
+
+  private static long millis(long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assume.assumeTrue;
+import static org.sonarsource.scm.git.Utils.javaUnzip;
+
+public class CatFileBatchTest {
+
+  private static final String DUMMY_JAVA = "src/main/java/org/dummy/Dummy.java";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private Repository repo;
+  private RevCommit head;
+  private CatFileBatch catFileBatch;
+
+  @Before
+  public void prepare() throws IOException {
+    assumeTrue(NativeGit.isAvailable("git"));
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    repo = JGitUtils.buildRepository(new File(projectDir, "dummy-git").toPath());
+    head = repo.parseCommit(repo.resolve(Constants.HEAD));
+    catFileBatch = new CatFileBatch("git", repo.getDirectory().toPath(), 2);
+  }
+
+  @After
+  public void tearDown() {
+    if (catFileBatch != null) {
+      catFileBatch.close();
+      repo.close();
+    }
+  }
+
+  @Test
+  public void find_and_read_blobs_like_jgit() throws IOException {
+    ObjectId blobId = catFileBatch.findBlob(head, DUMMY_JAVA);
+
+    try (TreeWalk walk = TreeWalk.forPath(repo, DUMMY_JAVA, head.getTree()); ObjectReader reader = repo.newObjectReader()) {
+      assertThat(blobId).isEqualTo(walk.getObjectId(0));
+      assertThat(catFileBatch.blob(blobId)).isEqualTo(reader.open(blobId).getCachedBytes());
+    }
+  }
+
+  @Test
+  public void no_blob_for_missing_files_and_directories() throws IOException {
+    assertThat(catFileBatch.findBlob(head, "src/main/java/org/dummy/Missing.java")).isNull();
+    assertThat(catFileBatch.findBlob(head, "src/main/java")).isNull();
+    assertThat(catFileBatch.findBlob(head, "pom.xml/child")).isNull();
+  }
+
+  @Test
+  public void pipeline_requests() throws IOException {
+    ObjectId blobId = catFileBatch.findBlob(head, DUMMY_JAVA);
+    byte[] content = catFileBatch.blob(blobId);
+
+    List<byte[]> objects = catFileBatch.read(Collections.nCopies(3 * CatFileBatch.PIPELINE_DEPTH + 1, blobId), Constants.OBJ_BLOB);
+
+    assertThat(objects).hasSize(3 * CatFileBatch.PIPELINE_DEPTH + 1).allMatch(object -> Arrays.equals(object, content));
+    assertThat(catFileBatch.startedProcesses()).isEqualTo(1);
+  }
+
+  @Test
+  public void fail_on_missing_objects_and_unexpected_types_then_recover() throws IOException {
+    assertThatThrownBy(() -> catFileBatch.blob(ObjectId.fromString("0123456789012345678901234567890123456789")))
+      .isInstanceOf(MissingObjectException.class);
+    assertThatThrownBy(() -> catFileBatch.blob(head.getTree()))
+      .isInstanceOf(IOException.class)
+      .hasMessageEndingWith("is a tree, expected a blob");
+
+    assertThat(catFileBatch.findBlob(head, DUMMY_JAVA)).isNotNull();
+  }
+
+  @Test
+  public void share_processes_between_threads() throws Exception {
+    ObjectId blobId = catFileBatch.findBlob(head, DUMMY_JAVA);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<byte[]>> futures = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        futures.add(executor.submit(() -> catFileBatch.blob(blobId)));
+      }
+      for (Future<byte[]> future : futures) {
+        assertThat(future.get()).isNotEmpty();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(catFileBatch.startedProcesses()).isBetween(1, 2);
+  }
+
+  @Test
+  public void fail_once_closed() {
+    catFileBatch.close();
+
+    assertThatThrownBy(() -> catFileBatch.findBlob(head, DUMMY_JAVA))
+      .isInstanceOf(IOException.class)
+      .hasMessage("git cat-file processes are closed");
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.EditList;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.log.LogTester;
+import org.sonar.api.utils.log.LoggerLevel;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DiffStrategyTest {
+
+  @Rule
+  public LogTester logTester = new LogTester();
+
+  private final MapSettings settings = new MapSettings();
+
+  @Test
+  public void diff_normal_files_with_configured_algorithm() {
+    RawText a = text("a", "b", "c", "d");
+    RawText b = text("a", "B", "c", "d", "e");
+
+    assertThat(changedLines(newStrategy().diffIgnoringWhitespaces("file", a, b))).containsOnly(2, 5);
+  }
+
+  @Test
+  public void ignore_whitespaces() {
+    RawText a = text("a", "b c", "d");
+    RawText b = text("a", "b  c", "D");
+
+    assertThat(changedLines(newStrategy().diffIgnoringWhitespaces("file", a, b))).containsOnly(3);
+  }
+
+  @Test
+  public void large_files_are_diffed_exactly_when_regions_are_small() {
+    settings.setProperty(GitSettings.DIFF_LARGE_FILE_LINES_PROPERTY, 10);
+    RawText a = text(IntStream.range(0, 50).mapToObj(i -> "line" + i).toArray(String[]::new));
+    RawText b = text(IntStream.range(0, 50).mapToObj(i -> i == 20 ? "changed" : ("line" + i)).toArray(String[]::new));
+
+    assertThat(changedLines(newStrategy().diffIgnoringWhitespaces("file", a, b))).containsOnly(21);
+  }
+
+  @Test
+  public void approximate_regions_of_large_files_too_big_for_myers() {
+    logTester.setLevel(LoggerLevel.DEBUG);
+    settings.setProperty(GitSettings.DIFF_LARGE_FILE_LINES_PROPERTY, 10);
+    settings.setProperty(GitSettings.DIFF_MAX_MYERS_REGION_LINES_PROPERTY, 4);
+    // histogram can't split regions only made of lines repeated more than its max chain length
+    RawText a = text(IntStream.range(0, 200).mapToObj(i -> i % 2 == 0 ? "x" : "z").toArray(String[]::new));
+    RawText b = text(IntStream.range(0, 200).mapToObj(i -> i % 2 == 0 ? "z" : "x").toArray(String[]::new));
+
+    EditList edits = newStrategy().diffIgnoringWhitespaces("file", a, b);
+
+    assertValid(edits, a, b);
+    assertThat(changedLines(edits)).isNotEmpty();
+    assertThat(logTester.logs(LoggerLevel.DEBUG)).anyMatch(s -> s.startsWith("File file has") && s.contains("regions too large to be diffed exactly"));
+  }
+
+  @Test
+  public void line_hash_diff_matches_unique_lines_and_extends_matches() {
+    RawText a = text("a", "b", "c", "d", "e", "f");
+    RawText b = text("a", "new", "c", "d", "f", "g");
+
+    EditList edits = DiffStrategy.lineHashDiff(RawTextComparator.DEFAULT, a, b);
+
+    assertValid(edits, a, b);
+    assertThat(changedLines(edits)).containsOnly(2, 6);
+  }
+
+  @Test
+  public void line_hash_diff_only_matches_repeated_lines_following_a_match() {
+    RawText a = text("x", "a", "x", "x");
+    RawText b = text("x", "x", "a", "x");
+
+    EditList edits = DiffStrategy.lineHashDiff(RawTextComparator.DEFAULT, a, b);
+
+    assertValid(edits, a, b);
+    assertThat(changedLines(edits)).containsOnly(2);
+  }
+
+  @Test
+  public void line_hash_diff_of_unrelated_texts() {
+    RawText a = text("a", "b");
+    RawText b = text("c");
+
+    assertThat(DiffStrategy.lineHashDiff(RawTextComparator.DEFAULT, a, b)).containsExactly(new Edit(0, 2, 0, 1));
+    assertThat(DiffStrategy.lineHashDiff(RawTextComparator.DEFAULT, RawText.EMPTY_TEXT, RawText.EMPTY_TEXT)).isEmpty();
+  }
+
+  private DiffStrategy newStrategy() {
+    return new DiffStrategy(new Config(), new GitSettings(settings.asConfig()));
+  }
+
+  private static RawText text(String... lines) {
+    return new RawText(Stream.of(lines).map(l -> l + "\n").collect(Collectors.joining()).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * 1-based lines of the new text covered by edits
+   */
+  private static Set<Integer> changedLines(EditList edits) {
+    Set<Integer> lines = new HashSet<>();
+    edits.forEach(edit -> IntStream.range(edit.getBeginB(), edit.getEndB()).forEach(i -> lines.add(i + 1)));
+    return lines;
+  }
+
+  /**
+   * Edits are ordered, and lines between them are identical
+   */
+  private static void assertValid(EditList edits, RawText a, RawText b) {
+    int nextA = 0;
+    int nextB = 0;
+    for (Edit edit : edits) {
+      assertThat(edit.getBeginA() - nextA).isEqualTo(edit.getBeginB() - nextB).isNotNegative();
+      for (int i = 0; i < edit.getBeginA() - nextA; i++) {
+        assertThat(a.getString(nextA + i)).isEqualTo(b.getString(nextB + i));
+      }
+      nextA = edit.getEndA();
+      nextB = edit.getEndB();
+    }
+    assertThat(a.size() - nextA).isEqualTo(b.size() - nextB);
+  }
+}
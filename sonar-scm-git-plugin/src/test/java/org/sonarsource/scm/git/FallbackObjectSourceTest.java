@@ -0,0 +1,87 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import org.eclipse.jgit.errors.UnsupportedPackIndexVersionException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class FallbackObjectSourceTest {
+
+  private static final ObjectId BLOB_ID = ObjectId.fromString("0123456789012345678901234567890123456789");
+
+  private final ObjectSource primary = mock(ObjectSource.class);
+  private final ObjectSource fallback = mock(ObjectSource.class);
+
+  @Test
+  public void use_primary_source() throws IOException {
+    when(primary.blob(BLOB_ID)).thenReturn(new byte[] {1});
+
+    try (FallbackObjectSource objects = new FallbackObjectSource(primary, () -> fallback)) {
+      assertThat(objects.blob(BLOB_ID)).containsExactly(1);
+    }
+    verify(primary).close();
+    verifyZeroInteractions(fallback);
+  }
+
+  @Test
+  public void use_fallback_when_format_is_not_supported() throws IOException {
+    RevCommit commit = mock(RevCommit.class);
+    when(primary.findBlob(commit, "file")).thenThrow(new IOException(new UnsupportedPackIndexVersionException(3)));
+    when(fallback.findBlob(commit, "file")).thenReturn(BLOB_ID);
+    when(fallback.blob(BLOB_ID)).thenReturn(new byte[] {2});
+
+    try (FallbackObjectSource objects = new FallbackObjectSource(primary, () -> fallback)) {
+      assertThat(objects.findBlob(commit, "file")).isEqualTo(BLOB_ID);
+      assertThat(objects.blob(BLOB_ID)).containsExactly(2);
+    }
+    verify(fallback).close();
+  }
+
+  @Test
+  public void rethrow_other_errors() throws IOException {
+    IOException error = new IOException("error");
+    when(primary.blob(BLOB_ID)).thenThrow(error);
+
+    FallbackObjectSource objects = new FallbackObjectSource(primary, () -> fallback);
+
+    assertThatThrownBy(() -> objects.blob(BLOB_ID)).isSameAs(error);
+    verifyZeroInteractions(fallback);
+  }
+
+  @Test
+  public void rethrow_when_there_is_no_fallback() throws IOException {
+    IOException error = new IOException(new UnsupportedPackIndexVersionException(3));
+    when(primary.blob(BLOB_ID)).thenThrow(error);
+
+    FallbackObjectSource objects = new FallbackObjectSource(primary, () -> null);
+
+    assertThatThrownBy(() -> objects.blob(BLOB_ID)).isSameAs(error);
+  }
+}
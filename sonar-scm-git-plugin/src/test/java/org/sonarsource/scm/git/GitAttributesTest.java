@@ -0,0 +1,109 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.attributes.Attributes;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GitAttributesTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private Path worktree;
+  private Git git;
+
+  @Before
+  public void before() throws IOException, GitAPIException {
+    worktree = temp.newFolder().toPath();
+    git = Git.init().setDirectory(worktree.toFile()).call();
+  }
+
+  @Test
+  public void no_attributes() throws IOException {
+    Attributes attributes = new GitAttributes(git.getRepository()).get("src/Foo.java");
+    assertThat(attributes.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void attributes_of_nested_directories_take_precedence() throws IOException {
+    write(".gitattributes", "*.js text linguist-generated\n");
+    write("src/.gitattributes", "*.js -text\nlib/*.js -diff\n");
+
+    GitAttributes underTest = new GitAttributes(git.getRepository());
+
+    Attributes root = underTest.get("Foo.js");
+    assertThat(root.isSet("text")).isTrue();
+    assertThat(root.isSet("linguist-generated")).isTrue();
+
+    Attributes nested = underTest.get("src/lib/Foo.js");
+    assertThat(nested.isUnset("text")).isTrue();
+    assertThat(nested.isUnset("diff")).isTrue();
+    assertThat(nested.isSet("linguist-generated")).isTrue();
+
+    assertThat(underTest.get("src/Foo.js").isUnset("diff")).isFalse();
+  }
+
+  @Test
+  public void last_matching_rule_wins() throws IOException {
+    write(".gitattributes", "*.js -text\nFoo.js text\n");
+
+    GitAttributes underTest = new GitAttributes(git.getRepository());
+
+    assertThat(underTest.get("Foo.js").isSet("text")).isTrue();
+    assertThat(underTest.get("Bar.js").isUnset("text")).isTrue();
+  }
+
+  @Test
+  public void info_attributes_take_precedence() throws IOException {
+    write(".gitattributes", "*.js text\n");
+    write(".git/info/attributes", "*.js -text\n");
+
+    assertThat(new GitAttributes(git.getRepository()).get("Foo.js").isUnset("text")).isTrue();
+  }
+
+  @Test
+  public void binary_macro_is_expanded() throws IOException {
+    write(".gitattributes", "*.png binary\n");
+
+    Attributes attributes = new GitAttributes(git.getRepository()).get("img/logo.png");
+
+    assertThat(attributes.isSet("binary")).isTrue();
+    assertThat(attributes.isUnset("diff")).isTrue();
+    assertThat(attributes.isUnset("text")).isTrue();
+  }
+
+  private void write(String relativePath, String content) throws IOException {
+    Path file = worktree.resolve(relativePath);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.log.LogTester;
+import org.sonar.api.utils.log.LoggerLevel;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class GitMetricsTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Rule
+  public LogTester logTester = new LogTester();
+
+  private final MapSettings settings = new MapSettings();
+
+  @Test
+  public void log_summary_of_phase() {
+    GitMetrics underTest = newMetrics();
+
+    try (GitMetrics.Phase phase = underTest.start("blame")) {
+      phase.add(GitMetrics.FILES, 2);
+      phase.increment(GitMetrics.FILES);
+      phase.add("lines", 10);
+    }
+
+    assertThat(underTest.phases()).hasSize(1);
+    GitMetrics.Phase phase = underTest.phases().get(0);
+    assertThat(phase.name()).isEqualTo("blame");
+    assertThat(phase.counters()).contains(entry(GitMetrics.FILES, 3L), entry("lines", 10L));
+    assertThat(phase.counters()).containsKeys(GitMetrics.PACK_CACHE_HITS, GitMetrics.PACK_CACHE_MISSES);
+    assertThat(logTester.logs(LoggerLevel.INFO)).hasSize(1);
+    assertThat(logTester.logs(LoggerLevel.INFO).get(0)).matches("Git blame: \\d+ ms, CPU \\d+ ms, files: 3, lines: 10, .*");
+  }
+
+  @Test
+  public void record_time_of_steps_and_cpu_time_of_workers() {
+    GitMetrics underTest = newMetrics();
+
+    try (GitMetrics.Phase phase = underTest.start("changed lines")) {
+      phase.addTime("diff", System.nanoTime() - 5_000_000L);
+      phase.addWorkerCpuTime(3_000_000_000L);
+    }
+
+    GitMetrics.Phase phase = underTest.phases().get(0);
+    assertThat(phase.counters().get("diff ms")).isGreaterThanOrEqualTo(5L);
+    assertThat(phase.cpuTimeMs()).isGreaterThanOrEqualTo(3_000L);
+  }
+
+  @Test
+  public void dont_export_metrics_by_default() throws IOException {
+    Path workDir = temp.newFolder().toPath();
+    settings.setProperty("sonar.working.directory", workDir.toString());
+    GitMetrics underTest = newMetrics();
+
+    underTest.start("blame").close();
+
+    assertThat(workDir.resolve(GitSettings.METRICS_FILE_NAME)).doesNotExist();
+  }
+
+  @Test
+  public void export_all_phases_to_work_dir() throws IOException {
+    Path baseDir = temp.newFolder().toPath();
+    settings.setProperty(GitSettings.EXPORT_METRICS_PROPERTY, true);
+    settings.setProperty("sonar.projectBaseDir", baseDir.toString());
+    GitMetrics underTest = newMetrics();
+
+    try (GitMetrics.Phase phase = underTest.start("changed files")) {
+      phase.add(GitMetrics.FILES, 4);
+    }
+    underTest.start("changed lines").close();
+
+    String json = new String(Files.readAllBytes(baseDir.resolve(".scannerwork").resolve(GitSettings.METRICS_FILE_NAME)), StandardCharsets.UTF_8);
+    assertThat(json)
+      .startsWith("{\"phases\":[{\"name\":\"changed files\",\"wallTimeMs\":")
+      .contains("\"counters\":{\"files\":4,")
+      .contains("{\"name\":\"changed lines\"");
+  }
+
+  @Test
+  public void export_to_work_dir_of_file_system_when_not_in_settings() throws IOException {
+    Path workDir = temp.newFolder().toPath();
+    settings.setProperty(GitSettings.EXPORT_METRICS_PROPERTY, true);
+    GitMetrics underTest = newMetrics();
+
+    underTest.start("changed files").close();
+    underTest.setWorkDirIfAbsent(() -> workDir);
+    underTest.start("blame").close();
+
+    String json = new String(Files.readAllBytes(workDir.resolve(GitSettings.METRICS_FILE_NAME)), StandardCharsets.UTF_8);
+    assertThat(json).contains("\"name\":\"changed files\"", "\"name\":\"blame\"");
+  }
+
+  @Test
+  public void warn_when_metrics_cant_be_exported() throws IOException {
+    Path workDir = temp.newFile().toPath();
+    settings.setProperty(GitSettings.EXPORT_METRICS_PROPERTY, true);
+    settings.setProperty("sonar.working.directory", workDir.toString());
+
+    newMetrics().start("blame").close();
+
+    assertThat(logTester.logs(LoggerLevel.WARN)).containsExactly("Unable to write git metrics to " + workDir.resolve(GitSettings.METRICS_FILE_NAME));
+  }
+
+  private GitMetrics newMetrics() {
+    return new GitMetrics(new GitSettings(settings.asConfig()));
+  }
+}
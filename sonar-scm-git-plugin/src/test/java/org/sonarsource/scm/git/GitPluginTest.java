@@ -19,21 +19,52 @@
  */
 package org.sonarsource.scm.git;
 
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.junit.Rule;
 import org.junit.Test;
 import org.sonar.api.Plugin;
+import org.sonar.api.SonarEdition;
+import org.sonar.api.SonarQubeSide;
 import org.sonar.api.SonarRuntime;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.internal.PluginContextImpl;
+import org.sonar.api.internal.SonarRuntimeImpl;
+import org.sonar.api.utils.Version;
+import org.sonar.api.utils.log.LogTester;
+import org.sonar.api.utils.log.LoggerLevel;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 
 public class GitPluginTest {
 
+  @Rule
+  public LogTester logTester = new LogTester();
+
   @Test
   public void getExtensions() {
     SonarRuntime runtime = mock(SonarRuntime.class);
     Plugin.Context context = new Plugin.Context(runtime);
     new GitPlugin().define(context);
-    assertThat(context.getExtensions()).hasSize(3);
+    assertThat(context.getExtensions()).hasSize(6);
+  }
+
+  @Test
+  public void configure_pack_cache_on_scanner_side() {
+    MapSettings settings = new MapSettings();
+    settings.setProperty(GitSettings.PACKED_GIT_OPEN_FILES_PROPERTY, 200);
+    SonarRuntime runtime = SonarRuntimeImpl.forSonarQube(Version.create(7, 9), SonarQubeSide.SCANNER, SonarEdition.COMMUNITY);
+    Plugin.Context context = new PluginContextImpl.Builder()
+      .setSonarRuntime(runtime)
+      .setBootConfiguration(settings.asConfig())
+      .build();
+    try {
+      new GitPlugin().define(context);
+
+      assertThat(logTester.logs(LoggerLevel.DEBUG)).anyMatch(log -> log.startsWith("Git pack cache: ") && log.contains("open files 200"));
+    } finally {
+      new WindowCacheConfig().install();
+    }
   }
 
 }
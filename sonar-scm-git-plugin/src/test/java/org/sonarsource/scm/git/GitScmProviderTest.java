@@ -48,12 +48,14 @@ import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.submodule.SubmoduleWalk;
 import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.MapSettings;
 import org.sonar.api.internal.google.common.collect.ImmutableMap;
 import org.sonar.api.internal.google.common.collect.ImmutableSet;
 import org.sonar.api.notifications.AnalysisWarnings;
@@ -63,6 +65,7 @@ import org.sonar.api.utils.System2;
 
 import static java.util.Collections.emptySet;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
 import static org.assertj.core.data.MapEntry.entry;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
@@ -115,6 +118,7 @@ public class GitScmProviderTest {
   private Path worktree;
   private Git git;
   private final AnalysisWarnings analysisWarnings = mock(AnalysisWarnings.class);
+  private final MapSettings settings = new MapSettings();
 
   @Before
   public void before() throws IOException, GitAPIException {
@@ -134,12 +138,30 @@ public class GitScmProviderTest {
 
   @Test
   public void returnImplem() {
-    JGitBlameCommand jblameCommand = new JGitBlameCommand(new PathResolver(), analysisWarnings);
-    GitScmProvider gitScmProvider = new GitScmProvider(jblameCommand, analysisWarnings, gitIgnoreCommand, system2);
+    JGitBlameCommand jblameCommand = new JGitBlameCommand(new PathResolver(), analysisWarnings, gitSettings(), gitMetrics());
+    GitScmProvider gitScmProvider = new GitScmProvider(jblameCommand, mock(NativeGitBlameCommand.class), analysisWarnings, gitIgnoreCommand, system2, gitSettings(), gitMetrics());
 
     assertThat(gitScmProvider.blameCommand()).isEqualTo(jblameCommand);
   }
 
+  @Test
+  public void return_native_blame_command_when_configured() {
+    settings.setProperty(GitSettings.BLAME_BACKEND_PROPERTY, "native");
+    NativeGitBlameCommand nativeBlameCommand = mock(NativeGitBlameCommand.class);
+    GitScmProvider gitScmProvider = new GitScmProvider(mockCommand(), nativeBlameCommand, analysisWarnings, gitIgnoreCommand, system2, gitSettings(), gitMetrics());
+
+    assertThat(gitScmProvider.blameCommand()).isEqualTo(nativeBlameCommand);
+  }
+
+  @Test
+  public void fail_on_unknown_blame_backend() {
+    settings.setProperty(GitSettings.BLAME_BACKEND_PROPERTY, "svn");
+
+    thrown.expect(MessageException.class);
+    thrown.expectMessage("Invalid value 'svn' for sonar.scm.git.blame.backend, expected 'jgit' or 'native'");
+    newGitScmProvider().blameCommand();
+  }
+
   /**
    * SONARSCGIT-47
    */
@@ -200,6 +222,55 @@ public class GitScmProviderTest {
         worktree.resolve("file-m1.xoo"));
   }
 
+  @Test
+  public void branchChangedFiles_reports_renamed_files_with_their_new_path() throws IOException, GitAPIException {
+    createAndCommitFile("lao.txt", CONTENT_LAO);
+    createAndCommitFile("file-m1.xoo");
+
+    git.checkout().setName("b1").setCreateBranch(true).call();
+    renameAndCommitFile("lao.txt", "tzu.txt");
+    addLineToFile("tzu.txt", 1);
+    commit("tzu.txt");
+    renameAndCommitFile("file-m1.xoo", "file-b1.xoo");
+
+    assertThat(newScmProvider().branchChangedFiles("master", worktree))
+      .containsExactlyInAnyOrder(
+        worktree.resolve("tzu.txt"),
+        worktree.resolve("file-b1.xoo"));
+  }
+
+  @Test
+  public void branchChangedFiles_reports_renamed_files_when_over_rename_limit() throws IOException, GitAPIException {
+    settings.setProperty(GitSettings.RENAME_LIMIT_PROPERTY, 1);
+    createAndCommitFile("lao.txt", CONTENT_LAO);
+    createAndCommitFile("file-m1.xoo");
+
+    git.checkout().setName("b1").setCreateBranch(true).call();
+    renameAndCommitFile("lao.txt", "tzu.txt");
+    addLineToFile("tzu.txt", 1);
+    commit("tzu.txt");
+    renameAndCommitFile("file-m1.xoo", "file-b1.xoo");
+    createAndCommitFile("file-b2.xoo");
+
+    assertThat(newScmProvider().branchChangedFiles("master", worktree))
+      .containsExactlyInAnyOrder(
+        worktree.resolve("tzu.txt"),
+        worktree.resolve("file-b1.xoo"),
+        worktree.resolve("file-b2.xoo"));
+  }
+
+  @Test
+  public void branchChangedFiles_reports_renamed_files_when_rename_detection_is_disabled() throws IOException, GitAPIException {
+    settings.setProperty(GitSettings.RENAME_DETECTION_PROPERTY, false);
+    createAndCommitFile("lao.txt", CONTENT_LAO);
+
+    git.checkout().setName("b1").setCreateBranch(true).call();
+    renameAndCommitFile("lao.txt", "tzu.txt");
+
+    assertThat(newScmProvider().branchChangedFiles("master", worktree))
+      .containsExactly(worktree.resolve("tzu.txt"));
+  }
+
   @Test
   public void branchChangedFiles_should_not_fail_with_patience_diff_algo() throws IOException {
     Path gitConfig = worktree.resolve(".git").resolve("config");
@@ -365,6 +436,93 @@ public class GitScmProviderTest {
     assertThat(changedLines).containsExactly(entry(filePath, new HashSet<>(Arrays.asList(1, 4))));
   }
 
+  @Test
+  public void branchChangedLines_reports_only_edited_lines_of_renamed_files() throws IOException, GitAPIException {
+    createAndCommitFile("lao.txt", CONTENT_LAO);
+    git.checkout().setName("b1").setCreateBranch(true).call();
+
+    renameAndCommitFile("lao.txt", "tzu.txt");
+    addLineToFile("tzu.txt", 1);
+    commit("tzu.txt");
+    // this line is not committed
+    addLineToFile("tzu.txt", 5);
+
+    Path filePath = worktree.resolve("tzu.txt");
+    assertThat(newScmProvider().branchChangedLines("master", worktree, Collections.singleton(filePath)))
+      .containsExactly(entry(filePath, new HashSet<>(Arrays.asList(1, 5))));
+  }
+
+  @Test
+  public void branchChangedLines_reads_objects_with_git_when_configured() throws IOException, GitAPIException {
+    assumeTrue(NativeGit.isAvailable("git"));
+    settings.setProperty(GitSettings.OBJECTS_BACKEND_PROPERTY, "native");
+    Files.createDirectories(worktree.resolve("dir"));
+    createAndCommitFile("dir/lao.txt", CONTENT_LAO);
+    git.checkout().setName("b1").setCreateBranch(true).call();
+
+    addLineToFile("dir/lao.txt", 1);
+    commit("dir/lao.txt");
+    addLineToFile("dir/lao.txt", 5);
+
+    Path filePath = worktree.resolve("dir/lao.txt");
+    assertThat(newScmProvider().branchChangedLines("master", worktree, Collections.singleton(filePath)))
+      .containsExactly(entry(filePath, new HashSet<>(Arrays.asList(1, 5))));
+  }
+
+  @Test
+  public void branchChangedLines_returns_empty_set_for_files_moved_without_modification() throws IOException, GitAPIException {
+    createAndCommitFile("lao.txt", CONTENT_LAO);
+    git.checkout().setName("b1").setCreateBranch(true).call();
+
+    Files.createDirectories(worktree.resolve("moved"));
+    renameAndCommitFile("lao.txt", "moved/lao.txt");
+
+    Path filePath = worktree.resolve("moved/lao.txt");
+    assertThat(newScmProvider().branchChangedLines("master", worktree, Collections.singleton(filePath)))
+      .containsExactly(entry(filePath, emptySet()));
+  }
+
+  @Test
+  public void branchChangedLines_reports_all_lines_of_renamed_files_when_rename_detection_is_disabled() throws IOException, GitAPIException {
+    settings.setProperty(GitSettings.RENAME_DETECTION_PROPERTY, false);
+    createAndCommitFile("lao.txt", CONTENT_LAO);
+    git.checkout().setName("b1").setCreateBranch(true).call();
+
+    renameAndCommitFile("lao.txt", "tzu.txt");
+
+    Path filePath = worktree.resolve("tzu.txt");
+    assertThat(newScmProvider().branchChangedLines("master", worktree, Collections.singleton(filePath)).get(filePath))
+      .hasSize(11);
+  }
+
+  @Test
+  public void branchChangedLines_reports_all_lines_of_generated_files() throws IOException, GitAPIException {
+    createAndCommitFile(".gitattributes", "*.min.js linguist-generated\n");
+    createAndCommitFile("lib.min.js", CONTENT_LAO);
+    createAndCommitFile("unchanged.min.js", CONTENT_LAO);
+    git.checkout().setName("b1").setCreateBranch(true).call();
+
+    addLineToFile("lib.min.js", 1);
+    commit("lib.min.js");
+
+    Path changed = worktree.resolve("lib.min.js");
+    Path unchanged = worktree.resolve("unchanged.min.js");
+    Map<Path, Set<Integer>> changedLines = newScmProvider().branchChangedLines("master", worktree, new HashSet<>(Arrays.asList(changed, unchanged)));
+    assertThat(changedLines.get(changed)).containsExactlyInAnyOrder(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12);
+    assertThat(changedLines.get(unchanged)).isEmpty();
+  }
+
+  @Test
+  public void branchChangedLines_reports_no_lines_for_binary_files() throws IOException, GitAPIException {
+    createAndCommitFile("image.png", "PNG\u0000\u0001\n");
+    git.checkout().setName("b1").setCreateBranch(true).call();
+    createAndCommitFile("image.png", "PNG\u0000\u0002\n");
+
+    Path filePath = worktree.resolve("image.png");
+    assertThat(newScmProvider().branchChangedLines("master", worktree, Collections.singleton(filePath)))
+      .containsExactly(entry(filePath, emptySet()));
+  }
+
   @Test
   public void branchChangedLines_should_not_fail_if_there_is_no_merge_base() throws GitAPIException, IOException {
     createAndCommitFile("file-m1.xoo");
@@ -436,9 +594,6 @@ public class GitScmProviderTest {
     assertThat(newScmProvider().branchChangedLines("master", worktree, Collections.singleton(Paths.get("file")))).isNull();
   }
 
-  /**
-   * Unfortunately it looks like JGit doesn't support this setting using .gitattributes.
-   */
   @Test
   public void branchChangedLines_should_always_ignore_different_line_endings() throws IOException, GitAPIException {
     Path filePath = worktree.resolve("file-m1.xoo");
@@ -457,6 +612,57 @@ public class GitScmProviderTest {
       .isEmpty();
   }
 
+  @Test
+  public void branchChangedLines_should_not_normalize_line_endings_of_files_marked_as_not_text() throws IOException, GitAPIException {
+    Path filePath = worktree.resolve("file-m1.xoo");
+    createAndCommitFile(".gitattributes", "*.xoo -text\n");
+    createAndCommitFile("file-m1.xoo");
+
+    git.checkout().setName("b1").setCreateBranch(true).call();
+    String newFileContent = new String(Files.readAllBytes(filePath), StandardCharsets.UTF_8).replaceAll("\n", "\r\n");
+    Files.write(filePath, newFileContent.getBytes(StandardCharsets.UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
+    commit("file-m1.xoo");
+
+    // the content differs, but only by whitespaces
+    assertThat(newScmProvider().branchChangedLines("master", worktree, Collections.singleton(filePath)))
+      .containsExactly(entry(filePath, emptySet()));
+  }
+
+  @Test
+  public void branchChangedLines_should_not_change_repository_config() throws IOException, GitAPIException {
+    Path filePath = worktree.resolve("file-in-first-commit.xoo");
+    git.checkout().setName("b1").setCreateBranch(true).call();
+    addLineToFile("file-in-first-commit.xoo", 1);
+
+    Repository repo = git.getRepository();
+    GitScmProvider provider = new GitScmProvider(mockCommand(), mock(NativeGitBlameCommand.class), analysisWarnings, gitIgnoreCommand, system2, gitSettings(), gitMetrics()) {
+      @Override
+      Repository buildRepo(Path basedir) {
+        repo.incrementOpen();
+        return repo;
+      }
+    };
+
+    assertThat(provider.branchChangedLines("master", worktree, Collections.singleton(filePath)))
+      .containsExactly(entry(filePath, Collections.singleton(1)));
+    assertThat(repo.getConfig().getString("core", null, "autocrlf")).isNull();
+  }
+
+  @Test
+  public void branchChangedLines_should_ignore_whitespace_changes() throws IOException, GitAPIException {
+    Path filePath = worktree.resolve("lao.txt");
+    createAndCommitFile("lao.txt", CONTENT_LAO);
+
+    git.checkout().setName("b1").setCreateBranch(true).call();
+    String newFileContent = CONTENT_LAO
+      .replace("The Named is", "The  Named is")
+      .replace("so we may see their outcome.", "so we may see their outcomes.");
+    Files.write(filePath, newFileContent.getBytes(StandardCharsets.UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
+
+    assertThat(newScmProvider().branchChangedLines("master", worktree, Collections.singleton(filePath)))
+      .containsExactly(entry(filePath, Collections.singleton(8)));
+  }
+
   @Test
   public void branchChangedFiles_falls_back_to_origin_when_local_branch_does_not_exist() throws IOException, GitAPIException {
     git.branchCreate().setName("b1").call();
@@ -555,7 +761,7 @@ public class GitScmProviderTest {
 
   @Test
   public void branchChangedFiles_should_return_null_on_io_errors_of_repo_builder() {
-    GitScmProvider provider = new GitScmProvider(mockCommand(), analysisWarnings, gitIgnoreCommand, system2) {
+    GitScmProvider provider = new GitScmProvider(mockCommand(), mock(NativeGitBlameCommand.class), analysisWarnings, gitIgnoreCommand, system2, gitSettings(), gitMetrics()) {
       @Override
       Repository buildRepo(Path basedir) throws IOException {
         throw new IOException();
@@ -572,7 +778,7 @@ public class GitScmProviderTest {
     when(repository.getRefDatabase()).thenReturn(refDatabase);
     when(refDatabase.findRef("branch")).thenReturn(null);
 
-    GitScmProvider provider = new GitScmProvider(mockCommand(), analysisWarnings, gitIgnoreCommand, system2) {
+    GitScmProvider provider = new GitScmProvider(mockCommand(), mock(NativeGitBlameCommand.class), analysisWarnings, gitIgnoreCommand, system2, gitSettings(), gitMetrics()) {
       @Override
       Repository buildRepo(Path basedir) {
         return repository;
@@ -596,7 +802,7 @@ public class GitScmProviderTest {
     Git git = mock(Git.class);
     when(git.diff()).thenReturn(diffCommand);
 
-    GitScmProvider provider = new GitScmProvider(mockCommand(), analysisWarnings, gitIgnoreCommand, system2) {
+    GitScmProvider provider = new GitScmProvider(mockCommand(), mock(NativeGitBlameCommand.class), analysisWarnings, gitIgnoreCommand, system2, gitSettings(), gitMetrics()) {
       @Override
       Git newGit(Repository repo) {
         return git;
@@ -629,7 +835,7 @@ public class GitScmProviderTest {
     commit(f2);
 
     AtomicInteger callCount = new AtomicInteger(0);
-    GitScmProvider provider = new GitScmProvider(mockCommand(), analysisWarnings, gitIgnoreCommand, system2) {
+    GitScmProvider provider = new GitScmProvider(mockCommand(), mock(NativeGitBlameCommand.class), analysisWarnings, gitIgnoreCommand, system2, gitSettings(), gitMetrics()) {
       @Override
       AbstractTreeIterator prepareTreeParser(Repository repo, RevCommit commit) throws IOException {
         if (callCount.getAndIncrement() == 1) {
@@ -646,9 +852,45 @@ public class GitScmProviderTest {
       .isEqualTo(Collections.singletonMap(worktree.resolve(f1), Collections.singleton(1)));
   }
 
+  @Test
+  public void branchChanged_includes_changes_of_submodules_when_enabled() throws IOException, GitAPIException {
+    Path libDir = temp.newFolder().toPath();
+    try (Git lib = Git.init().setDirectory(libDir.toFile()).call()) {
+      Files.write(libDir.resolve("a.txt"), "a\nb\nc\n".getBytes(StandardCharsets.UTF_8));
+      lib.add().addFilepattern("a.txt").call();
+      lib.commit().setAuthor("joe", "joe@example.com").setMessage("a").call();
+    }
+    git.submoduleAdd().setURI(libDir.toUri().toString()).setPath("lib").call().close();
+    commit(".gitmodules", "lib");
+
+    git.branchCreate().setName("b1").call();
+    git.checkout().setName("b1").call();
+    Path submoduleDir = worktree.resolve("lib");
+    try (Git submodule = new Git(SubmoduleWalk.getSubmoduleRepository(git.getRepository(), "lib"))) {
+      Files.write(submoduleDir.resolve("a.txt"), "a\nB\nc\n".getBytes(StandardCharsets.UTF_8));
+      Files.write(submoduleDir.resolve("b.txt"), "b\n".getBytes(StandardCharsets.UTF_8));
+      submodule.add().addFilepattern(".").call();
+      submodule.commit().setAuthor("joe", "joe@example.com").setMessage("b").call();
+    }
+    commit("lib");
+
+    assertThat(newScmProvider().branchChangedFiles("master", worktree)).doesNotContain(submoduleDir.resolve("a.txt"));
+
+    settings.setProperty(GitSettings.SUBMODULES_PROPERTY, true);
+    Set<Path> changedFiles = newScmProvider().branchChangedFiles("master", worktree);
+    assertThat(changedFiles).contains(submoduleDir.resolve("a.txt"), submoduleDir.resolve("b.txt"));
+
+    assertThat(newScmProvider().branchChangedLines("master", worktree, changedFiles))
+      .containsEntry(submoduleDir.resolve("a.txt"), Collections.singleton(2))
+      .containsEntry(submoduleDir.resolve("b.txt"), Collections.singleton(1));
+
+    settings.setProperty(GitSettings.SUBMODULES_MAX_DEPTH_PROPERTY, 0);
+    assertThat(newScmProvider().branchChangedFiles("master", worktree)).doesNotContain(submoduleDir.resolve("a.txt"));
+  }
+
   @Test
   public void branchChangedLines_returns_null_on_io_errors_of_repo_builder() {
-    GitScmProvider provider = new GitScmProvider(mockCommand(), analysisWarnings, gitIgnoreCommand, system2) {
+    GitScmProvider provider = new GitScmProvider(mockCommand(), mock(NativeGitBlameCommand.class), analysisWarnings, gitIgnoreCommand, system2, gitSettings(), gitMetrics()) {
       @Override
       Repository buildRepo(Path basedir) throws IOException {
         throw new IOException();
@@ -663,7 +905,7 @@ public class GitScmProviderTest {
   }
 
   private GitScmProvider newGitScmProvider() {
-    return new GitScmProvider(mock(JGitBlameCommand.class), analysisWarnings, gitIgnoreCommand, system2);
+    return new GitScmProvider(mock(JGitBlameCommand.class), mock(NativeGitBlameCommand.class), analysisWarnings, gitIgnoreCommand, system2, gitSettings(), gitMetrics());
   }
 
   @Test
@@ -776,6 +1018,12 @@ public class GitScmProviderTest {
     commit(relativePath);
   }
 
+  private void renameAndCommitFile(String relativePath, String newRelativePath) throws IOException, GitAPIException {
+    Files.move(worktree.resolve(relativePath), worktree.resolve(newRelativePath));
+    git.rm().addFilepattern(relativePath).call();
+    commit(newRelativePath);
+  }
+
   private void deleteAndCommitFile(String relativePath) throws GitAPIException {
     git.rm().addFilepattern(relativePath).call();
     commit(relativePath);
@@ -794,7 +1042,15 @@ public class GitScmProviderTest {
     git.commit().setAuthor(person).setCommitter(person).setMessage(relativePath).call();
   }
 
+  private GitSettings gitSettings() {
+    return new GitSettings(settings.asConfig());
+  }
+
+  private GitMetrics gitMetrics() {
+    return new GitMetrics(gitSettings());
+  }
+
   private GitScmProvider newScmProvider() {
-    return new GitScmProvider(mockCommand(), analysisWarnings, gitIgnoreCommand, system2);
+    return new GitScmProvider(mockCommand(), mock(NativeGitBlameCommand.class), analysisWarnings, gitIgnoreCommand, system2, gitSettings(), gitMetrics());
   }
 }
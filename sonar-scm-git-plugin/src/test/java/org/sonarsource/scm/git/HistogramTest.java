@@ -0,0 +1,85 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class HistogramTest {
+
+  private final Histogram underTest = new Histogram();
+
+  @Test
+  public void empty() {
+    assertThat(underTest.count()).isZero();
+    assertThat(underTest.max()).isZero();
+    assertThat(underTest.percentile(50)).isZero();
+  }
+
+  @Test
+  public void small_values_are_exact() {
+    IntStream.rangeClosed(1, 20).forEach(underTest::record);
+
+    assertThat(underTest.count()).isEqualTo(20);
+    assertThat(underTest.max()).isEqualTo(20);
+    assertThat(underTest.percentile(50)).isEqualTo(10);
+    assertThat(underTest.percentile(95)).isEqualTo(19);
+    assertThat(underTest.percentile(100)).isEqualTo(20);
+  }
+
+  @Test
+  public void large_values_have_bounded_relative_error() {
+    Random random = new Random(42);
+    long[] values = new long[10_000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = 1 + (long) Math.pow(10, random.nextDouble() * 9);
+      underTest.record(values[i]);
+    }
+    Arrays.sort(values);
+
+    for (double percentile : new double[] {50, 90, 99, 99.9}) {
+      long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+      assertThat((double) underTest.percentile(percentile)).isCloseTo(exact, within(exact * 0.07));
+    }
+    assertThat(underTest.percentile(100)).isEqualTo(values[values.length - 1]);
+  }
+
+  @Test
+  public void negative_values_are_recorded_as_zero() {
+    underTest.record(-5);
+
+    assertThat(underTest.percentile(50)).isZero();
+    assertThat(underTest.count()).isEqualTo(1);
+  }
+
+  @Test
+  public void record_from_concurrent_threads() {
+    IntStream.range(0, 100_000).parallel().forEach(i -> underTest.record(i % 100));
+
+    assertThat(underTest.count()).isEqualTo(100_000);
+    assertThat(underTest.max()).isEqualTo(99);
+    assertThat(underTest.percentile(50)).isEqualTo(49);
+  }
+}
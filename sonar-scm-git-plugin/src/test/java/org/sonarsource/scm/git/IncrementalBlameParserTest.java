@@ -0,0 +1,143 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import org.sonar.api.batch.scm.BlameLine;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class IncrementalBlameParserTest {
+
+  private static final String COMMIT_1 = "0d269c1acfb8e6d4d33f3c43041eb87e0df0f5e7";
+  private static final String COMMIT_2 = "6b3aab35a3ea32c1636fee56f996e677653c48ea";
+  private static final String OUTPUT = COMMIT_1 + " 26 26 3\n"
+    + "author Duarte Meneses\n"
+    + "author-mail <duarte.meneses@sonarsource.com>\n"
+    + "author-time 1432021220\n"
+    + "author-tz +0200\n"
+    + "committer Duarte Meneses\n"
+    + "committer-mail <duarte.meneses@sonarsource.com>\n"
+    + "committer-time 1432035069\n"
+    + "committer-tz +0200\n"
+    + "summary Commit with explicit author date\n"
+    + "previous 783905e3d8b3e6f89a63c573d5fcf60af7845ebe src/main/java/org/dummy/Dummy.java\n"
+    + "filename src/main/java/org/dummy/Dummy.java\n"
+    + COMMIT_2 + " 1 1 25\n"
+    + "author David Gageot\n"
+    + "author-mail <david@gageot.net>\n"
+    + "author-time 1342534368\n"
+    + "author-tz +0200\n"
+    + "committer David Gageot\n"
+    + "committer-mail <david@gageot.net>\n"
+    + "committer-time 1342534368\n"
+    + "committer-tz +0200\n"
+    + "summary Dummy class\n"
+    + "filename src/main/java/org/dummy/Dummy.java\n"
+    + COMMIT_2 + " 26 29 1\n"
+    + "filename src/main/java/org/dummy/Dummy.java\n";
+
+  @Test
+  public void parse_groups_of_lines() throws Exception {
+    List<BlameLine> lines = parse(OUTPUT);
+
+    assertThat(lines).hasSize(29);
+    assertThat(lines.get(0).revision()).isEqualTo(COMMIT_2);
+    assertThat(lines.get(0).author()).isEqualTo("david@gageot.net");
+    assertThat(lines.get(0).date()).isEqualTo(new Date(1342534368000L));
+    assertThat(lines.subList(25, 28)).extracting(BlameLine::revision).containsOnly(COMMIT_1);
+    assertThat(lines.get(25).author()).isEqualTo("duarte.meneses@sonarsource.com");
+    assertThat(lines.get(25).date()).isEqualTo(new Date(1432035069000L));
+    assertThat(lines.get(28).revision()).isEqualTo(COMMIT_2);
+  }
+
+  @Test
+  public void parse_output_larger_than_buffer() throws Exception {
+    StringBuilder output = new StringBuilder();
+    for (int i = 1; i <= 10_000; i++) {
+      output.append(COMMIT_2).append(' ').append(i).append(' ').append(i).append(" 1\n");
+      if (i == 1) {
+        output.append("author-mail <david@gageot.net>\ncommitter-time 1342534368\n");
+      }
+      output.append("filename some/file/with/a/long/path/to/make/the/output/bigger/File.java\n");
+    }
+
+    // returns a few bytes at a time to split lines between reads
+    InputStream is = new ByteArrayInputStream(output.toString().getBytes(StandardCharsets.UTF_8)) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 7));
+      }
+    };
+    List<BlameLine> lines = new IncrementalBlameParser(is, () -> {
+    }).parse();
+
+    assertThat(lines).hasSize(10_000).extracting(BlameLine::author).containsOnly("david@gageot.net");
+  }
+
+  @Test
+  public void no_blame_when_lines_are_not_committed() throws Exception {
+    String output = OUTPUT + "0000000000000000000000000000000000000000 30 30 1\n"
+      + "author Not Committed Yet\n"
+      + "author-mail <not.committed.yet>\n"
+      + "committer-time 1600000000\n"
+      + "filename src/main/java/org/dummy/Dummy.java\n";
+
+    assertThat(parse(output)).isNull();
+  }
+
+  @Test
+  public void fail_on_unexpected_output() {
+    assertThatThrownBy(() -> parse("fatal: no such path 'foo' in HEAD\n"))
+      .isInstanceOf(IOException.class)
+      .hasMessage("Unexpected line in git blame output: fatal: no such path 'foo' in HEAD");
+    assertThatThrownBy(() -> parse(COMMIT_1 + " 1 x 1\nfilename foo\n"))
+      .isInstanceOf(IOException.class)
+      .hasMessageStartingWith("Expected a number in git blame output");
+    assertThatThrownBy(() -> parse(COMMIT_1 + " 1 1 1\nauthor-mail <a@b>\n"))
+      .isInstanceOf(IOException.class)
+      .hasMessage("Unexpected end of git blame output");
+    assertThatThrownBy(() -> parse(COMMIT_1 + " 2 2 1\nfilename foo\n"))
+      .isInstanceOf(IOException.class)
+      .hasMessage("Missing blame of line 1");
+  }
+
+  @Test
+  public void stop_at_checkpoint() {
+    InputStream is = new ByteArrayInputStream(OUTPUT.getBytes(StandardCharsets.UTF_8));
+    IncrementalBlameParser parser = new IncrementalBlameParser(is, () -> {
+      throw new BlameBudget.StoppedException();
+    });
+
+    assertThatThrownBy(parser::parse).isInstanceOf(BlameBudget.StoppedException.class);
+  }
+
+  private static List<BlameLine> parse(String output) throws Exception {
+    return new IncrementalBlameParser(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)), () -> {
+    }).parse();
+  }
+}
@@ -21,8 +21,11 @@ package org.sonarsource.scm.git;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -30,7 +33,18 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.JGitInternalException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.StoredConfig;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -42,17 +56,23 @@ import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
 import org.sonar.api.batch.scm.BlameCommand.BlameInput;
 import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
 import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.internal.MapSettings;
 import org.sonar.api.notifications.AnalysisWarnings;
 import org.sonar.api.scan.filesystem.PathResolver;
 import org.sonar.api.utils.DateUtils;
 import org.sonar.api.utils.MessageException;
 import org.sonar.api.utils.System2;
 import org.sonar.api.utils.log.LogTester;
+import org.sonar.api.utils.log.LoggerLevel;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -72,6 +92,7 @@ public class JGitBlameCommandTest {
   public LogTester logTester = new LogTester();
 
   private final BlameInput input = mock(BlameInput.class);
+  private final MapSettings settings = new MapSettings();
 
   @Test
   public void testBlame() throws IOException {
@@ -273,6 +294,518 @@ public class JGitBlameCommandTest {
     jGitBlameCommand.blame(input, blameResult);
   }
 
+  @Test
+  public void log_metrics_of_blame() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+
+    blameDummyJava(baseDir);
+
+    assertThat(logTester.logs(LoggerLevel.INFO))
+      .anyMatch(log -> log.matches("Git blame: \\d+ ms, CPU \\d+ ms, repository open ms: \\d+, files: 1, bytes read: \\d+, lines: 29, commits: 2, .*"));
+    assertThat(logTester.logs(LoggerLevel.INFO))
+      .anyMatch(log -> log.matches("Slowest files to blame: src/main/java/org/dummy/Dummy.java \\(\\d+ ms, 2 commits\\)"));
+  }
+
+  @Test
+  public void approximate_blame_of_generated_files() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    Files.write(baseDir.toPath().resolve(".gitattributes"), "*.java linguist-generated\n".getBytes(StandardCharsets.UTF_8));
+
+    TestBlameOutput output = blameDummyJava(baseDir);
+
+    assertThat(output.blame.values()).hasSize(1);
+    assertThat(output.blame.values().iterator().next())
+      .hasSize(29)
+      .extracting(BlameLine::revision)
+      .containsOnly("0d269c1acfb8e6d4d33f3c43041eb87e0df0f5e7");
+    assertThat(logTester.logs(LoggerLevel.INFO)).contains("1 file skipped or approximated during blame (generated: 1)");
+  }
+
+  @Test
+  public void approximate_blame_of_files_above_large_file_threshold() throws IOException {
+    settings.setProperty(GitSettings.LARGE_FILE_THRESHOLD_PROPERTY, 10);
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+
+    TestBlameOutput output = blameDummyJava(baseDir);
+
+    assertThat(output.blame.values().iterator().next())
+      .hasSize(29)
+      .extracting(BlameLine::revision)
+      .containsOnly("0d269c1acfb8e6d4d33f3c43041eb87e0df0f5e7");
+    assertThat(logTester.logs(LoggerLevel.INFO)).contains("1 file skipped or approximated during blame (too large: 1)");
+  }
+
+  @Test
+  public void approximate_blame_of_files_checked_out_with_crlf() throws IOException {
+    settings.setProperty(GitSettings.LARGE_FILE_THRESHOLD_PROPERTY, 10);
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    try (Git git = Git.open(baseDir)) {
+      StoredConfig config = git.getRepository().getConfig();
+      config.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, ConfigConstants.CONFIG_KEY_AUTOCRLF, true);
+      config.save();
+    }
+    Path dummyJava = baseDir.toPath().resolve(DUMMY_JAVA);
+    String content = new String(Files.readAllBytes(dummyJava), StandardCharsets.UTF_8);
+    Files.write(dummyJava, content.replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8));
+
+    TestBlameOutput output = blameDummyJava(baseDir);
+
+    assertThat(output.blame.values().iterator().next())
+      .hasSize(29)
+      .extracting(BlameLine::revision)
+      .containsOnly("0d269c1acfb8e6d4d33f3c43041eb87e0df0f5e7");
+  }
+
+  @Test
+  public void dont_approximate_blame_of_modified_generated_files() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    Files.write(baseDir.toPath().resolve(".gitattributes"), "*.java linguist-generated\n".getBytes(StandardCharsets.UTF_8));
+    Files.write(baseDir.toPath().resolve(DUMMY_JAVA), "modification\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    assertThat(blameDummyJava(baseDir).blame).isEmpty();
+  }
+
+  @Test
+  public void dont_blame_files_not_diffable() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    Files.write(baseDir.toPath().resolve(".gitattributes"), "*.java -diff\n".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(blameDummyJava(baseDir).blame).isEmpty();
+    assertThat(logTester.logs(LoggerLevel.INFO)).contains("1 file skipped or approximated during blame (binary: 1)");
+  }
+
+  @Test
+  public void approximate_blame_of_files_over_budget() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    GitSettings gitSettings = spy(new GitSettings(settings.asConfig()));
+    when(gitSettings.blameFileTimeout()).thenReturn(Duration.ofNanos(1));
+    AnalysisWarnings analysisWarnings = mock(AnalysisWarnings.class);
+
+    TestBlameOutput output = blameDummyJava(baseDir, new JGitBlameCommand(new PathResolver(), analysisWarnings, gitSettings, new GitMetrics(gitSettings)));
+
+    assertThat(output.blame.values().iterator().next())
+      .hasSize(29)
+      .extracting(BlameLine::revision)
+      .containsOnly("0d269c1acfb8e6d4d33f3c43041eb87e0df0f5e7");
+    assertThat(logTester.logs(LoggerLevel.WARN))
+      .anyMatch(log -> log.startsWith("Blame was stopped for 1 file(s) because it exceeded its time budget (src/main/java/org/dummy/Dummy.java)"));
+    verify(analysisWarnings).addUnique(startsWith("Git blame exceeded its time budget for 1 file(s)."));
+  }
+
+  @Test
+  public void dont_blame_files_when_blame_budget_is_exhausted() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    GitSettings gitSettings = spy(new GitSettings(settings.asConfig()));
+    when(gitSettings.blameTimeout()).thenReturn(Duration.ofNanos(1));
+    AnalysisWarnings analysisWarnings = mock(AnalysisWarnings.class);
+
+    TestBlameOutput output = blameDummyJava(baseDir, new JGitBlameCommand(new PathResolver(), analysisWarnings, gitSettings, new GitMetrics(gitSettings)));
+
+    assertThat(output.blame).isEmpty();
+    verify(analysisWarnings).addUnique(startsWith("Git blame exceeded its time budget for 1 file(s)."));
+  }
+
+  @Test
+  public void stop_blame_and_restore_interrupted_status_when_interrupted() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    AnalysisWarnings analysisWarnings = mock(AnalysisWarnings.class);
+    GitSettings gitSettings = new GitSettings(settings.asConfig());
+
+    Thread.currentThread().interrupt();
+    try {
+      blameDummyJava(baseDir, new JGitBlameCommand(new PathResolver(), analysisWarnings, gitSettings, new GitMetrics(gitSettings)));
+      assertThat(Thread.currentThread().isInterrupted()).isTrue();
+    } finally {
+      Thread.interrupted();
+    }
+    assertThat(logTester.logs(LoggerLevel.INFO)).contains("Git blame interrupted");
+    verifyZeroInteractions(analysisWarnings);
+  }
+
+  @Test
+  public void keep_blaming_other_files_when_one_fails() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    DefaultFileSystem fs = new DefaultFileSystem(baseDir);
+    when(input.fileSystem()).thenReturn(fs);
+    DefaultInputFile inputFile = new TestInputFileBuilder("foo", DUMMY_JAVA).setModuleBaseDir(baseDir.toPath()).setLines(29).build();
+    DefaultInputFile failingFile = new TestInputFileBuilder("foo", "src/main/java/org/dummy/AnotherDummy.java").setModuleBaseDir(baseDir.toPath()).build();
+    when(input.filesToBlame()).thenReturn(Arrays.asList(inputFile, failingFile));
+    PathResolver pathResolver = spy(new PathResolver());
+    doThrow(new IllegalStateException("broken")).when(pathResolver).relativePath(any(File.class), eq(failingFile.file()));
+    AnalysisWarnings analysisWarnings = mock(AnalysisWarnings.class);
+    GitSettings gitSettings = new GitSettings(settings.asConfig());
+
+    TestBlameOutput output = new TestBlameOutput();
+    new JGitBlameCommand(pathResolver, analysisWarnings, gitSettings, new GitMetrics(gitSettings)).blame(input, output);
+
+    assertThat(output.blame).containsOnlyKeys(inputFile);
+    assertThat(logTester.logs(LoggerLevel.WARN))
+      .contains("Unable to blame 1 file(s): src/main/java/org/dummy/AnotherDummy.java (broken). Enable debug logs for details.");
+    verify(analysisWarnings).addUnique(startsWith("Git blame failed for 1 file(s)."));
+  }
+
+  @Test
+  public void retry_blame_after_transient_error() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    PathResolver pathResolver = spy(new PathResolver());
+    doThrow(new JGitInternalException("pack rewritten", new MissingObjectException(ObjectId.zeroId(), Constants.OBJ_BLOB)))
+      .doCallRealMethod()
+      .when(pathResolver).relativePath(any(File.class), any(File.class));
+    AnalysisWarnings analysisWarnings = mock(AnalysisWarnings.class);
+    GitSettings gitSettings = new GitSettings(settings.asConfig());
+
+    TestBlameOutput output = blameDummyJava(baseDir, new JGitBlameCommand(pathResolver, analysisWarnings, gitSettings, new GitMetrics(gitSettings)));
+
+    assertThat(output.blame.values().iterator().next()).hasSize(29);
+    verifyZeroInteractions(analysisWarnings);
+  }
+
+  @Test
+  public void blame_pull_request_from_merge_base() throws IOException, GitAPIException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    List<BlameLine> expected = blameDummyJava(baseDir).blame.values().iterator().next();
+    try (Git git = Git.open(baseDir)) {
+      // the second commit of the file is in the pull request
+      git.branchCreate().setName("target").setStartPoint("6b3aab35a3ea32c1636fee56f996e677653c48ea").call();
+    }
+    settings.setProperty("sonar.pullrequest.key", "1");
+    settings.setProperty("sonar.pullrequest.base", "target");
+    settings.setProperty(GitSettings.BLAME_PULL_REQUEST_CHANGED_LINES_PROPERTY, true);
+    JGitBlameCommand jGitBlameCommand = newJGitBlameCommand();
+
+    assertThat(blameDummyJava(baseDir, jGitBlameCommand).blame.values()).containsExactly(expected);
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.contains("pull request files: 1, merge base blame cache hits: 0, merge base blame cache misses: 1"));
+
+    logTester.clear();
+    assertThat(blameDummyJava(baseDir, jGitBlameCommand).blame.values()).containsExactly(expected);
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.contains("pull request files: 1, merge base blame cache hits: 1, merge base blame cache misses: 0"));
+  }
+
+  @Test
+  public void dont_blame_pull_request_file_modified_in_work_tree() throws IOException, GitAPIException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    try (Git git = Git.open(baseDir)) {
+      git.branchCreate().setName("target").setStartPoint("6b3aab35a3ea32c1636fee56f996e677653c48ea").call();
+    }
+    Files.write(baseDir.toPath().resolve(DUMMY_JAVA), "// modified\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    settings.setProperty("sonar.pullrequest.key", "1");
+    settings.setProperty("sonar.pullrequest.base", "target");
+    settings.setProperty(GitSettings.BLAME_PULL_REQUEST_CHANGED_LINES_PROPERTY, true);
+
+    // the line added in the work tree has no commit, like when the pull request blame is disabled
+    assertThat(blameDummyJava(baseDir).blame).isEmpty();
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.contains("pull request files: 0,"));
+  }
+
+  @Test
+  public void blame_all_lines_of_pull_request_by_default() throws IOException, GitAPIException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    try (Git git = Git.open(baseDir)) {
+      git.branchCreate().setName("target").setStartPoint("6b3aab35a3ea32c1636fee56f996e677653c48ea").call();
+    }
+    settings.setProperty("sonar.pullrequest.key", "1");
+    settings.setProperty("sonar.pullrequest.base", "target");
+
+    assertThat(blameDummyJava(baseDir).blame.values().iterator().next()).hasSize(29);
+    assertThat(logTester.logs(LoggerLevel.INFO)).noneMatch(log -> log.contains("pull request files"));
+  }
+
+  @Test
+  public void blame_all_lines_when_target_branch_is_not_found() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    settings.setProperty("sonar.pullrequest.key", "1");
+    settings.setProperty("sonar.pullrequest.base", "unknown");
+    settings.setProperty(GitSettings.BLAME_PULL_REQUEST_CHANGED_LINES_PROPERTY, true);
+
+    assertThat(blameDummyJava(baseDir).blame.values().iterator().next()).hasSize(29);
+    assertThat(logTester.logs(LoggerLevel.DEBUG)).contains("Target branch 'unknown' not found, all lines of pull request files are blamed");
+    assertThat(logTester.logs(LoggerLevel.INFO)).noneMatch(log -> log.contains("pull request files"));
+  }
+
+  @Test
+  public void answer_blame_from_index_of_previous_analysis() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    settings.setProperty(GitSettings.BLAME_INDEX_PROPERTY, "true");
+    settings.setProperty(GitSettings.BLAME_INDEX_PATH_PROPERTY, new File(projectDir, "blame.idx").getAbsolutePath());
+
+    List<BlameLine> expected = blameDummyJava(baseDir).blame.values().iterator().next();
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.contains("index hits: 0, index misses: 1, indexed files: 1"));
+
+    logTester.clear();
+    assertThat(blameDummyJava(baseDir).blame.values()).containsExactly(expected);
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.contains("index hits: 1, index misses: 0, indexed files: 1"));
+  }
+
+  @Test
+  public void dont_answer_blame_from_index_for_file_modified_in_work_tree() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    settings.setProperty(GitSettings.BLAME_INDEX_PROPERTY, "true");
+    settings.setProperty(GitSettings.BLAME_INDEX_PATH_PROPERTY, new File(projectDir, "blame.idx").getAbsolutePath());
+    blameDummyJava(baseDir);
+    Files.write(baseDir.toPath().resolve(DUMMY_JAVA), "// modified\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    logTester.clear();
+    assertThat(blameDummyJava(baseDir).blame).isEmpty();
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.contains("index hits: 0,"));
+  }
+
+  @Test
+  public void share_repository_between_blames_until_stopped() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    File baseDir = new File(projectDir, "dummy-git");
+    JGitBlameCommand jGitBlameCommand = newJGitBlameCommand();
+
+    List<BlameLine> expected = blameDummyJava(baseDir, jGitBlameCommand).blame.values().iterator().next();
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.startsWith("Git blame:") && log.contains("repository open ms"));
+
+    logTester.clear();
+    assertThat(blameDummyJava(baseDir, jGitBlameCommand).blame.values()).containsExactly(expected);
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.startsWith("Git blame:") && !log.contains("repository open ms"));
+
+    jGitBlameCommand.stop();
+    logTester.clear();
+    assertThat(blameDummyJava(baseDir, jGitBlameCommand).blame.values()).containsExactly(expected);
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.startsWith("Git blame:") && log.contains("repository open ms"));
+  }
+
+  @Test
+  public void blame_identical_files_once() throws IOException, GitAPIException {
+    File baseDir = temp.newFolder();
+    String commit1;
+    String commit2;
+    try (Git git = Git.init().setDirectory(baseDir).call()) {
+      write(baseDir, "vendor/a.js", "x\n");
+      write(baseDir, "copy/a.js", "x\n");
+      write(baseDir, "other.js", "a\n");
+      commit1 = commitAll(git, "first");
+      write(baseDir, "vendor/a.js", "a\nb\n");
+      write(baseDir, "copy/a.js", "a\nb\n");
+      write(baseDir, "other.js", "a\nb\n");
+      commit2 = commitAll(git, "second");
+    }
+    DefaultFileSystem fs = new DefaultFileSystem(baseDir);
+    when(input.fileSystem()).thenReturn(fs);
+    List<InputFile> files = Arrays.asList(
+      new TestInputFileBuilder("foo", "vendor/a.js").setModuleBaseDir(baseDir.toPath()).setLines(2).build(),
+      new TestInputFileBuilder("foo", "copy/a.js").setModuleBaseDir(baseDir.toPath()).setLines(2).build(),
+      new TestInputFileBuilder("foo", "other.js").setModuleBaseDir(baseDir.toPath()).setLines(2).build());
+    when(input.filesToBlame()).thenReturn(files);
+
+    TestBlameOutput output = new TestBlameOutput();
+    newJGitBlameCommand().blame(input, output);
+
+    assertThat(output.blame.get(files.get(0))).extracting(BlameLine::revision).containsExactly(commit2, commit2);
+    assertThat(output.blame.get(files.get(1))).extracting(BlameLine::revision).containsExactly(commit2, commit2);
+    assertThat(output.blame.get(files.get(2))).extracting(BlameLine::revision).containsExactly(commit1, commit2);
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.contains("files: 3,") && log.contains("identical files: 1"));
+  }
+
+  @Test
+  public void dont_share_blame_of_identical_file_modified_in_work_tree() throws IOException, GitAPIException {
+    File baseDir = temp.newFolder();
+    String commit;
+    try (Git git = Git.init().setDirectory(baseDir).call()) {
+      write(baseDir, "vendor/a.js", "a\nb\n");
+      write(baseDir, "copy/a.js", "a\nb\n");
+      commit = commitAll(git, "first");
+    }
+    write(baseDir, "copy/a.js", "a\nb\nc\n");
+    DefaultFileSystem fs = new DefaultFileSystem(baseDir);
+    when(input.fileSystem()).thenReturn(fs);
+    List<InputFile> files = Arrays.asList(
+      new TestInputFileBuilder("foo", "vendor/a.js").setModuleBaseDir(baseDir.toPath()).setLines(2).build(),
+      new TestInputFileBuilder("foo", "copy/a.js").setModuleBaseDir(baseDir.toPath()).setLines(3).build());
+    when(input.filesToBlame()).thenReturn(files);
+
+    TestBlameOutput output = new TestBlameOutput();
+    newJGitBlameCommand().blame(input, output);
+
+    assertThat(output.blame.get(files.get(0))).extracting(BlameLine::revision).containsExactly(commit, commit);
+    assertThat(output.blame).doesNotContainKey(files.get(1));
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.contains("files: 2,") && log.contains("identical files: 0"));
+  }
+
+  @Test
+  public void blame_files_of_nested_repository_in_their_own_repository() throws IOException, GitAPIException {
+    File baseDir = temp.newFolder();
+    File nestedDir = new File(baseDir, "nested");
+    String projectCommit;
+    String nestedCommit;
+    try (Git git = Git.init().setDirectory(baseDir).call()) {
+      write(baseDir, "a.js", "a\n");
+      write(baseDir, ".gitignore", "nested/\n");
+      projectCommit = commitAll(git, "project");
+    }
+    try (Git git = Git.init().setDirectory(nestedDir).call()) {
+      write(nestedDir, "b.js", "b\n");
+      nestedCommit = commitAll(git, "nested");
+    }
+    DefaultFileSystem fs = new DefaultFileSystem(baseDir);
+    when(input.fileSystem()).thenReturn(fs);
+    List<InputFile> files = Arrays.asList(
+      new TestInputFileBuilder("foo", "a.js").setModuleBaseDir(baseDir.toPath()).setLines(1).build(),
+      new TestInputFileBuilder("foo", "nested/b.js").setModuleBaseDir(baseDir.toPath()).setLines(1).build());
+    when(input.filesToBlame()).thenReturn(files);
+
+    TestBlameOutput output = new TestBlameOutput();
+    newJGitBlameCommand().blame(input, output);
+
+    assertThat(output.blame.get(files.get(0))).extracting(BlameLine::revision).containsExactly(projectCommit);
+    assertThat(output.blame.get(files.get(1))).extracting(BlameLine::revision).containsExactly(nestedCommit);
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.contains("repositories: 2"));
+  }
+
+  @Test
+  public void wait_for_blame_of_other_repositories_when_one_fails() throws IOException, GitAPIException {
+    File baseDir = temp.newFolder();
+    File nestedDir = new File(baseDir, "nested");
+    String nestedCommit;
+    try (Git git = Git.init().setDirectory(baseDir).call()) {
+      write(baseDir, "a.js", "a\n");
+      write(baseDir, ".gitignore", "nested/\n");
+      commitAll(git, "project");
+    }
+    try (Git git = Git.init().setDirectory(nestedDir).call()) {
+      write(nestedDir, "b.js", "b\n");
+      nestedCommit = commitAll(git, "nested");
+    }
+    DefaultFileSystem fs = new DefaultFileSystem(baseDir);
+    when(input.fileSystem()).thenReturn(fs);
+    List<InputFile> files = Arrays.asList(
+      new TestInputFileBuilder("foo", "a.js").setModuleBaseDir(baseDir.toPath()).setLines(1).build(),
+      new TestInputFileBuilder("foo", "nested/b.js").setModuleBaseDir(baseDir.toPath()).setLines(1).build());
+    when(input.filesToBlame()).thenReturn(files);
+    CountDownLatch failed = new CountDownLatch(1);
+    Map<InputFile, List<BlameLine>> blame = new ConcurrentHashMap<>();
+
+    newJGitBlameCommand().blame(input, (file, lines) -> {
+      if (file == files.get(0)) {
+        failed.countDown();
+        throw new AssertionError("broken output");
+      }
+      try {
+        // still reporting once the blame of the other repository failed
+        failed.await(10, TimeUnit.SECONDS);
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      blame.put(file, lines);
+    });
+
+    assertThat(blame.get(files.get(1))).extracting(BlameLine::revision).containsExactly(nestedCommit);
+    assertThat(logTester.logs(LoggerLevel.WARN)).contains("Git blame failed");
+  }
+
+  @Test
+  public void dont_share_merge_base_blames_between_repositories() throws IOException, GitAPIException {
+    File baseDir = temp.newFolder();
+    File nestedDir = new File(baseDir, "nested");
+    String[] projectCommits = new String[2];
+    String[] nestedCommits = new String[2];
+    try (Git git = Git.init().setDirectory(baseDir).call()) {
+      write(baseDir, ".gitignore", "nested/\n");
+      write(baseDir, "a.js", "p\n");
+      projectCommits[0] = commitAll(git, "project target");
+      git.branchCreate().setName("target").call();
+      write(baseDir, "a.js", "p\nq\n");
+      projectCommits[1] = commitAll(git, "project pull request");
+    }
+    try (Git git = Git.init().setDirectory(nestedDir).call()) {
+      write(nestedDir, "a.js", "n\n");
+      nestedCommits[0] = commitAll(git, "nested target");
+      git.branchCreate().setName("target").call();
+      write(nestedDir, "a.js", "n\nm\n");
+      nestedCommits[1] = commitAll(git, "nested pull request");
+    }
+    settings.setProperty("sonar.pullrequest.key", "1");
+    settings.setProperty("sonar.pullrequest.base", "target");
+    settings.setProperty(GitSettings.BLAME_PULL_REQUEST_CHANGED_LINES_PROPERTY, true);
+    DefaultFileSystem fs = new DefaultFileSystem(baseDir);
+    when(input.fileSystem()).thenReturn(fs);
+    List<InputFile> files = Arrays.asList(
+      new TestInputFileBuilder("foo", "a.js").setModuleBaseDir(baseDir.toPath()).setLines(2).build(),
+      new TestInputFileBuilder("foo", "nested/a.js").setModuleBaseDir(baseDir.toPath()).setLines(2).build());
+    when(input.filesToBlame()).thenReturn(files);
+
+    JGitBlameCommand jGitBlameCommand = newJGitBlameCommand();
+
+    for (int i = 0; i < 2; i++) {
+      // the second blame reuses the blames of the merge base of each repository
+      TestBlameOutput output = new TestBlameOutput();
+      jGitBlameCommand.blame(input, output);
+
+      assertThat(output.blame.get(files.get(0))).extracting(BlameLine::revision).containsExactly(projectCommits);
+      assertThat(output.blame.get(files.get(1))).extracting(BlameLine::revision).containsExactly(nestedCommits);
+    }
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.contains("merge base blame cache hits: 2"));
+  }
+
+  private static void write(File baseDir, String path, String content) throws IOException {
+    Path file = baseDir.toPath().resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String commitAll(Git git, String message) throws GitAPIException {
+    git.add().addFilepattern(".").call();
+    return git.commit().setMessage(message).setAuthor("joe", "joe@example.com").call().getName();
+  }
+
+  private TestBlameOutput blameDummyJava(File baseDir) {
+    return blameDummyJava(baseDir, newJGitBlameCommand());
+  }
+
+  private TestBlameOutput blameDummyJava(File baseDir, JGitBlameCommand jGitBlameCommand) {
+    DefaultFileSystem fs = new DefaultFileSystem(baseDir);
+    when(input.fileSystem()).thenReturn(fs);
+    DefaultInputFile inputFile = new TestInputFileBuilder("foo", DUMMY_JAVA)
+      .setModuleBaseDir(baseDir.toPath())
+      .setLines(29)
+      .build();
+    fs.add(inputFile);
+    when(input.filesToBlame()).thenReturn(Collections.singletonList(inputFile));
+
+    TestBlameOutput output = new TestBlameOutput();
+    jGitBlameCommand.blame(input, output);
+    return output;
+  }
+
   @Test
   public void return_early_when_shallow_clone_detected() throws IOException {
     File projectDir = temp.newFolder();
@@ -288,7 +821,7 @@ public class JGitBlameCommandTest {
 
     // register warning with default wrapper
     AnalysisWarnings analysisWarnings = mock(AnalysisWarnings.class);
-    JGitBlameCommand jGitBlameCommand = new JGitBlameCommand(new PathResolver(), analysisWarnings);
+    JGitBlameCommand jGitBlameCommand = new JGitBlameCommand(new PathResolver(), analysisWarnings, new GitSettings(settings.asConfig()), new GitMetrics(new GitSettings(settings.asConfig())));
     BlameOutput output = mock(BlameOutput.class);
     jGitBlameCommand.blame(input, output);
 
@@ -300,7 +833,7 @@ public class JGitBlameCommandTest {
   }
 
   @Test
-  public void return_early_when_clone_with_reference_detected() throws IOException {
+  public void blame_clone_with_reference_without_warning() throws IOException {
     File projectDir = temp.newFolder();
     javaUnzip(new File("test-repos/dummy-git-reference-clone.zip"), projectDir);
 
@@ -314,12 +847,12 @@ public class JGitBlameCommandTest {
 
     // register warning
     AnalysisWarnings analysisWarnings = mock(AnalysisWarnings.class);
-    JGitBlameCommand jGitBlameCommand = new JGitBlameCommand(new PathResolver(), analysisWarnings);
+    JGitBlameCommand jGitBlameCommand = new JGitBlameCommand(new PathResolver(), analysisWarnings, new GitSettings(settings.asConfig()), new GitMetrics(new GitSettings(settings.asConfig())));
     TestBlameOutput output = new TestBlameOutput();
     jGitBlameCommand.blame(input, output);
 
-    assertThat(logTester.logs()).first()
-      .matches(s -> s.contains("This git repository references another local repository which is not well supported"));
+    assertThat(logTester.logs(LoggerLevel.WARN)).isEmpty();
+    assertThat(logTester.logs()).noneMatch(s -> s.contains("references another local repository"));
 
     // contains commits referenced from the old clone and commits in the new clone
     assertThat(output.blame.keySet()).contains(inputFile);
@@ -329,7 +862,7 @@ public class JGitBlameCommandTest {
   }
 
   private JGitBlameCommand newJGitBlameCommand() {
-    return new JGitBlameCommand(new PathResolver(), mock(AnalysisWarnings.class));
+    return new JGitBlameCommand(new PathResolver(), mock(AnalysisWarnings.class), new GitSettings(settings.asConfig()), new GitMetrics(new GitSettings(settings.asConfig())));
   }
 
   private static class TestBlameOutput implements BlameOutput {
@@ -0,0 +1,120 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.notifications.AnalysisWarnings;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+public class LinkedWorktreeTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private Path main;
+  private Path linked;
+  private String mainCommit;
+  private String linkedCommit;
+
+  @Before
+  public void before() throws IOException, GitAPIException, InterruptedException {
+    assumeTrue(NativeGit.isAvailable("git"));
+    main = temp.newFolder().toPath();
+    try (Git git = Git.init().setDirectory(main.toFile()).call()) {
+      Files.write(main.resolve("file"), "main\n".getBytes(StandardCharsets.UTF_8));
+      git.add().addFilepattern("file").call();
+      mainCommit = git.commit().setAuthor("joe", "joe@example.com").setMessage("main").call().getName();
+    }
+    linked = temp.getRoot().toPath().resolve("linked");
+    run(main, "worktree", "add", "-b", "feature", linked.toString());
+    Files.createDirectories(linked.resolve("dir"));
+    Files.write(linked.resolve("dir/file"), "feature\n".getBytes(StandardCharsets.UTF_8));
+    run(linked, "add", "dir/file");
+    run(linked, "commit", "-m", "feature");
+    try (Repository repo = new RepositoryBuilder().setGitDir(main.resolve(".git").toFile()).build()) {
+      linkedCommit = repo.resolve("refs/heads/feature").getName();
+    }
+  }
+
+  @Test
+  public void open_repository_with_head_and_work_tree_of_linked_work_tree() throws IOException {
+    LinkedWorktree worktree = LinkedWorktree.of(GitScmProvider.getVerifiedRepositoryBuilder(linked).getGitDir());
+    assertThat(worktree).isNotNull();
+    assertThat(worktree.commonDir().toPath()).isEqualTo(main.resolve(".git").toRealPath());
+    assertThat(worktree.workTree().toPath()).isEqualTo(linked.toRealPath());
+    assertThat(LinkedWorktree.of(main.resolve(".git").toFile())).isNull();
+
+    try (Repository repo = LinkedWorktree.build(GitScmProvider.getVerifiedRepositoryBuilder(linked))) {
+      assertThat(repo.resolve(Constants.HEAD).getName()).isEqualTo(linkedCommit);
+      assertThat(repo.getFullBranch()).isEqualTo("refs/heads/feature");
+      assertThat(repo.resolve("refs/heads/master").getName()).isEqualTo(mainCommit);
+      assertThat(repo.getWorkTree().toPath().toRealPath()).isEqualTo(linked.toRealPath());
+      assertThat(LinkedWorktree.privateDirectory(repo).toPath()).isEqualTo(main.resolve(".git/worktrees/linked").toRealPath());
+    }
+    try (Repository repo = JGitUtils.buildRepository(main)) {
+      assertThat(repo.resolve(Constants.HEAD).getName()).isEqualTo(mainCommit);
+      assertThat(LinkedWorktree.privateDirectory(repo)).isEqualTo(repo.getDirectory());
+    }
+  }
+
+  @Test
+  public void provide_revision_and_changes_of_linked_work_tree() throws IOException {
+    GitSettings settings = new GitSettings(new MapSettings().asConfig());
+    GitScmProvider provider = new GitScmProvider(mock(JGitBlameCommand.class), mock(NativeGitBlameCommand.class), mock(AnalysisWarnings.class),
+      mock(GitIgnoreCommand.class), mock(System2.class), settings, new GitMetrics(settings));
+
+    assertThat(provider.revisionId(linked)).isEqualTo(linkedCommit);
+    assertThat(provider.relativePathFromScmRoot(linked.toRealPath().resolve("dir/file"))).isEqualTo(Paths.get("dir/file"));
+    assertThat(provider.branchChangedFiles("master", linked)).containsExactly(linked.toRealPath().resolve("dir/file"));
+    assertThat(WindowCacheTuning.packDirectories(linked)).containsExactly(main.resolve(".git/objects/pack").toRealPath());
+  }
+
+  private static void run(Path directory, String... args) throws IOException, InterruptedException {
+    String[] command = new String[args.length + 5];
+    command[0] = "git";
+    command[1] = "-c";
+    command[2] = "user.name=joe";
+    command[3] = "-c";
+    command[4] = "user.email=joe@example.com";
+    System.arraycopy(args, 0, command, 5, args.length);
+    Process process = new ProcessBuilder(command).directory(directory.toFile()).redirectErrorStream(true).start();
+    String output = new String(IOUtils.toByteArray(process.getInputStream()), StandardCharsets.UTF_8);
+    assertThat(process.waitFor()).as(output).isZero();
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameCommand;
+import org.sonar.api.batch.scm.BlameCommand.BlameInput;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.notifications.AnalysisWarnings;
+import org.sonar.api.scan.filesystem.PathResolver;
+import org.sonar.api.utils.log.LogTester;
+import org.sonar.api.utils.log.LoggerLevel;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.sonarsource.scm.git.Utils.javaUnzip;
+
+public class NativeGitBlameCommandTest {
+
+  private static final String DUMMY_JAVA = "src/main/java/org/dummy/Dummy.java";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Rule
+  public LogTester logTester = new LogTester();
+
+  private final BlameInput input = mock(BlameInput.class);
+  private final MapSettings settings = new MapSettings();
+  private File baseDir;
+  private DefaultFileSystem fs;
+
+  @Before
+  public void prepare() throws IOException {
+    File projectDir = temp.newFolder();
+    javaUnzip(new File("test-repos/dummy-git.zip"), projectDir);
+    baseDir = new File(projectDir, "dummy-git");
+    fs = new DefaultFileSystem(baseDir);
+    when(input.fileSystem()).thenReturn(fs);
+  }
+
+  @Test
+  public void blame_with_git() {
+    NativeGitBlameCommand command = newCommand();
+    assumeTrue(command.isAvailable());
+
+    Map<InputFile, List<BlameLine>> blame = blame(command, inputFile(DUMMY_JAVA, 29));
+
+    List<BlameLine> lines = blame.values().iterator().next();
+    assertThat(lines).hasSize(29);
+    assertThat(lines.subList(0, 25)).extracting(BlameLine::revision).containsOnly("6b3aab35a3ea32c1636fee56f996e677653c48ea");
+    assertThat(lines.subList(25, 28)).extracting(BlameLine::revision).containsOnly("0d269c1acfb8e6d4d33f3c43041eb87e0df0f5e7");
+    assertThat(lines.get(25).author()).isEqualTo("duarte.meneses@sonarsource.com");
+    // committer date, like JGit
+    assertThat(lines.get(25).date()).isEqualTo(new Date(1432035069000L));
+    assertThat(lines.get(28).revision()).isEqualTo("6b3aab35a3ea32c1636fee56f996e677653c48ea");
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.startsWith("Git native blame: "));
+  }
+
+  @Test
+  public void same_blame_as_jgit() {
+    NativeGitBlameCommand command = newCommand();
+    assumeTrue(command.isAvailable());
+    DefaultInputFile inputFile = inputFile(DUMMY_JAVA, 29);
+
+    Map<InputFile, List<BlameLine>> nativeBlame = blame(command, inputFile);
+    Map<InputFile, List<BlameLine>> jgitBlame = blame(newJGitBlameCommand(), inputFile);
+
+    assertThat(nativeBlame).isEqualTo(jgitBlame);
+  }
+
+  @Test
+  public void no_blame_of_modified_files() throws IOException {
+    NativeGitBlameCommand command = newCommand();
+    assumeTrue(command.isAvailable());
+    Files.write(baseDir.toPath().resolve(DUMMY_JAVA), "modification\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    assertThat(blame(command, inputFile(DUMMY_JAVA, 30))).isEmpty();
+  }
+
+  @Test
+  public void blame_with_jgit_files_git_fails_on() throws IOException {
+    NativeGitBlameCommand command = newCommand();
+    assumeTrue(command.isAvailable());
+    Files.write(baseDir.toPath().resolve("Untracked.java"), "untracked\n".getBytes(StandardCharsets.UTF_8));
+
+    Map<InputFile, List<BlameLine>> blame = blame(command, inputFile(DUMMY_JAVA, 29), inputFile("Untracked.java", 1));
+
+    assertThat(blame.keySet()).extracting(InputFile::relativePath).containsOnly(DUMMY_JAVA);
+    assertThat(logTester.logs(LoggerLevel.INFO)).contains("1 file(s) could not be blamed with git, they are blamed with JGit");
+  }
+
+  @Test
+  public void approximate_blame_of_large_files_like_jgit() {
+    settings.setProperty(GitSettings.LARGE_FILE_THRESHOLD_PROPERTY, 10);
+    NativeGitBlameCommand command = newCommand();
+    assumeTrue(command.isAvailable());
+
+    Map<InputFile, List<BlameLine>> blame = blame(command, inputFile(DUMMY_JAVA, 29));
+
+    assertThat(blame.values().iterator().next()).hasSize(29).extracting(BlameLine::revision).containsOnly("0d269c1acfb8e6d4d33f3c43041eb87e0df0f5e7");
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.startsWith("Git native blame: ") && log.contains("skipped files: 1"));
+  }
+
+  @Test
+  public void blame_with_jgit_when_git_is_not_available() {
+    settings.setProperty(GitSettings.GIT_EXECUTABLE_PROPERTY, new File(baseDir, "missing-git").getAbsolutePath());
+    NativeGitBlameCommand command = newCommand();
+
+    Map<InputFile, List<BlameLine>> blame = blame(command, inputFile(DUMMY_JAVA, 29));
+
+    assertThat(command.isAvailable()).isFalse();
+    assertThat(blame.values().iterator().next()).hasSize(29);
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.endsWith("is not available, files are blamed with JGit"));
+  }
+
+  @Test
+  public void kill_git_processes_when_blame_times_out() throws Exception {
+    File pidFile = new File(temp.getRoot(), "pid");
+    useFakeGit("echo $$ > '" + pidFile.getAbsolutePath() + "'\nexec sleep 60\n");
+    settings.setProperty(GitSettings.BLAME_TIMEOUT_PROPERTY, 1);
+
+    assertThat(blame(newCommand(), inputFile(DUMMY_JAVA, 29))).isEmpty();
+
+    String pid = new String(Files.readAllBytes(pidFile.toPath()), StandardCharsets.UTF_8).trim();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (isRunning(pid) && System.nanoTime() < deadline) {
+      Thread.sleep(50);
+    }
+    assertThat(isRunning(pid)).isFalse();
+  }
+
+  @Test(timeout = 30_000)
+  public void drain_error_output_of_git_while_reading_its_output() throws IOException {
+    // more than the pipe buffer, git would block writing it if it was only read at the end of the output
+    useFakeGit("head -c 200000 /dev/zero | tr '\\0' x >&2\nexit 1\n");
+
+    Map<InputFile, List<BlameLine>> blame = blame(newCommand(), inputFile(DUMMY_JAVA, 29));
+
+    assertThat(blame.values().iterator().next()).hasSize(29);
+    assertThat(logTester.logs(LoggerLevel.INFO)).contains("1 file(s) could not be blamed with git, they are blamed with JGit");
+  }
+
+  /**
+   * Git executable answering the version check, and running the given script for any other command
+   */
+  private void useFakeGit(String script) throws IOException {
+    assumeTrue(new File("/bin/sh").canExecute());
+    File git = temp.newFile("fake-git");
+    Files.write(git.toPath(), ("#!/bin/sh\nif [ \"$1\" = \"--version\" ]; then echo 'git version 2.30.0'; exit 0; fi\n" + script)
+      .getBytes(StandardCharsets.UTF_8));
+    assertThat(git.setExecutable(true)).isTrue();
+    settings.setProperty(GitSettings.GIT_EXECUTABLE_PROPERTY, git.getAbsolutePath());
+  }
+
+  private static boolean isRunning(String pid) throws IOException, InterruptedException {
+    return new ProcessBuilder("kill", "-0", pid).start().waitFor() == 0;
+  }
+
+  private DefaultInputFile inputFile(String relativePath, int lines) {
+    DefaultInputFile inputFile = new TestInputFileBuilder("foo", relativePath)
+      .setModuleBaseDir(baseDir.toPath())
+      .setLines(lines)
+      .build();
+    fs.add(inputFile);
+    return inputFile;
+  }
+
+  private Map<InputFile, List<BlameLine>> blame(BlameCommand command, InputFile... files) {
+    when(input.filesToBlame()).thenReturn(Arrays.asList(files));
+    Map<InputFile, List<BlameLine>> blame = Collections.synchronizedMap(new LinkedHashMap<>());
+    BlameOutput output = blame::put;
+    command.blame(input, output);
+    return blame;
+  }
+
+  private NativeGitBlameCommand newCommand() {
+    GitSettings gitSettings = new GitSettings(settings.asConfig());
+    GitMetrics metrics = new GitMetrics(gitSettings);
+    return new NativeGitBlameCommand(newJGitBlameCommand(), mock(AnalysisWarnings.class), gitSettings, metrics);
+  }
+
+  private JGitBlameCommand newJGitBlameCommand() {
+    GitSettings gitSettings = new GitSettings(settings.asConfig());
+    return new JGitBlameCommand(new PathResolver(), mock(AnalysisWarnings.class), gitSettings, new GitMetrics(gitSettings));
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameCommand.BlameInput;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.notifications.AnalysisWarnings;
+import org.sonar.api.scan.filesystem.PathResolver;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.LogTester;
+import org.sonar.api.utils.log.LoggerLevel;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PartialCloneTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Rule
+  public LogTester logTester = new LogTester();
+
+  private final MapSettings settings = new MapSettings();
+
+  @Test
+  public void detect_promisor_remote() throws IOException, GitAPIException {
+    File dir = temp.newFolder();
+    try (Git git = Git.init().setDirectory(dir).call()) {
+      Repository repo = git.getRepository();
+      assertThat(PartialClone.detect(repo, gitSettings())).isNull();
+
+      StoredConfig config = repo.getConfig();
+      config.setBoolean("remote", "upstream", "promisor", true);
+      config.save();
+      assertThat(PartialClone.detect(repo, gitSettings()).remote()).isEqualTo("upstream");
+
+      config.setString("extensions", null, "partialClone", "origin");
+      config.save();
+      assertThat(PartialClone.detect(repo, gitSettings()).remote()).isEqualTo("origin");
+    }
+  }
+
+  @Test
+  public void detect_promisor_packs() throws IOException, GitAPIException {
+    File dir = temp.newFolder();
+    try (Git git = Git.init().setDirectory(dir).call()) {
+      Path packDirectory = dir.toPath().resolve(".git/objects/pack");
+      Files.createDirectories(packDirectory);
+      Files.createFile(packDirectory.resolve("pack-1234.promisor"));
+      assertThat(PartialClone.detect(git.getRepository(), gitSettings()).remote()).isEqualTo(PartialClone.DEFAULT_REMOTE);
+    }
+  }
+
+  @Test
+  public void fetch_with_git_or_configured_command() throws IOException, GitAPIException {
+    File dir = temp.newFolder();
+    try (Git git = Git.init().setDirectory(dir).call()) {
+      git.getRepository().getConfig().setBoolean("remote", "origin", "promisor", true);
+      assertThat(PartialClone.detect(git.getRepository(), gitSettings()).fetchCommand())
+        .containsExactly("git", "-c", "fetch.negotiationAlgorithm=noop", "fetch", "origin", "--no-tags", "--recurse-submodules=no", "--filter=blob:none", "--stdin");
+
+      settings.setProperty(GitSettings.PARTIAL_CLONE_FETCH_COMMAND_PROPERTY, " fetch-objects  --from mirror ");
+      assertThat(PartialClone.detect(git.getRepository(), gitSettings()).fetchCommand()).containsExactly("fetch-objects", "--from", "mirror");
+    }
+  }
+
+  @Test
+  public void find_missing_object_in_causes() {
+    MissingObjectException missing = new MissingObjectException(ObjectId.zeroId(), Constants.OBJ_BLOB);
+    assertThat(PartialClone.missingObject(new IllegalStateException(new IOException(missing)))).isSameAs(missing);
+    assertThat(PartialClone.missingObject(new IOException())).isNull();
+  }
+
+  @Test
+  public void blame_blobless_clone_once_missing_blobs_are_fetched() throws Exception {
+    assumeTrue(NativeGit.isAvailable("git"));
+    File full = temp.newFolder();
+    List<String> commits = commitHistory(full);
+    File partial = bloblessClone(full);
+
+    List<BlameLine> lines = blame(partial);
+
+    assertThat(lines).extracting(BlameLine::revision).containsExactly(commits.get(0), commits.get(1), commits.get(2));
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.contains("Partial clone detected"))
+      .anyMatch(log -> log.contains("partial clone fetches: 1") && log.contains("fetched objects: 2"));
+  }
+
+  @Test
+  public void fetch_missing_blobs_with_configured_command() throws Exception {
+    assumeTrue(NativeGit.isAvailable("git"));
+    File full = temp.newFolder();
+    List<String> commits = commitHistory(full);
+    File partial = bloblessClone(full);
+    // fetch from the repository directly rather than from the promisor remote
+    settings.setProperty(GitSettings.PARTIAL_CLONE_FETCH_COMMAND_PROPERTY, "git -c fetch.negotiationAlgorithm=noop fetch " + full.getAbsolutePath()
+      + " --filter=blob:none --stdin");
+
+    assertThat(blame(partial)).extracting(BlameLine::revision).containsExactly(commits.get(0), commits.get(1), commits.get(2));
+  }
+
+  @Test
+  public void stop_fetch_of_missing_blobs_after_timeout() throws Exception {
+    assumeTrue(NativeGit.isAvailable("git"));
+    assumeFalse(System2.INSTANCE.isOsWindows());
+    File full = temp.newFolder();
+    commitHistory(full);
+    File partial = bloblessClone(full);
+    settings.setProperty(GitSettings.PARTIAL_CLONE_FETCH_COMMAND_PROPERTY, "sleep 60");
+    settings.setProperty(GitSettings.PARTIAL_CLONE_FETCH_TIMEOUT_PROPERTY, 1);
+
+    long start = System.nanoTime();
+    assertThat(blame(partial)).isNull();
+    assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)).isLessThan(30);
+    assertThat(logTester.logs(LoggerLevel.WARN)).contains("Fetching missing objects timed out, see property 'sonar.scm.git.partialClone.fetchTimeout'");
+  }
+
+  @Test
+  public void fail_files_with_missing_blobs_when_fetch_is_disabled() throws Exception {
+    assumeTrue(NativeGit.isAvailable("git"));
+    File full = temp.newFolder();
+    commitHistory(full);
+    File partial = bloblessClone(full);
+    settings.setProperty(GitSettings.PARTIAL_CLONE_FETCH_PROPERTY, false);
+
+    assertThat(blame(partial)).isNull();
+    assertThat(logTester.logs(LoggerLevel.WARN)).anyMatch(log -> log.contains("Unable to blame 1 file(s): a.txt"));
+  }
+
+  @Test
+  public void fetch_missing_blobs_of_merge_base_at_once() throws Exception {
+    assumeTrue(NativeGit.isAvailable("git"));
+    File full = temp.newFolder();
+    List<String> commits = commitHistory(full);
+    File partial = bloblessClone(full);
+    try (Git git = Git.open(partial)) {
+      RefUpdate update = git.getRepository().updateRef("refs/heads/old");
+      update.setNewObjectId(ObjectId.fromString(commits.get(0)));
+      update.update();
+    }
+    GitScmProvider provider = new GitScmProvider(mock(JGitBlameCommand.class), mock(NativeGitBlameCommand.class), mock(AnalysisWarnings.class),
+      mock(GitIgnoreCommand.class), mock(System2.class), gitSettings(), new GitMetrics(gitSettings()));
+
+    Path file = partial.toPath().resolve("a.txt");
+    assertThat(provider.branchChangedLines("old", partial.toPath(), Collections.singleton(file)))
+      .containsExactly(entry(file, new HashSet<>(Arrays.asList(2, 3))));
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.contains("fetched objects: 1"));
+  }
+
+  private List<BlameLine> blame(File baseDir) {
+    BlameInput input = mock(BlameInput.class);
+    DefaultFileSystem fs = new DefaultFileSystem(baseDir);
+    when(input.fileSystem()).thenReturn(fs);
+    InputFile inputFile = new TestInputFileBuilder("foo", "a.txt").setModuleBaseDir(baseDir.toPath()).setLines(3).build();
+    when(input.filesToBlame()).thenReturn(Collections.singletonList(inputFile));
+    Map<InputFile, List<BlameLine>> blame = new HashMap<>();
+    JGitBlameCommand command = new JGitBlameCommand(new PathResolver(), mock(AnalysisWarnings.class), gitSettings(), new GitMetrics(gitSettings()));
+    try {
+      command.blame(input, blame::put);
+    } finally {
+      command.stop();
+    }
+    return blame.get(inputFile);
+  }
+
+  /**
+   * Each commit changes a line of the same file, with a blob per commit.
+   */
+  private static List<String> commitHistory(File dir) throws IOException, GitAPIException {
+    try (Git git = Git.init().setDirectory(dir).call()) {
+      String commit1 = commit(git, dir, "1\nb\nc\n");
+      String commit2 = commit(git, dir, "1\n2\nc\n");
+      String commit3 = commit(git, dir, "1\n2\n3\n");
+      StoredConfig config = git.getRepository().getConfig();
+      config.setBoolean("uploadpack", null, "allowFilter", true);
+      config.setBoolean("uploadpack", null, "allowAnySHA1InWant", true);
+      config.save();
+      return Arrays.asList(commit1, commit2, commit3);
+    }
+  }
+
+  private static String commit(Git git, File dir, String content) throws IOException, GitAPIException {
+    Files.write(dir.toPath().resolve("a.txt"), content.getBytes(StandardCharsets.UTF_8));
+    git.add().addFilepattern("a.txt").call();
+    return git.commit().setAuthor("joe", "joe@example.com").setMessage(content).call().getName();
+  }
+
+  private File bloblessClone(File full) throws IOException, InterruptedException {
+    File partial = new File(temp.getRoot(), "partial");
+    Process process = new ProcessBuilder("git", "clone", "--filter=blob:none", "file://" + full.getAbsolutePath(), partial.getAbsolutePath())
+      .redirectErrorStream(true)
+      .start();
+    String output = new String(IOUtils.toByteArray(process.getInputStream()), StandardCharsets.UTF_8);
+    assertThat(process.waitFor()).as(output).isZero();
+    return partial;
+  }
+
+  private GitSettings gitSettings() {
+    return new GitSettings(settings.asConfig());
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Git
+ * Copyright (C) 2014-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scm.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.log.LogTester;
+import org.sonar.api.utils.log.LoggerLevel;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WindowCacheTuningTest {
+
+  private static final long GB = 1024L * WindowCacheConfig.MB;
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Rule
+  public LogTester logTester = new LogTester();
+
+  private final MapSettings settings = new MapSettings();
+
+  @Test
+  public void keep_defaults_for_small_repositories() {
+    WindowCacheConfig config = WindowCacheTuning.configure(gitSettings(), 4 * GB, WindowCacheConfig.MB, false);
+
+    WindowCacheConfig defaults = new WindowCacheConfig();
+    assertThat(config.getPackedGitLimit()).isEqualTo(defaults.getPackedGitLimit());
+    assertThat(config.getPackedGitWindowSize()).isEqualTo(defaults.getPackedGitWindowSize());
+    assertThat(config.getDeltaBaseCacheLimit()).isEqualTo(defaults.getDeltaBaseCacheLimit());
+  }
+
+  @Test
+  public void size_from_packs_within_heap() {
+    WindowCacheConfig config = WindowCacheTuning.configure(gitSettings(), 4 * GB, 600L * WindowCacheConfig.MB, false);
+
+    assertThat(config.getPackedGitLimit()).isEqualTo(600L * WindowCacheConfig.MB);
+    assertThat(config.getPackedGitWindowSize()).isEqualTo(64 * WindowCacheConfig.KB);
+    assertThat(config.getDeltaBaseCacheLimit()).isEqualTo(150 * WindowCacheConfig.MB);
+  }
+
+  @Test
+  public void bound_by_heap() {
+    WindowCacheConfig config = WindowCacheTuning.configure(gitSettings(), GB, 10 * GB, false);
+
+    assertThat(config.getPackedGitLimit()).isEqualTo(GB / 4);
+    assertThat(config.getDeltaBaseCacheLimit()).isEqualTo(GB / 16);
+  }
+
+  @Test
+  public void explicit_settings_win() {
+    settings.setProperty(GitSettings.PACKED_GIT_LIMIT_PROPERTY, 100L * WindowCacheConfig.MB);
+    settings.setProperty(GitSettings.PACKED_GIT_WINDOW_SIZE_PROPERTY, 16 * WindowCacheConfig.KB);
+    settings.setProperty(GitSettings.PACKED_GIT_OPEN_FILES_PROPERTY, 512);
+    settings.setProperty(GitSettings.DELTA_BASE_CACHE_LIMIT_PROPERTY, 20 * WindowCacheConfig.MB);
+
+    WindowCacheConfig config = WindowCacheTuning.configure(gitSettings(), 4 * GB, 10 * GB, false);
+
+    assertThat(config.getPackedGitLimit()).isEqualTo(100L * WindowCacheConfig.MB);
+    assertThat(config.getPackedGitWindowSize()).isEqualTo(16 * WindowCacheConfig.KB);
+    assertThat(config.getPackedGitOpenFiles()).isEqualTo(512);
+    assertThat(config.getDeltaBaseCacheLimit()).isEqualTo(20 * WindowCacheConfig.MB);
+  }
+
+  @Test
+  public void no_auto_sizing_when_disabled() {
+    settings.setProperty(GitSettings.PACKED_GIT_AUTO_SIZE_PROPERTY, false);
+
+    WindowCacheConfig config = WindowCacheTuning.configure(gitSettings(), 4 * GB, 10 * GB, false);
+
+    assertThat(config.getPackedGitLimit()).isEqualTo(new WindowCacheConfig().getPackedGitLimit());
+  }
+
+  @Test
+  public void map_packs_up_to_address_space_limit() {
+    WindowCacheConfig config = WindowCacheTuning.configure(gitSettings(), GB, 10 * GB, true);
+
+    assertThat(config.isPackedGitMMAP()).isTrue();
+    assertThat(config.getPackedGitLimit()).isEqualTo(10 * GB);
+    assertThat(config.getPackedGitWindowSize()).isEqualTo(WindowCacheConfig.MB);
+    assertThat(config.getDeltaBaseCacheLimit()).isEqualTo(GB / 16);
+
+    config = WindowCacheTuning.configure(gitSettings(), GB, 100 * GB, true);
+    assertThat(config.getPackedGitLimit()).isEqualTo(WindowCacheTuning.MAX_MAPPED_LIMIT);
+  }
+
+  @Test
+  public void mmap_is_only_safe_on_64_bit_jvms_and_local_file_systems() {
+    assertThat(WindowCacheTuning.isMmapSafe("Linux", "64", "ext4")).isTrue();
+    assertThat(WindowCacheTuning.isMmapSafe(null, null, null)).isTrue();
+    assertThat(WindowCacheTuning.isMmapSafe("Windows 10", "64", "NTFS")).isFalse();
+    assertThat(WindowCacheTuning.isMmapSafe("Linux", "32", "ext4")).isFalse();
+    assertThat(WindowCacheTuning.isMmapSafe("Linux", "64", "nfs4")).isFalse();
+    assertThat(logTester.logs(LoggerLevel.WARN)).hasSize(3);
+  }
+
+  @Test
+  public void compute_size_of_packs() throws IOException, GitAPIException {
+    File worktree = temp.newFolder();
+    assertThat(WindowCacheTuning.packDirectories(worktree.toPath())).isEmpty();
+
+    try (Git git = Git.init().setDirectory(worktree).call()) {
+      Files.write(worktree.toPath().resolve("file"), "content".getBytes());
+      git.add().addFilepattern("file").call();
+      git.commit().setMessage("commit").call();
+      assertThat(WindowCacheTuning.packDirectories(worktree.toPath())).extracting(WindowCacheTuning::packsSize).containsExactly(0L);
+
+      git.gc().call();
+    }
+
+    assertThat(WindowCacheTuning.packsSize(WindowCacheTuning.packDirectories(worktree.toPath()).get(0))).isPositive();
+  }
+
+  @Test
+  public void include_packs_of_alternates() throws IOException, GitAPIException {
+    File reference = temp.newFolder();
+    try (Git git = Git.init().setDirectory(reference).call()) {
+      Files.write(reference.toPath().resolve("file"), "content".getBytes());
+      git.add().addFilepattern("file").call();
+      git.commit().setMessage("commit").call();
+      git.gc().call();
+    }
+    File worktree = temp.newFolder();
+    Git.init().setDirectory(worktree).call().close();
+    Path alternates = worktree.toPath().resolve(".git/objects/info/alternates");
+    Files.createDirectories(alternates.getParent());
+    Files.write(alternates, (reference.toPath().resolve(".git/objects") + "\n").getBytes(StandardCharsets.UTF_8));
+
+    assertThat(WindowCacheTuning.packDirectories(worktree.toPath()))
+      .containsExactly(worktree.toPath().resolve(".git/objects/pack"), reference.toPath().resolve(".git/objects/pack"));
+  }
+
+  private GitSettings gitSettings() {
+    return new GitSettings(settings.asConfig());
+  }
+}